@@ -0,0 +1,175 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * TimeShiftDiskCacheのジャーナルあり/無し(ephemeral)でのフレーム毎の書き込み時間と
+ * システムコール数を比較する
+ * 4KBのフレームをTimeShiftTrackCache経由で書き込み(600フレーム分を保持)、
+ * /proc/self/ioのsyscr/syscw(プロセス全体のread/write系システムコール数)の増分を
+ * フレーム数で割って1フレームあたりの値とする(rename/unlinkは含まれないので書き込み時間で比較する)。
+ * 結果はlogcatへ出力する
+ */
+@RunWith(AndroidJUnit4.class)
+public class TimeShiftDiskCacheBenchmark {
+	private static final String TAG = TimeShiftDiskCacheBenchmark.class.getSimpleName();
+
+	private static final int FRAMES = 20000;
+	private static final int FRAME_SIZE = 4096;
+	private static final int MAX_FRAMES = 600;
+	private static final int KEY_FRAME_INTERVAL = 30;
+	private static final long FRAME_INTERVAL_US = 1000;
+	/**
+	 * 保持期間では削除しないように十分長い値にする
+	 */
+	private static final long MAX_DURATION = 1L << 40;
+	private static final int ROUNDS = 3;
+	private static final String PROC_IO = "/proc/self/io";
+
+	/**
+	 * 計測結果
+	 */
+	private static final class Result {
+		private long elapsedNs;
+		private long syscr = -1;
+		private long syscw = -1;
+		private boolean hasJournal;
+
+		private double usPerFrame() {
+			return elapsedNs / 1000.0 / FRAMES;
+		}
+
+		private double perFrame(final long count) {
+			return count >= 0 ? count / (double)FRAMES : Double.NaN;
+		}
+	}
+
+	@Test
+	public void compareKeyNamedFiles() throws IOException {
+		compare(0);
+	}
+
+	@Test
+	public void compareSlotFiles() throws IOException {
+		compare(FRAME_SIZE);
+	}
+
+	/**
+	 * ジャーナルあり/無しの順に書き込んで比較する
+	 * @param slotFileSize スロットファイルのサイズ, 0ならキー毎のファイルへ書き込む
+	 * @throws IOException
+	 */
+	private void compare(final int slotFileSize) throws IOException {
+		final File dir = new File(getContext().getCacheDir(), TAG);
+		assertTrue(dir.isDirectory() || dir.mkdirs());
+		// 1回目は捨てる
+		run(dir, false, slotFileSize);
+		run(dir, true, slotFileSize);
+		for (int i = 0; i < ROUNDS; i++) {
+			final Result journaled = run(dir, false, slotFileSize);
+			final Result ephemeral = run(dir, true, slotFileSize);
+			Log.i(TAG, String.format("round%d:frames=%d,frameSize=%d,slotFileSize=%d",
+				i, FRAMES, FRAME_SIZE, slotFileSize));
+			Log.i(TAG, String.format("  journaled:%.1f us/frame,syscr=%.2f/frame,syscw=%.2f/frame",
+				journaled.usPerFrame(), journaled.perFrame(journaled.syscr), journaled.perFrame(journaled.syscw)));
+			Log.i(TAG, String.format("  ephemeral:%.1f us/frame,syscr=%.2f/frame,syscw=%.2f/frame",
+				ephemeral.usPerFrame(), ephemeral.perFrame(ephemeral.syscr), ephemeral.perFrame(ephemeral.syscw)));
+			assertTrue(journaled.hasJournal);
+			assertFalse(ephemeral.hasJournal);
+			if ((journaled.syscw >= 0) && (ephemeral.syscw >= 0)) {
+				assertTrue("ephemeral mode should issue less write syscalls",
+					ephemeral.syscw < journaled.syscw);
+			}
+		}
+	}
+
+	private static Result run(@NonNull final File dir,
+		final boolean ephemeral, final int slotFileSize) throws IOException {
+
+		final Result result = new Result();
+		final TimeShiftDiskCache diskCache = TimeShiftDiskCache.open(dir,
+			ephemeral ? "ephemeral" : "journaled", 1, 2,
+			(long)FRAME_SIZE * MAX_FRAMES, MAX_DURATION, ephemeral);
+		diskCache.setSlotFileSize(slotFileSize);
+		final TimeShiftTrackCache cache = new TimeShiftTrackCache(diskCache, MAX_DURATION, null);
+		cache.setSyncTrack(0);
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(FRAME_SIZE);
+		try {
+			final long[] start = readProcIo();
+			final long t = System.nanoTime();
+			for (int i = 0; i < FRAMES; i++) {
+				buffer.clear();
+				cache.write(0, buffer, 0, FRAME_SIZE,
+					(i % KEY_FRAME_INTERVAL) == 0 ? 1 : 0, (i + 1) * FRAME_INTERVAL_US);
+			}
+			result.elapsedNs = System.nanoTime() - t;
+			final long[] end = readProcIo();
+			if ((start != null) && (end != null)) {
+				result.syscr = end[0] - start[0];
+				result.syscw = end[1] - start[1];
+			}
+			result.hasJournal = new File(cache.getDirectory(), TimeShiftDiskCache.JOURNAL_FILE).exists();
+		} finally {
+			cache.delete();
+		}
+		return result;
+	}
+
+	/**
+	 * /proc/self/ioからsyscrとsyscwを読み込む
+	 * @return {syscr, syscw}, 読み込めなければnull
+	 */
+	private static long[] readProcIo() {
+		final long[] result = {-1, -1};
+		try (final BufferedReader in = new BufferedReader(new FileReader(PROC_IO))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("syscr:")) {
+					result[0] = Long.parseLong(line.substring(6).trim());
+				} else if (line.startsWith("syscw:")) {
+					result[1] = Long.parseLong(line.substring(6).trim());
+				}
+			}
+		} catch (final IOException | NumberFormatException e) {
+			Log.w(TAG, e);
+			return null;
+		}
+		return (result[0] >= 0) && (result[1] >= 0) ? result : null;
+	}
+
+	@SuppressWarnings("deprecation")
+	private static Context getContext() {
+		return InstrumentationRegistry.getTargetContext();
+	}
+}
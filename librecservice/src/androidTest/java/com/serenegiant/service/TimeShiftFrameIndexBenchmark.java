@@ -0,0 +1,162 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * TimeShiftFrameIndexとTimeShiftDiskCacheが以前使っていた
+ * LinkedHashMap<Long, Entry>でのエントリー管理のメモリー割り当て量とGC回数を比較する
+ * 60fpsで10分間(36000フレーム)書き込み、5秒間(300フレーム)分を保持する想定で
+ * 追加・検索・最も古いエントリーの削除を繰り返す。
+ * 結果はlogcatへ出力する
+ */
+@RunWith(AndroidJUnit4.class)
+public class TimeShiftFrameIndexBenchmark {
+	private static final String TAG = TimeShiftFrameIndexBenchmark.class.getSimpleName();
+
+	private static final int FPS = 60;
+	private static final int FRAMES = FPS * 600;
+	private static final int WINDOW = FPS * 5;
+	private static final long FRAME_INTERVAL_US = 1000000L / FPS;
+	private static final int VALUE_COUNT = 2;
+	private static final int ROUNDS = 3;
+
+	/**
+	 * 変更前のTimeShiftDiskCacheのエントリーと同じフィールドを持つクラス
+	 */
+	private static final class Entry {
+		private final long key;
+		private final long[] lengths;
+		private boolean readable;
+		private Object currentEditor;
+		private long sequenceNumber;
+
+		private Entry(final long key) {
+			this.key = key;
+			this.lengths = new long[VALUE_COUNT];
+		}
+	}
+
+	/**
+	 * 計測結果
+	 */
+	private static final class Result {
+		private long allocSize;
+		private int allocCount;
+		private int gcCount;
+	}
+
+	@Test
+	public void compareAllocations() {
+		// JITの影響を減らすために1回目は捨てる
+		runIndex();
+		runMap();
+		for (int i = 0; i < ROUNDS; i++) {
+			final Result index = runIndex();
+			final Result map = runMap();
+			Log.i(TAG, String.format("round%d:frames=%d,window=%d", i, FRAMES, WINDOW));
+			Log.i(TAG, String.format("  TimeShiftFrameIndex:alloc=%d bytes/%d objects,gc=%d",
+				index.allocSize, index.allocCount, index.gcCount));
+			Log.i(TAG, String.format("  LinkedHashMap<Long, Entry>:alloc=%d bytes/%d objects,gc=%d",
+				map.allocSize, map.allocCount, map.gcCount));
+			assertTrue("index should allocate less than map",
+				index.allocCount < map.allocCount);
+		}
+	}
+
+	private static Result runIndex() {
+		final Result result = start();
+		final TimeShiftFrameIndex<Object> index = new TimeShiftFrameIndex<>(VALUE_COUNT);
+		for (int i = 1; i <= FRAMES; i++) {
+			final long key = i * FRAME_INTERVAL_US;
+			final int slot = index.add(key);
+			index.setLength(slot, 0, 5000);
+			index.setState(slot, TimeShiftFrameIndex.STATE_READABLE);
+			index.indexOf(key);
+			if (index.size() > WINDOW) {
+				index.remove(index.head());
+			}
+		}
+		return stop(result);
+	}
+
+	private static Result runMap() {
+		final Result result = start();
+		final LinkedHashMap<Long, Entry> map = new LinkedHashMap<>(0, 0.75f, false);
+		for (int i = 1; i <= FRAMES; i++) {
+			final long key = i * FRAME_INTERVAL_US;
+			final Entry entry = new Entry(key);
+			map.put(key, entry);
+			entry.lengths[0] = 5000;
+			entry.readable = true;
+			map.get(key);
+			if (map.size() > WINDOW) {
+				map.remove(map.keySet().iterator().next());
+			}
+		}
+		return stop(result);
+	}
+
+	@SuppressWarnings("deprecation")
+	private static Result start() {
+		final Result result = new Result();
+		Runtime.getRuntime().gc();
+		result.gcCount = gcCount();
+		Debug.resetThreadAllocCount();
+		Debug.resetThreadAllocSize();
+		Debug.startAllocCounting();
+		return result;
+	}
+
+	@SuppressWarnings("deprecation")
+	private static Result stop(final Result result) {
+		Debug.stopAllocCounting();
+		result.allocSize = Debug.getThreadAllocSize();
+		result.allocCount = Debug.getThreadAllocCount();
+		result.gcCount = gcCount() - result.gcCount;
+		return result;
+	}
+
+	/**
+	 * GCの実行回数を取得する, API<23なら常に0を返す
+	 * @return
+	 */
+	private static int gcCount() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+			final String count = Debug.getRuntimeStat("art.gc.gc-count");
+			if (count != null) {
+				try {
+					return Integer.parseInt(count);
+				} catch (final NumberFormatException e) {
+					Log.w(TAG, e);
+				}
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,97 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import androidx.annotation.NonNull;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * TimeShiftIOScheduler#startThreadが優先度クラス毎の専用スレッド数の上限を超えて
+ * スレッドを開始しないことを確認する
+ */
+@RunWith(AndroidJUnit4.class)
+public class TimeShiftIOSchedulerTest {
+	private static final long TIMEOUT_MS = 5000;
+
+	@Test
+	public void streamingThreadsAreLimitedPerPriority() throws InterruptedException {
+		final TimeShiftIOScheduler scheduler = new TimeShiftIOScheduler(
+			Executors.newFixedThreadPool(1), 1, new int[] {1, 1, 1}, new int[] {2, 1, 1});
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread t1 = scheduler.startThread(
+			TimeShiftIOScheduler.PRIORITY_LIVE_WRITE, "live1", block(release));
+		final Thread t2 = scheduler.startThread(
+			TimeShiftIOScheduler.PRIORITY_LIVE_WRITE, "live2", block(release));
+		final Thread t3 = scheduler.startThread(
+			TimeShiftIOScheduler.PRIORITY_EXPORT, "export1", block(release));
+		try {
+			assertEquals(2, scheduler.getStreamingCount(TimeShiftIOScheduler.PRIORITY_LIVE_WRITE));
+			assertEquals(1, scheduler.getStreamingCount(TimeShiftIOScheduler.PRIORITY_EXPORT));
+			assertRejected(scheduler, TimeShiftIOScheduler.PRIORITY_LIVE_WRITE);
+			assertRejected(scheduler, TimeShiftIOScheduler.PRIORITY_EXPORT);
+			// 上限に達していない優先度クラスは開始できる
+			final Thread t4 = scheduler.startThread(
+				TimeShiftIOScheduler.PRIORITY_MAINTENANCE, "maintenance1", block(release));
+			release.countDown();
+			t4.join(TIMEOUT_MS);
+		} finally {
+			release.countDown();
+			t1.join(TIMEOUT_MS);
+			t2.join(TIMEOUT_MS);
+			t3.join(TIMEOUT_MS);
+		}
+		// 終了したスレッドの分は再び開始できる
+		assertEquals(0, scheduler.getStreamingCount(TimeShiftIOScheduler.PRIORITY_LIVE_WRITE));
+		scheduler.startThread(TimeShiftIOScheduler.PRIORITY_LIVE_WRITE, "live3", block(release))
+			.join(TIMEOUT_MS);
+	}
+
+	private static void assertRejected(@NonNull final TimeShiftIOScheduler scheduler,
+		final int priority) {
+
+		final int count = scheduler.getStreamingCount(priority);
+		try {
+			scheduler.startThread(priority, "rejected", block(new CountDownLatch(0)));
+			fail("should reject streaming thread over limit");
+		} catch (final IllegalStateException e) {
+			// expected
+		}
+		assertEquals(count, scheduler.getStreamingCount(priority));
+	}
+
+	@NonNull
+	private static Runnable block(@NonNull final CountDownLatch latch) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,204 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.content.Context;
+import android.media.MediaCodec;
+
+import androidx.annotation.NonNull;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * TimeShiftTrackCacheへ映像と音声のptsが重なるように書き込んでも
+ * 各トラックのptsが書き込み時のまま読み込めることを確認する
+ */
+@RunWith(AndroidJUnit4.class)
+public class TimeShiftTrackCacheTest {
+	private static final long BASE_PTS_US = 1000000L;
+	private static final long VIDEO_INTERVAL_US = 33333L;
+	private static final long AUDIO_INTERVAL_US = 21333L;
+	/**
+	 * 音声を映像よりこれだけ遅れて書き込む[マイクロ秒]
+	 */
+	private static final long AUDIO_DELAY_US = 100000L;
+	private static final long DURATION_US = 3000000L;
+	private static final int KEY_FRAME_INTERVAL = 30;
+	private static final int FRAME_SIZE = 256;
+	private static final long MAX_SIZE = 16 * 1024 * 1024;
+	private static final long MAX_DURATION_MS = 60000L;
+
+	@Test
+	public void interleavedPtsDiskCache() throws IOException {
+		final File dir = getCacheDir("disk");
+		check(TimeShiftDiskCache.open(dir, "test", 1, 2, MAX_SIZE, MAX_DURATION_MS, true));
+	}
+
+	@Test
+	public void interleavedPtsSegmentCache() throws IOException {
+		check(TimeShiftSegmentCache.open(getCacheDir("segment"), MAX_SIZE, MAX_DURATION_MS));
+	}
+
+	@Test
+	public void interleavedPtsRingCache() throws IOException {
+		check(TimeShiftRingCache.open(getCacheDir("ring"), MAX_SIZE, MAX_DURATION_MS));
+	}
+
+	@Test
+	public void interleavedPtsMemoryCache() throws IOException {
+		check(TimeShiftMemoryCache.open(getCacheDir("memory"), MAX_SIZE, MAX_DURATION_MS, false));
+	}
+
+	@Test
+	public void samePtsInTrackIsShifted() throws IOException {
+		final TimeShiftTrackCache cache = new TimeShiftTrackCache(
+			TimeShiftMemoryCache.open(getCacheDir("same"), MAX_SIZE, MAX_DURATION_MS, false),
+			MAX_DURATION_MS, null);
+		try {
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(FRAME_SIZE);
+			assertTrue(cache.write(TimeShiftTrackCache.TRACK_VIDEO, buffer, 0, FRAME_SIZE,
+				MediaCodec.BUFFER_FLAG_KEY_FRAME, BASE_PTS_US));
+			assertTrue(cache.write(TimeShiftTrackCache.TRACK_AUDIO, buffer, 0, FRAME_SIZE,
+				0, BASE_PTS_US));
+			assertTrue(cache.write(TimeShiftTrackCache.TRACK_VIDEO, buffer, 0, FRAME_SIZE,
+				0, BASE_PTS_US));
+			final long[] expected = {BASE_PTS_US, BASE_PTS_US, BASE_PTS_US + 1};
+			final TimeShiftTrackCache.Cursor cursor = cache.openCursor("test");
+			try {
+				for (final long ptsUs: expected) {
+					final TimeShiftTrackCache.Snapshot snapshot = cursor.next();
+					assertNotNull(snapshot);
+					try {
+						assertEquals(ptsUs, snapshot.getPtsUs());
+					} finally {
+						snapshot.close();
+					}
+				}
+				assertNull(cursor.next());
+			} finally {
+				cursor.close();
+			}
+		} finally {
+			cache.delete();
+		}
+	}
+
+	/**
+	 * 映像と音声をptsが重なるように書き込んで、各トラックのptsとフレームデータが
+	 * 書き込み時のまま読み込めることを確認する
+	 * @param c
+	 * @throws IOException
+	 */
+	private static void check(@NonNull final ITimeShiftCache c) throws IOException {
+		final TimeShiftTrackCache cache = new TimeShiftTrackCache(c, MAX_DURATION_MS, null);
+		cache.setSyncTrack(TimeShiftTrackCache.TRACK_VIDEO);
+		final List<Long> videoPts = new ArrayList<>();
+		final List<Long> audioPts = new ArrayList<>();
+		try {
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(FRAME_SIZE);
+			long nextVideoUs = BASE_PTS_US;
+			long nextAudioUs = BASE_PTS_US;
+			int videoFrames = 0;
+			while (nextVideoUs < BASE_PTS_US + DURATION_US) {
+				// 音声は映像よりAUDIO_DELAY_US遅れて届く
+				while (nextAudioUs + AUDIO_DELAY_US <= nextVideoUs) {
+					write(cache, buffer, TimeShiftTrackCache.TRACK_AUDIO, 0, nextAudioUs);
+					audioPts.add(nextAudioUs);
+					nextAudioUs += AUDIO_INTERVAL_US;
+				}
+				write(cache, buffer, TimeShiftTrackCache.TRACK_VIDEO,
+					(videoFrames % KEY_FRAME_INTERVAL) == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0,
+					nextVideoUs);
+				videoPts.add(nextVideoUs);
+				nextVideoUs += VIDEO_INTERVAL_US;
+				videoFrames++;
+			}
+			final List<Long> readVideoPts = new ArrayList<>();
+			final List<Long> readAudioPts = new ArrayList<>();
+			final TimeShiftTrackCache.Cursor cursor = cache.openCursor("test");
+			try {
+				long lastKey = 0;
+				for (TimeShiftTrackCache.Snapshot snapshot = cursor.next();
+					snapshot != null; snapshot = cursor.next()) {
+
+					try {
+						assertTrue("keys should be increasing", snapshot.getKey() > lastKey);
+						lastKey = snapshot.getKey();
+						final ByteBuffer buf = snapshot.getByteBuffer(null);
+						assertEquals(snapshot.getTrack(), buf.getInt(0));
+						assertEquals(snapshot.getPtsUs(), buf.getLong(4));
+						if (snapshot.getTrack() == TimeShiftTrackCache.TRACK_VIDEO) {
+							readVideoPts.add(snapshot.getPtsUs());
+						} else {
+							readAudioPts.add(snapshot.getPtsUs());
+						}
+					} finally {
+						snapshot.close();
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+			assertEquals(videoPts, readVideoPts);
+			assertEquals(audioPts, readAudioPts);
+		} finally {
+			cache.delete();
+		}
+	}
+
+	/**
+	 * トラックIDとptsを先頭に書き込んだフレームデータをキャッシュへ書き込む
+	 * @param cache
+	 * @param buffer
+	 * @param track
+	 * @param flags
+	 * @param ptsUs
+	 * @throws IOException
+	 */
+	private static void write(@NonNull final TimeShiftTrackCache cache,
+		@NonNull final ByteBuffer buffer,
+		final int track, final int flags, final long ptsUs) throws IOException {
+
+		buffer.clear();
+		buffer.putInt(0, track);
+		buffer.putLong(4, ptsUs);
+		assertTrue(cache.write(track, buffer, 0, FRAME_SIZE, flags, ptsUs));
+	}
+
+	@NonNull
+	private static File getCacheDir(@NonNull final String name) {
+		final File dir = new File(getContext().getCacheDir(),
+			TimeShiftTrackCacheTest.class.getSimpleName() + File.separator + name);
+		assertTrue(dir.isDirectory() || dir.mkdirs());
+		return dir;
+	}
+
+	@SuppressWarnings("deprecation")
+	private static Context getContext() {
+		return InstrumentationRegistry.getTargetContext();
+	}
+}
@@ -61,6 +61,10 @@ public abstract class AbstractRecorderService extends BaseService {
 	private static final int NOTIFICATION = R.string.notification_service;
 	protected static final long TIMEOUT_MS = 10;
 	protected static final long TIMEOUT_USEC = TIMEOUT_MS * 1000L;	// 10ミリ秒
+	/**
+	 * 録音時のビットレート[ビット/秒]
+	 */
+	protected static final int AUDIO_BIT_RATE = 64000;	// FIXMEパラメータにする
 
 	// ステート定数, XXX 継承クラスは100以降を使う
 	public static final int STATE_UNINITIALIZED = -1;
@@ -85,7 +89,7 @@ public abstract class AbstractRecorderService extends BaseService {
 		= new CopyOnWriteArraySet<StateChangeListener>();
 	private VideoConfig mVideoConfig;
 	private Intent mIntent;
-	private int mState = STATE_UNINITIALIZED;
+	private volatile int mState = STATE_UNINITIALIZED;
 	private boolean mIsBind;
 	private volatile boolean mIsEos;
 	private long mStartTime;
@@ -406,12 +410,11 @@ public abstract class AbstractRecorderService extends BaseService {
 
 	/**
 	 * 録画サービスの現在の状態フラグを取得
+	 * mStateはvolatileなのでロックせずに取得する, 状態の変更はmSyncをロックして#setStateで行う
 	 * @return
 	 */
 	protected int getState() {
-		synchronized (mSync) {
-			return mState;
-		}
+		return mState;
 	}
 	
 	/**
@@ -661,7 +664,7 @@ public abstract class AbstractRecorderService extends BaseService {
 		format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
 		format.setInteger(MediaFormat.KEY_CHANNEL_MASK,
 			mChannelCount == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO);
-		format.setInteger(MediaFormat.KEY_BIT_RATE, 64000/*FIXMEパラメータにする*/);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BIT_RATE);
 		format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, mChannelCount);
 		// MediaCodecに適用するパラメータを設定する。
 		// 誤った設定をするとMediaCodec#configureが復帰不可能な例外を生成する
@@ -818,6 +821,35 @@ public abstract class AbstractRecorderService extends BaseService {
 		@NonNull final MediaCodec.BufferInfo bufferInfo, final long ptsUs)
 			throws IOException;
 
+	/**
+	 * 映像エンコーダーの出力フォーマットを取得
+	 * @return 映像エンコーダーの出力フォーマットを受け取っていなければnull
+	 */
+	@Nullable
+	protected MediaFormat getVideoFormat() {
+		return mVideoFormat;
+	}
+
+	/**
+	 * 音声エンコーダーの出力フォーマットを取得
+	 * @return 音声エンコーダーの出力フォーマットを受け取っていなければnull
+	 */
+	@Nullable
+	protected MediaFormat getAudioFormat() {
+		return mAudioFormat;
+	}
+
+	/**
+	 * エンコーダーの出力フォーマットが変更された時の処理
+	 * MediaReaperのスレッド上でSTATE_READYへ移行する前に呼ばれる
+	 * mSyncをロックしていないので必要に応じでロックすること
+	 * @param reaper
+	 * @param format
+	 */
+	protected void onFormatChanged(@NonNull final MediaReaper reaper,
+		@NonNull final MediaFormat format) {
+	}
+
 	/**
 	 * MediaReaperからのコールバックリスナーの実装
 	 */
@@ -852,6 +884,7 @@ public abstract class AbstractRecorderService extends BaseService {
 				mAudioFormat = format;
 				break;
 			}
+			AbstractRecorderService.this.onFormatChanged(reaper, format);
 			if ((!mUseVideo || (mVideoFormat != null))
 				&& (!mUseAudio || (mAudioFormat != null))) {
 
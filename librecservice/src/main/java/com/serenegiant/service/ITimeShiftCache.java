@@ -0,0 +1,254 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * タイムシフト録画用のエンコード済みフレームキャッシュのインターフェース
+ * キーはフレームのpresentationTimeUs, 値のインデックス0がフレームデータ、
+ * インデックス1がBufferInfo#flags
+ * TimeShiftRecServiceはこのインターフェース経由でキャッシュへアクセスするので
+ * ストレージエンジンを差し替えることができる
+ * 実装はフレーム毎のファイル(TimeShiftDiskCache), セグメントログ(TimeShiftSegmentCache),
+ * mmapしたリングバッファ(TimeShiftRingCache), メモリー上(TimeShiftMemoryCache)と
+ * メモリーとストレージの2段構成(TimeShiftTieredCache)
+ */
+interface ITimeShiftCache extends Closeable {
+	/**
+	 * キャッシュエントリーへの書き込み用インターフェース
+	 */
+	public interface Editor {
+		/**
+		 * Sets the value at {@code index} to {@code buffer}.
+		 * @param index
+		 * @param buffer
+		 * @param offset
+		 * @param size
+		 * @throws IOException
+		 */
+		public void set(final int index,
+			final ByteBuffer buffer, final int offset, final int size)
+				throws IOException;
+
+		/**
+		 * Sets the value at {@code index} to {@code value}.
+		 * @param index
+		 * @param value
+		 * @throws IOException
+		 */
+		public void set(final int index, final int value) throws IOException;
+
+		/**
+		 * Commits this edit so it is visible to readers.
+		 * @throws FrameDroppedException 空き領域を確保できずにフレームデータを保持できなかった時
+		 * @throws IOException
+		 */
+		public void commit() throws IOException;
+
+		/**
+		 * Aborts this edit.
+		 * @throws IOException
+		 */
+		public void abort() throws IOException;
+	}
+
+	/**
+	 * 読み込み中のエントリーや低水位マーク以降のエントリーのために空き領域を確保できず
+	 * フレームデータを破棄した時にEditor#commitが投げる例外
+	 * キャッシュ自体は引き続き使えるので、呼び出し元はそのフレームを公開せずに書き込みを続ける
+	 */
+	public static class FrameDroppedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public FrameDroppedException(final String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * キャッシュエントリーの読み込み用インターフェース
+	 */
+	public interface Snapshot extends Closeable {
+		/**
+		 * キー(presentationTimeUs)を取得
+		 * @return
+		 */
+		public long getKey();
+
+		/**
+		 * 指定したインデックスの値のサイズ[バイト]を取得
+		 * @param index
+		 * @return
+		 * @throws IOException
+		 */
+		public int available(final int index) throws IOException;
+
+		/**
+		 * 指定したインデックスの値をバイト配列として取得
+		 * @param index
+		 * @param dst nullまたはサイズが足りなければ新しいバイト配列を生成する
+		 * @return
+		 * @throws IOException
+		 */
+		public byte[] getBytes(final int index, final byte[] dst) throws IOException;
+
+		/**
+		 * 指定したインデックスの値をintとして取得
+		 * @param index
+		 * @return
+		 * @throws IOException
+		 */
+		public int getInt(final int index) throws IOException;
+
+		/**
+		 * 指定したインデックスの値をByteBufferとして取得
+		 * メモリー上に値を保持している実装はコピーせずに内部バッファの
+		 * 読み込み専用のビューを返すことがある。その場合は#closeを呼ぶまで有効。
+		 * それ以外の実装はdstへコピーする
+		 * @param index
+		 * @param dst nullまたは容量が足りなければ新しいByteBufferを生成する
+		 * @return position=0, limit=値のサイズのByteBuffer
+		 * @throws IOException
+		 */
+		@NonNull
+		public ByteBuffer getByteBuffer(final int index,
+			@Nullable final ByteBuffer dst) throws IOException;
+
+		@Override
+		public void close();
+	}
+
+	/**
+	 * Returns the directory where this cache stores its data.
+	 */
+	public File getDirectory();
+
+	/**
+	 * Returns the maximum number of bytes that this cache should use to store
+	 * its data.
+	 */
+	public long maxSize();
+
+	/**
+	 * 最大サイズを変更する
+	 * 現在のサイズが新しい最大サイズを超えていれば古いエントリーから削除する
+	 * 最大サイズを変更できない実装では無視する
+	 * @param maxSize 最大サイズ[バイト], 0より大きいこと
+	 */
+	public void setMaxSize(final long maxSize);
+
+	/**
+	 * Returns the number of bytes currently being used to store the values in
+	 * this cache.
+	 */
+	public long size();
+
+	/**
+	 * 最も古いエントリーのキーを取得
+	 * @return エントリーが無ければ0
+	 */
+	public long oldestKey();
+
+	/**
+	 * 最も新しいエントリーのキーを取得
+	 * 最も古いエントリーのキーとの差が保持している時間[マイクロ秒]になる
+	 * @return エントリーが無ければ0
+	 */
+	public long newestKey();
+
+	/**
+	 * 指定したキーより新しいエントリーのうち最も古いエントリーのキーを取得
+	 * エントリーを削除せずに古い順に読み込むときに使う
+	 * @param key
+	 * @return 該当するエントリーが無ければ0
+	 */
+	public long nextKey(final long key);
+
+	/**
+	 * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+	 * exist is not currently readable.
+	 */
+	public Snapshot get(final long key) throws IOException;
+
+	/**
+	 * 最も古いエントリーのスナップショットを取得
+	 * @return
+	 * @throws IOException
+	 */
+	public Snapshot getOldest() throws IOException;
+
+	/**
+	 * Returns an editor for the entry named {@code key}, or null if another
+	 * edit is in progress.
+	 */
+	public Editor edit(final long key) throws IOException;
+
+	/**
+	 * Drops the entry for {@code key} if it exists and can be removed.
+	 * @return true if an entry was removed.
+	 */
+	public boolean remove(final long key) throws IOException;
+
+	/**
+	 * 指定したキーより古いエントリーを全て削除する
+	 * キーフレーム単位で削除する設定のときは続けて次のキーフレームの手前まで削除する
+	 * @param key
+	 * @return 削除したエントリー数
+	 * @throws IOException
+	 */
+	public int removeBefore(final long key) throws IOException;
+
+	/**
+	 * 最大サイズ/最大時間を超えて古いエントリーを削除するときに
+	 * キーフレーム単位(GOP単位)で削除するかどうかを設定
+	 * trueにすると削除後の先頭のエントリーが常にキーフレーム(BUFFER_FLAG_KEY_FRAME)になる
+	 * 値のインデックス1にBufferInfo#flagsを書き込む映像用のキャッシュで使う
+	 * #removeで明示的に削除したときは次のキーフレームまでは削除しない
+	 * @param aligned
+	 */
+	public void setKeyFrameAligned(final boolean aligned);
+
+	/**
+	 * 低水位マークを設定する
+	 * 最大サイズ/最大時間を超えても低水位マーク以降のエントリーは削除しない
+	 * 読み込み中のカーソルがまだ必要とするエントリーを保持するために使う
+	 * #remove/#removeBeforeで明示的に削除するときは制限しない
+	 * @param key 0なら制限しない
+	 */
+	public void setLowWaterMark(final long key);
+
+	/**
+	 * Returns true if this cache has been closed.
+	 */
+	public boolean isClosed();
+
+	/**
+	 * Force buffered operations to the filesystem.
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * Closes the cache and deletes all of its stored values.
+	 */
+	public void delete() throws IOException;
+}
@@ -16,6 +16,8 @@ package com.serenegiant.service;
  */
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.documentfile.provider.DocumentFile;
 
 import java.io.IOException;
 
@@ -33,6 +35,40 @@ public interface ITimeShiftRecorder extends IServiceRecorder {
 	 */
 	public void stopTimeShift();
 
+	/**
+	 * 指定した時間だけ遡って録画開始
+	 * @param output 出力ファイル
+	 * @param lookBackMs 録画開始時に遡る時間[ミリ秒], 負ならキャッシュしている全てのフレームデータから録画する
+	 * @throws IllegalStateException
+	 * @throws IOException
+	 */
+	public void start(@Nullable final DocumentFile output, final long lookBackMs)
+		throws IllegalStateException, IOException;
+
+	/**
+	 * キャッシュしているフレームデータのうち指定した範囲をmp4ファイルへ書き出す
+	 * タイムシフトバッファリングや録画は継続する
+	 * @param output 出力ファイル
+	 * @param fromPtsUs 開始時刻[マイクロ秒], System.nanoTime() / 1000と同じ時刻系
+	 * @param toPtsUs 終了時刻[マイクロ秒], System.nanoTime() / 1000と同じ時刻系
+	 * @throws IllegalStateException
+	 * @throws IOException
+	 */
+	public void exportClip(@NonNull final DocumentFile output,
+		final long fromPtsUs, final long toPtsUs)
+			throws IllegalStateException, IOException;
+
+	/**
+	 * 直近の指定した時間分のフレームデータをmp4ファイルへ書き出す
+	 * タイムシフトバッファリングや録画は継続する
+	 * @param output 出力ファイル
+	 * @param durationMs 書き出す時間[ミリ秒]
+	 * @throws IllegalStateException
+	 * @throws IOException
+	 */
+	public void exportLast(@NonNull final DocumentFile output, final long durationMs)
+		throws IllegalStateException, IOException;
+
 	/**
 	 * タイムシフトバッファリング中かどうかを取得
 	 * @return
@@ -48,6 +84,15 @@ public interface ITimeShiftRecorder extends IServiceRecorder {
 	public void setCacheSize(final int cacheSize)
 		throws IllegalStateException, IllegalArgumentException;
 
+	/**
+	 * メモリー上に保持するキャッシュサイズを指定
+	 * @param memoryCacheSize 0ならメモリー上には保持しない
+	 * @throws IllegalStateException
+	 * @throws IllegalArgumentException
+	 */
+	public void setMemoryCacheSize(final int memoryCacheSize)
+		throws IllegalStateException, IllegalArgumentException;
+
 	/**
 	 * キャッシュ場所を指定, パーミッションが有ってアプリから書き込めること
 	 * @param cacheDir
@@ -167,7 +167,9 @@ public class PostMuxRecService extends AbstractRecorderService {
 			releaseEncoder();
 			if (muxer != null) {
 				setState(STATE_MUXING);
-				queueEvent(new Runnable() {
+				// 中間ファイルからの書き出しは共有I/Oスケジューラー上で録画/クリップの書き出しと同じ優先度で行う
+				TimeShiftIOScheduler.getInstance().execute(
+					TimeShiftIOScheduler.PRIORITY_EXPORT, "PostMuxBuild", new Runnable() {
 					@Override
 					public void run() {
 						if (DEBUG) Log.v(TAG, "internalStop:start build");
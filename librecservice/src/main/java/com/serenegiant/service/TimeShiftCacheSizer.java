@@ -0,0 +1,150 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.util.Log;
+
+/**
+ * タイムシフト用キャッシュの最大サイズをビットレートから自動で決めるためのヘルパークラス
+ * 最初は設定したビットレートと最大タイムシフト時間から最大サイズを見積もり、
+ * バッファリング中は実際にエンコードされたデータ量を一定時間毎に集計して
+ * 直近の最大タイムシフト時間分のデータ量に余裕分を加えたサイズへ見直す
+ */
+final class TimeShiftCacheSizer {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = TimeShiftCacheSizer.class.getSimpleName();
+
+	/**
+	 * 実際のデータ量を集計する間隔[マイクロ秒]
+	 */
+	private static final long MEASURE_INTERVAL_US = 1000000L;
+	/**
+	 * キーフレームの間隔[ミリ秒]
+	 * キャッシュはキーフレーム単位で削除するので最大タイムシフト時間にこの分を加えて見積もる
+	 */
+	private static final long KEY_FRAME_INTERVAL_MS = 1000L;
+	/**
+	 * 最大サイズを変更する時の最小変化率, これより小さい変化では変更しない
+	 */
+	private static final float MIN_CHANGE_RATIO = 0.1f;
+	/**
+	 * 最大サイズの下限[バイト]
+	 */
+	static final long MIN_SIZE = 1024 * 1024;
+
+	private final long maxShiftMs;
+	private final float margin;
+	private final long upperLimit;
+	/**
+	 * 集計間隔毎のデータ量[バイト], 最大タイムシフト時間+キーフレーム間隔分を保持する
+	 */
+	private final long[] mWindowBytes;
+	private int mWindowIx;
+	private int mWindowCount;
+	private long mWindowStartUs;
+	private long mCurrentSize;
+
+	/**
+	 * コンストラクタ
+	 * @param maxShiftMs 最大タイムシフト時間[ミリ秒]
+	 * @param margin 見積もったデータ量に加える余裕分の割合, 0.25なら25%
+	 * @param upperLimit 最大サイズの上限[バイト]
+	 */
+	TimeShiftCacheSizer(final long maxShiftMs, final float margin, final long upperLimit) {
+		this.maxShiftMs = maxShiftMs;
+		this.margin = margin;
+		this.upperLimit = Math.max(MIN_SIZE, upperLimit);
+		final long windowUs = (maxShiftMs + KEY_FRAME_INTERVAL_MS) * 1000L;
+		mWindowBytes = new long[(int)((windowUs + MEASURE_INTERVAL_US - 1) / MEASURE_INTERVAL_US)];
+	}
+
+	/**
+	 * 設定したビットレートから最大サイズを見積もる
+	 * @param videoBitrate 映像のビットレート[ビット/秒], 録画しないときは0
+	 * @param audioBitrate 音声のビットレート[ビット/秒], 録音しないときは0
+	 * @return 最大サイズ[バイト]
+	 */
+	synchronized long estimate(final int videoBitrate, final int audioBitrate) {
+		final long bytesPerSec = ((long)videoBitrate + audioBitrate) / 8;
+		mCurrentSize = clamp(bytesPerSec * (maxShiftMs + KEY_FRAME_INTERVAL_MS) / 1000L);
+		if (DEBUG) Log.v(TAG, "estimate:video=" + videoBitrate + ",audio=" + audioBitrate
+			+ ",size=" + mCurrentSize);
+		return mCurrentSize;
+	}
+
+	/**
+	 * 現在の最大サイズを取得
+	 * @return
+	 */
+	synchronized long getSize() {
+		return mCurrentSize;
+	}
+
+	/**
+	 * エンコードされたフレームデータのサイズを集計して最大サイズを見直す
+	 * 集計間隔毎に直近の最大タイムシフト時間分のデータ量を求めて、
+	 * 現在の最大サイズとの差が大きいときだけ新しい最大サイズを返す
+	 * 集計したデータ量が最大タイムシフト時間分に満たない間は大きくするだけで小さくはしない
+	 * @param bytes フレームデータのサイズ[バイト]
+	 * @param ptsUs フレームデータのpts[マイクロ秒]
+	 * @return 最大サイズを変更するときは新しい最大サイズ[バイト], 変更しないときは0
+	 */
+	synchronized long update(final int bytes, final long ptsUs) {
+		if (mWindowStartUs == 0) {
+			mWindowStartUs = ptsUs;
+		}
+		mWindowBytes[mWindowIx] += bytes;
+		final long elapsedUs = ptsUs - mWindowStartUs;
+		if (elapsedUs < MEASURE_INTERVAL_US) {
+			return 0;
+		}
+		// 集計間隔が終わったので次の集計間隔へ進める
+		mWindowStartUs = ptsUs;
+		final boolean filled = ++mWindowCount >= mWindowBytes.length;
+		long total = 0;
+		for (final long b: mWindowBytes) {
+			total += b;
+		}
+		mWindowIx = (mWindowIx + 1) % mWindowBytes.length;
+		mWindowBytes[mWindowIx] = 0;
+		final long needed;
+		if (filled) {
+			needed = total;
+		} else {
+			// まだ最大タイムシフト時間分を集計していないので集計済みの時間から外挿する
+			needed = total * mWindowBytes.length / mWindowCount;
+		}
+		final long target = clamp(needed);
+		if ((Math.abs(target - mCurrentSize) < mCurrentSize * MIN_CHANGE_RATIO)
+			|| (!filled && (target < mCurrentSize))) {
+
+			return 0;
+		}
+		if (DEBUG) Log.v(TAG, "update:" + mCurrentSize + "->" + target);
+		mCurrentSize = target;
+		return target;
+	}
+
+	/**
+	 * 余裕分を加えて下限〜上限の範囲に収める
+	 * @param bytes
+	 * @return
+	 */
+	private long clamp(final long bytes) {
+		final long size = (long)(bytes * (1.0f + margin));
+		return Math.min(upperLimit, Math.max(MIN_SIZE, size));
+	}
+}
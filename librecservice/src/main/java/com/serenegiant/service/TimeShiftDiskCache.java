@@ -19,43 +19,37 @@ package com.serenegiant.service;
  * limitations under the License.
  */
 
+import android.media.MediaCodec;
 import android.os.SystemClock;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import android.util.Log;
 
 import com.serenegiant.nio.CharsetsUtils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.lang.reflect.Array;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.UUID;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /**
  * *****************************************************************************
@@ -106,8 +100,13 @@ import java.util.concurrent.TimeUnit;
  * an error occurs while writing a cache value, the edit will fail silently.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
+ * <p>
+ * <p>エフェメラルモードで開いた時はジャーナルを使わずにメモリー上のインデックスだけで
+ * エントリーを管理する。ジャーナルへの書き込み/フラッシュ, ジャーナルの再構築および
+ * バックグラウンドでのクリーンアップを行わないので開き直しても前回の内容は引き継げない。
+ * 閉じた時はキャッシュディレクトリを削除する。
  */
-final class TimeShiftDiskCache implements Closeable {
+final class TimeShiftDiskCache implements ITimeShiftCache {
 	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
 	private static final String TAG =  TimeShiftDiskCache.class.getSimpleName();
 
@@ -115,14 +114,40 @@ final class TimeShiftDiskCache implements Closeable {
 	static final String JOURNAL_FILE_TMP = "journal.tmp";
 	static final String MAGIC = "com.serenegiant.io.TimeShiftDiskCache";
 	static final String VERSION_1 = "1";
+	static final String VERSION_2 = "2";
 	static final long ANY_SEQUENCE_NUMBER = -1;
 	private static final String CLEAN = "CLEAN";
 	private static final String DIRTY = "DIRTY";
 	private static final String REMOVE = "REMOVE";
 	private static final String READ = "READ";
+	// VERSION_2のジャーナルレコードの種類
+	private static final byte OP_CLEAN = 1;
+	private static final byte OP_DIRTY = 2;
+	private static final byte OP_REMOVE = 3;
+	private static final byte OP_READ = 4;
+	/**
+	 * エントリーの値を保存するスロットファイルの番号, key(8バイト) fileId(varint)
+	 */
+	private static final byte OP_SLOT = 5;
+	/**
+	 * 再利用するスロットファイルのファイル名の接頭辞
+	 */
+	static final String SLOT_FILE_PREFIX = "slot-";
+	/**
+	 * 再利用のために保持する未使用のスロットファイル数の最小値
+	 */
+	private static final int MIN_FREE_SLOT_FILES = 64;
+	/**
+	 * 64ビット値をvarintで書き込んだときの最大バイト数
+	 */
+	private static final int MAX_VARINT_LENGTH = 10;
 
 	private static final Charset UTF_8 = CharsetsUtils.UTF8;
 	private static final int IO_BUFFER_SIZE = 8 * 1024;
+	/**
+	 * BufferInfo#flagsを保持する値のインデックス
+	 */
+	private static final int INDEX_FLAGS = 1;
 
     /*
 	 * This cache uses a journal file named "journal". A typical journal file
@@ -162,20 +187,104 @@ final class TimeShiftDiskCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * VERSION_2 journals share the same five header lines, but the records
+     * following the header are binary instead of text:
+     *     op(1 byte) key(8 bytes, big endian) [lengths(varint) x valueCount] crc32(4 bytes)
+     * The lengths are only present for CLEAN records. SLOT records carry a
+     * single varint, the number of the slot file holding the entry's values,
+     * and precede the DIRTY record of that entry. The CRC32 covers every
+     * byte of the record before it. A truncated or corrupt record at the tail
+     * of the journal (e.g. from a crash while writing) ends the replay and the
+     * journal is rebuilt. VERSION_1 journals are still readable and are
+     * converted to VERSION_2 when the cache is opened.
      */
 
 	private final File directory;
 	private final File journalFile;
 	private final File journalFileTmp;
 	private final int appVersion;
-	private final long maxSize;
+	/**
+	 * 最大サイズ[バイト], #setMaxSizeで変更できる
+	 */
+	private volatile long maxSize;
 	private final int valueCount;
-	private final long maxDurationMs;
+	/**
+	 * 最大保持時間[マイクロ秒], キーと同じ時間軸(getInputPTSUs)で比較する
+	 */
+	private final long maxDurationUs;
 	private long size = 0;
-	private Writer journalWriter;
-	private final LinkedHashMap<Long, Entry> mEntries
-			= new LinkedHashMap<>(0, 0.75f, false/*accessOrder*/);   // 挿入順
+	/**
+	 * ジャーナル書き込み用, エフェメラルモードの時は常にnull
+	 */
+	private JournalWriter journalWriter;
+	/**
+	 * ジャーナルを使わないエフェメラルモードかどうか
+	 */
+	private final boolean ephemeral;
+	/**
+	 * ジャーナルのグループコミットの時間窓[ミリ秒]
+	 * 0ならグループコミットせずにエントリーの編集開始毎にジャーナルをファイルへ書き出す
+	 */
+	private long journalCommitWindowMs;
+	/**
+	 * ジャーナルのグループコミットのサイズ窓[バイト]
+	 * バッファリング中のジャーナルがこのサイズを超えるとファイルへ書き出す, 0なら時間窓のみ
+	 */
+	private int journalCommitWindowBytes;
+	/**
+	 * ジャーナルをファイルへ書き出す時にFileChannel#forceでストレージへ同期するかどうか
+	 */
+	private boolean journalForce;
+	/**
+	 * 最後にジャーナルをファイルへ書き出した時刻[ミリ秒]
+	 */
+	private long lastJournalCommitMs;
+	private boolean closed;
+	/**
+	 * エントリーのインデックス, キーの昇順(=挿入順)
+	 */
+	private final TimeShiftFrameIndex<Editor> mIndex;
+	/**
+	 * ジャーナル書き込み用の作業用配列
+	 */
+	private final long[] mWorkLengths;
 	private int redundantOpCount;
+	/**
+	 * 古いエントリーをキーフレーム単位で削除するかどうか
+	 */
+	private boolean keyFrameAligned;
+	/**
+	 * 低水位マーク, これ以降のエントリーは最大サイズ/最大時間を超えても削除しない
+	 */
+	private long lowWaterMark;
+	/**
+	 * スロットファイルを再利用する時に先頭の値のファイルをあらかじめ確保するサイズ[バイト]
+	 * 0ならスロットファイルを再利用せずにエントリー毎にファイルを生成/削除する
+	 */
+	private int slotFileSize;
+	/**
+	 * 次に生成するスロットファイルの番号
+	 */
+	private int nextFileId;
+	/**
+	 * 未使用のスロットファイルの番号
+	 */
+	private int[] mFreeFileIds = new int[MIN_FREE_SLOT_FILES];
+	/**
+	 * スロットファイルを解放した時点のジャーナルの書き込み位置
+	 * ジャーナルのこの位置までファイルへ書き出すまではスロットファイルを上書きしない
+	 */
+	private long[] mFreeJournalPositions = new long[MIN_FREE_SLOT_FILES];
+	private int mFreeFileCount;
+	/**
+	 * スロットファイル毎の読み込み中のスナップショット数, 0のスロットファイルだけを再利用する
+	 */
+	private int[] mFileReaders = new int[MIN_FREE_SLOT_FILES];
+	/**
+	 * 削除したエントリーのファイルを保守処理として削除速度を制限しながらまとめて削除する
+	 */
+	private final TimeShiftReclaimer mReclaimer = new TimeShiftReclaimer(TAG);
 
 	/**
 	 * To differentiate between old and current snapshots, each entry is given
@@ -184,24 +293,6 @@ final class TimeShiftDiskCache implements Closeable {
 	 */
 	private long nextSequenceNumber = 0;
 
-	/* From java.util.Arrays */
-	@SuppressWarnings("unchecked")
-	private static <T> T[] copyOfRange(final T[] original, final int start, final int end) {
-		final int originalLength = original.length; // For exception priority compatibility.
-		if (start > end) {
-			throw new IllegalArgumentException();
-		}
-		if (start < 0 || start > originalLength) {
-			throw new ArrayIndexOutOfBoundsException();
-		}
-		final int resultLength = end - start;
-		final int copyLength = Math.min(resultLength, originalLength - start);
-		final T[] result = (T[]) Array
-				.newInstance(original.getClass().getComponentType(), resultLength);
-		System.arraycopy(original, start, result, 0, copyLength);
-		return result;
-	}
-
 	/**
 	 * Returns the remainder of 'reader' as a string, closing it when done.
 	 */
@@ -223,15 +314,16 @@ final class TimeShiftDiskCache implements Closeable {
 	 * Returns the ASCII characters up to but not including the next "\r\n", or "\n".
 	 * @throws EOFException if the stream is exhausted before the next newline character.
 	 */
-	private static String readAsciiLine(final InputStream in) throws IOException {
+	private static String readAsciiLine(final ByteBuffer in) throws IOException {
 		// TODO: support UTF-8 here instead
 
 		final StringBuilder result = new StringBuilder(80);
 		for ( ; ; ) {
-			int c = in.read();
-			if (c == -1) {
+			if (!in.hasRemaining()) {
 				throw new EOFException();
-			} else if (c == '\n') {
+			}
+			final int c = in.get() & 0xff;
+			if (c == '\n') {
 				break;
 			}
 
@@ -244,6 +336,25 @@ final class TimeShiftDiskCache implements Closeable {
 		return result.toString();
 	}
 
+	/**
+	 * varint(LEB128)で書き込まれた64ビットの符号無し整数を読み込む
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 * @throws BufferUnderflowException
+	 */
+	private static long readVarLong(@NonNull final ByteBuffer in) throws IOException {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = in.get();
+			result |= (long)(b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new IOException("malformed varint");
+	}
+
 	/**
 	 * Closes 'closeable', ignoring any checked exceptions. Does nothing if 'closeable' is null.
 	 */
@@ -286,44 +397,65 @@ final class TimeShiftDiskCache implements Closeable {
 	}
 
 	/**
-	 * This cache uses a single background thread to evict entries.
+	 * This cache evicts entries on the shared I/O scheduler as a maintenance task.
+	 */
+	private final TimeShiftIOScheduler mScheduler = TimeShiftIOScheduler.getInstance();
+	/**
+	 * cleanupTaskを実行待ちキューへ追加済みかどうか, 実行待ちの間は重複して追加しない
 	 */
-	private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
-			60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-	private final Callable<Void> cleanupCallable = new Callable<Void>() {
+	private boolean cleanupQueued;
+	private final Runnable cleanupTask = new Runnable() {
 		@Override
-		public Void call() throws Exception {
+		public void run() {
 			synchronized (TimeShiftDiskCache.this) {
-				if (journalWriter == null) {
-					return null; // closed
+				cleanupQueued = false;
+				if (closed) {
+					return; // closed
 				}
-				trimEntries();
-				if (journalRebuildRequired()) {
-					rebuildJournal();
-					redundantOpCount = 0;
+				try {
+					trimEntries();
+					if (journalRebuildRequired()) {
+						rebuildJournal();
+						redundantOpCount = 0;
+					}
+				} catch (final IOException e) {
+					Log.w(TAG, e);
 				}
 			}
-			return null;
 		}
 	};
 
+	/**
+	 * 古いエントリーの削除とジャーナルの再構築を共有I/Oスケジューラー上で行う
+	 */
+	private synchronized void scheduleCleanup() {
+		if (!cleanupQueued) {
+			cleanupQueued = true;
+			mScheduler.execute(TimeShiftIOScheduler.PRIORITY_MAINTENANCE,
+				"TimeShiftDiskCache#cleanup", cleanupTask);
+		}
+	}
+
 	/**
 	 * コンストラクタ
 	 * @param directory
+	 * @param sessionId キャッシュディレクトリとして使うdirectory内のサブディレクトリ名
 	 * @param appVersion
 	 * @param valueCount
 	 * @param maxSize
 	 * @param maxDurationMs
+	 * @param ephemeral ジャーナルを使わないエフェメラルモードかどうか
 	 * @throws IOException
 	 */
-	private TimeShiftDiskCache(final File directory,
+	private TimeShiftDiskCache(final File directory, @NonNull final String sessionId,
 		final int appVersion, final int valueCount,
-		final long maxSize, final long maxDurationMs) throws IOException {
+		final long maxSize, final long maxDurationMs,
+		final boolean ephemeral) throws IOException {
 
 		if (!directory.isDirectory()) {
 			throw new IOException("specific path is not a directory");
 		}
-		final File dir = new File(directory, UUID.randomUUID().toString());
+		final File dir = new File(directory, sessionId);
 		if (!dir.exists()) {
 			if (!dir.mkdirs()) {
 				throw new IOException("failed to create dir/parent dirs");
@@ -335,11 +467,14 @@ final class TimeShiftDiskCache implements Closeable {
 		this.journalFileTmp = new File(dir, JOURNAL_FILE_TMP);
 		this.valueCount = valueCount;
 		this.maxSize = maxSize;
-		this.maxDurationMs = maxDurationMs;
+		this.maxDurationUs = maxDurationMs * 1000L;
+		this.ephemeral = ephemeral;
+		mIndex = new TimeShiftFrameIndex<>(valueCount);
+		mWorkLengths = new long[valueCount];
 	}
 
 	/**
-	 * Opens the cache in {@code directory}, creating a cache if none exists there.
+	 * Opens the cache in a new random sub directory of {@code directory}.
 	 *
 	 * @param directory   a writable directory
 	 * @param appVersion
@@ -348,11 +483,58 @@ final class TimeShiftDiskCache implements Closeable {
 	 * @param maxDuration the maximum time as mills seconds that this cache will hold
 	 * @throws IOException if reading or writing the cache directory fails
 	 */
-	@SuppressWarnings("ResultOfMethodCallIgnored")
 	public static TimeShiftDiskCache open(final File directory,
 		final int appVersion, final int valueCount,
 		final long maxSize, final long maxDuration) throws IOException {
 
+		return open(directory, UUID.randomUUID().toString(),
+			appVersion, valueCount, maxSize, maxDuration);
+	}
+
+	/**
+	 * Opens the cache in the sub directory {@code sessionId} of {@code directory},
+	 * creating a cache if none exists there.
+	 * 同じセッションIDで開き直すとジャーナルを読み込んで前回の内容を引き継ぐ
+	 *
+	 * @param directory   a writable directory
+	 * @param sessionId   キャッシュディレクトリとして使うサブディレクトリ名
+	 * @param appVersion
+	 * @param valueCount  the number of values per cache entry. Must be positive.
+	 * @param maxSize     the maximum number of bytes this cache should use to store
+	 * @param maxDuration the maximum time as mills seconds that this cache will hold
+	 * @throws IOException if reading or writing the cache directory fails
+	 */
+	public static TimeShiftDiskCache open(final File directory,
+		@NonNull final String sessionId,
+		final int appVersion, final int valueCount,
+		final long maxSize, final long maxDuration) throws IOException {
+
+		return open(directory, sessionId,
+			appVersion, valueCount, maxSize, maxDuration, false);
+	}
+
+	/**
+	 * Opens the cache in the sub directory {@code sessionId} of {@code directory}.
+	 * ephemeralがtrueの時はジャーナルを使わないエフェメラルモードで開く。
+	 * エフェメラルモードではサブディレクトリに残っている内容は全て削除して空のキャッシュとして開き、
+	 * 閉じた時にサブディレクトリを削除する
+	 *
+	 * @param directory   a writable directory
+	 * @param sessionId   キャッシュディレクトリとして使うサブディレクトリ名
+	 * @param appVersion
+	 * @param valueCount  the number of values per cache entry. Must be positive.
+	 * @param maxSize     the maximum number of bytes this cache should use to store
+	 * @param maxDuration the maximum time as mills seconds that this cache will hold
+	 * @param ephemeral   ジャーナルを使わずにメモリー上のインデックスだけで管理するかどうか
+	 * @throws IOException if reading or writing the cache directory fails
+	 */
+	@SuppressWarnings("ResultOfMethodCallIgnored")
+	public static TimeShiftDiskCache open(final File directory,
+		@NonNull final String sessionId,
+		final int appVersion, final int valueCount,
+		final long maxSize, final long maxDuration,
+		final boolean ephemeral) throws IOException {
+
 		if (maxSize <= 0) {
 			throw new IllegalArgumentException("maxSize <= 0");
 		}
@@ -363,15 +545,31 @@ final class TimeShiftDiskCache implements Closeable {
 			throw new IllegalArgumentException("maxDuration <= 0");
 		}
 
+		if (ephemeral) {
+			// ジャーナルが無いので前回の内容は引き継げない
+			final File dir = new File(directory, sessionId);
+			if (dir.exists()) {
+				deleteContents(dir);
+			}
+			return new TimeShiftDiskCache(directory, sessionId,
+				appVersion, valueCount, maxSize, maxDuration, true);
+		}
+
 		// prefer to pick up where we left off
-		TimeShiftDiskCache cache = new TimeShiftDiskCache(directory,
-			appVersion, valueCount, maxSize, maxDuration);
+		TimeShiftDiskCache cache = new TimeShiftDiskCache(directory, sessionId,
+			appVersion, valueCount, maxSize, maxDuration, false);
 		if (cache.journalFile.exists()) {
 			try {
-				cache.readJournal();
+				final boolean rebuild = cache.readJournal();
 				cache.processJournal();
-				cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-						IO_BUFFER_SIZE);
+				cache.collectOrphans();
+				if (rebuild) {
+					// VERSION_1のジャーナルまたは末尾が壊れているときは
+					// VERSION_2で書き直す
+					cache.rebuildJournal();
+				} else {
+					cache.journalWriter = new JournalWriter(cache.journalFile, true, valueCount);
+				}
 				return cache;
 			} catch (final IOException journalIsCorrupt) {
 //                System.logW("TimeShiftDiskCache " + directory + " is corrupt: "
@@ -382,71 +580,189 @@ final class TimeShiftDiskCache implements Closeable {
 
 		// create a new empty cache
 		directory.mkdirs();
-		cache = new TimeShiftDiskCache(directory, appVersion, valueCount, maxSize, maxDuration);
+		cache = new TimeShiftDiskCache(directory, sessionId,
+			appVersion, valueCount, maxSize, maxDuration, false);
 		cache.rebuildJournal();
 		return cache;
 	}
 
-	private void readJournal() throws IOException {
-		final InputStream in = new BufferedInputStream(
-			new FileInputStream(journalFile), IO_BUFFER_SIZE);
+	/**
+	 * ジャーナルを読み込む
+	 * @return ジャーナルの再構築が必要ならtrue
+	 * @throws IOException
+	 */
+	private boolean readJournal() throws IOException {
+		final ByteBuffer in;
+		final FileInputStream stream = new FileInputStream(journalFile);
 		try {
-			final String magic = readAsciiLine(in);
-			final String version = readAsciiLine(in);
-			final String appVersionString = readAsciiLine(in);
-			final String valueCountString = readAsciiLine(in);
-			final String blank = readAsciiLine(in);
-			if (!MAGIC.equals(magic)
-					|| !VERSION_1.equals(version)
-					|| !Integer.toString(appVersion).equals(appVersionString)
-					|| !Integer.toString(valueCount).equals(valueCountString)
-					|| !"".equals(blank)) {
-				throw new IOException("unexpected journal header: ["
-					+ magic + ", " + version + ", "
-					+ valueCountString + ", " + blank + "]");
-			}
-
+			final FileChannel channel = stream.getChannel();
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			closeQuietly(stream);
+		}
+		final String magic = readAsciiLine(in);
+		final String version = readAsciiLine(in);
+		final String appVersionString = readAsciiLine(in);
+		final String valueCountString = readAsciiLine(in);
+		final String blank = readAsciiLine(in);
+		final boolean isVersion1 = VERSION_1.equals(version);
+		if (!MAGIC.equals(magic)
+				|| !(isVersion1 || VERSION_2.equals(version))
+				|| !Integer.toString(appVersion).equals(appVersionString)
+				|| !Integer.toString(valueCount).equals(valueCountString)
+				|| !"".equals(blank)) {
+			throw new IOException("unexpected journal header: ["
+				+ magic + ", " + version + ", "
+				+ valueCountString + ", " + blank + "]");
+		}
+
+		if (isVersion1) {
+			final long[] lengths = new long[valueCount];
 			for ( ; ; ) {
 				try {
-					readJournalLine(readAsciiLine(in));
+					readJournalLine(readAsciiLine(in), lengths);
 				} catch (final EOFException endOfJournal) {
 					break;
 				}
 			}
-		} finally {
-			closeQuietly(in);
+			return true;
+		} else {
+			return !readJournalRecords(in);
 		}
 	}
 
-	private void readJournalLine(final String line) throws IOException {
+	/**
+	 * VERSION_2のジャーナルのレコードを読み込む
+	 * レコード毎のオブジェクト生成はしない
+	 * @param in
+	 * @return 最後まで正常に読み込めればtrue, 末尾のレコードが途切れているか
+	 *         チェックサムが一致しなければfalse
+	 * @throws IOException
+	 */
+	private boolean readJournalRecords(@NonNull final ByteBuffer in) throws IOException {
+		final byte[] record = new byte[1 + 8 + valueCount * MAX_VARINT_LENGTH];
+		final long[] lengths = new long[valueCount];
+		final CRC32 crc = new CRC32();
+		while (in.hasRemaining()) {
+			final int start = in.position();
+			final int op;
+			final long key;
+			try {
+				op = in.get();
+				key = in.getLong();
+				if (op == OP_CLEAN) {
+					for (int i = 0; i < valueCount; i++) {
+						lengths[i] = readVarLong(in);
+					}
+				} else if (op == OP_SLOT) {
+					lengths[0] = readVarLong(in);
+				}
+				final int length = in.position() - start;
+				in.position(start);
+				in.get(record, 0, length);
+				crc.reset();
+				crc.update(record, 0, length);
+				if (in.getInt() != (int)crc.getValue()) {
+					Log.w(TAG, "readJournalRecords:checksum mismatch at " + start);
+					return false;
+				}
+			} catch (final BufferUnderflowException e) {
+				Log.w(TAG, "readJournalRecords:truncated record at " + start);
+				return false;
+			}
+			applyJournalRecord(op, key, lengths);
+		}
+		return true;
+	}
+
+	/**
+	 * VERSION_1のジャーナルの1行を読み込む
+	 * @param line
+	 * @param lengths 作業用
+	 * @throws IOException
+	 */
+	private void readJournalLine(final String line,
+		@NonNull final long[] lengths) throws IOException {
+
 		final String[] parts = line.split(" ");
 		if (parts.length < 2) {
 			throw new IOException("unexpected journal line: " + line);
 		}
 
 		final long key = Long.parseLong(parts[1]);
+		final int op;
 		if (parts[0].equals(REMOVE) && parts.length == 2) {
-			mEntries.remove(key);
-			return;
-		}
-
-		Entry entry = mEntries.get(key);
-		if (entry == null) {
-			entry = new Entry(key);
-			mEntries.put(key, entry);
-		}
-
-		if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
-			entry.readable = true;
-			entry.currentEditor = null;
-			entry.setLengths(copyOfRange(parts, 2, parts.length));
+			op = OP_REMOVE;
+		} else if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+			op = OP_CLEAN;
+			try {
+				for (int i = 0; i < valueCount; i++) {
+					lengths[i] = Long.parseLong(parts[2 + i]);
+				}
+			} catch (final NumberFormatException e) {
+				throw new IOException("unexpected journal line: " + line);
+			}
 		} else if (parts[0].equals(DIRTY) && parts.length == 2) {
-			entry.currentEditor = new Editor(entry);
+			op = OP_DIRTY;
 		} else if (parts[0].equals(READ) && parts.length == 2) {
-			// this work was already done by calling mEntries.get()
+			op = OP_READ;
 		} else {
 			throw new IOException("unexpected journal line: " + line);
 		}
+		applyJournalRecord(op, key, lengths);
+	}
+
+	/**
+	 * ジャーナルから読み込んだ1レコード分の内容をエントリーへ反映する
+	 * @param op
+	 * @param key
+	 * @param lengths opがOP_CLEANのときのみ有効, OP_SLOTのときは先頭がスロットファイルの番号
+	 * @throws IOException
+	 */
+	private void applyJournalRecord(final int op,
+		final long key, @NonNull final long[] lengths) throws IOException {
+
+		int slot = mIndex.indexOf(key);
+		if (op == OP_REMOVE) {
+			if (slot >= 0) {
+				mIndex.remove(slot);
+			}
+			return;
+		}
+
+		if ((slot < 0) && (op != OP_READ)) {
+			if (!mIndex.canAppend(key)) {
+				throw new IOException("unexpected journal record order: key=" + key);
+			}
+			slot = mIndex.add(key);
+		}
+
+		switch (op) {
+		case OP_CLEAN:
+			mIndex.setState(slot, TimeShiftFrameIndex.STATE_READABLE);
+			mIndex.setEditor(slot, null);
+			mIndex.setLengths(slot, lengths);
+			break;
+		case OP_DIRTY:
+			mIndex.setState(slot, mIndex.state(slot) | TimeShiftFrameIndex.STATE_DIRTY);
+			mIndex.setEditor(slot, new Editor(key));
+			break;
+		case OP_READ:
+			// nothing to do
+			break;
+		case OP_SLOT:
+		{
+			final int fileId = (int)lengths[0];
+			mIndex.setFileId(slot, fileId);
+			ensureFileReaders(fileId);
+			if (fileId >= nextFileId) {
+				nextFileId = fileId + 1;
+			}
+			break;
+		}
+		default:
+			throw new IOException("unexpected journal record: op=" + op + ",key=" + key);
+		}
 	}
 
 	/**
@@ -455,20 +771,98 @@ final class TimeShiftDiskCache implements Closeable {
 	 */
 	private void processJournal() throws IOException {
 		deleteIfExists(journalFileTmp);
-		for (final Iterator<Entry> i = mEntries.values().iterator(); i.hasNext(); ) {
-			final Entry entry = i.next();
-			if (entry.currentEditor == null) {
-				for (int t = 0; t < valueCount; t++) {
-					size += entry.lengths[t];
-				}
+		for (int slot = mIndex.head(); slot >= 0; ) {
+			final int next = mIndex.next(slot);
+			if (mIndex.editor(slot) == null) {
+				size += mIndex.totalLength(slot);
 			} else {
-				entry.currentEditor = null;
-				for (int t = 0; t < valueCount; t++) {
-					deleteIfExists(entry.getCleanFile(t));
-					deleteIfExists(entry.getDirtyFile(t));
+				final long key = mIndex.key(slot);
+				final int fileId = mIndex.fileId(slot);
+				if (fileId >= 0) {
+					releaseFileId(fileId);
+				} else {
+					for (int t = 0; t < valueCount; t++) {
+						deleteIfExists(getCleanFile(key, t));
+						deleteIfExists(getDirtyFile(key, t));
+					}
 				}
-				i.remove();
+				mIndex.remove(slot);
 			}
+			slot = next;
+		}
+	}
+
+	/**
+	 * ジャーナルに含まれないエントリーのファイルを削除スレッドへ渡す
+	 * 削除スレッドが削除し終わる前にプロセスが終了した時に残ったファイル
+	 */
+	private void collectOrphans() {
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		collectSlotFiles(files);
+		for (final File file: files) {
+			final String name = file.getName();
+			final int dot = name.indexOf('.');
+			if ((dot <= 0) || name.startsWith(SLOT_FILE_PREFIX)) {
+				continue;
+			}
+			final long key;
+			try {
+				key = Long.parseLong(name.substring(0, dot));
+			} catch (final NumberFormatException e) {
+				continue;	// ジャーナル等
+			}
+			if ((mIndex.indexOf(key) < 0) || name.endsWith(".tmp")) {
+				// processJournalの後は編集中のエントリーが無いので.tmpは全て不要
+				mReclaimer.enqueue(file);
+			}
+		}
+		if (DEBUG) Log.v(TAG, "collectOrphans:pending=" + mReclaimer.pendingCount());
+	}
+
+	/**
+	 * どのエントリーも使っていないスロットファイルを未使用のスロットファイルとして登録する
+	 * @param files キャッシュディレクトリ内のファイル
+	 */
+	private void collectSlotFiles(@NonNull final File[] files) {
+		for (final File file: files) {
+			final int id = parseFileId(file.getName());
+			if (id >= nextFileId) {
+				nextFileId = id + 1;
+			}
+		}
+		final boolean[] used = new boolean[nextFileId];
+		for (int slot = mIndex.head(); slot >= 0; slot = mIndex.next(slot)) {
+			final int id = mIndex.fileId(slot);
+			if (id >= 0) {
+				used[id] = true;
+			}
+		}
+		for (final File file: files) {
+			final int id = parseFileId(file.getName());
+			if ((id >= 0) && !used[id]) {
+				used[id] = true;
+				releaseFileId(id);
+			}
+		}
+	}
+
+	/**
+	 * スロットファイルのファイル名からスロットファイルの番号を取得する
+	 * @param name
+	 * @return スロットファイルでなければ-1
+	 */
+	private static int parseFileId(@NonNull final String name) {
+		final int dot = name.indexOf('.');
+		if (!name.startsWith(SLOT_FILE_PREFIX) || (dot <= SLOT_FILE_PREFIX.length())) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(SLOT_FILE_PREFIX.length(), dot));
+		} catch (final NumberFormatException e) {
+			return -1;
 		}
 	}
 
@@ -482,29 +876,32 @@ final class TimeShiftDiskCache implements Closeable {
 			journalWriter.close();
 		}
 
-		final Writer writer = new BufferedWriter(
-			new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-		writer.write(MAGIC);
-		writer.write("\n");
-		writer.write(VERSION_1);
-		writer.write("\n");
-		writer.write(Integer.toString(appVersion));
-		writer.write("\n");
-		writer.write(Integer.toString(valueCount));
-		writer.write("\n");
-		writer.write("\n");
-
-		for (final Entry entry : mEntries.values()) {
-			if (entry.currentEditor != null) {
-				writer.write(DIRTY + ' ' + entry.key + '\n');
-			} else {
-				writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+		final JournalWriter writer = new JournalWriter(journalFileTmp, false, valueCount);
+		try {
+			writer.writeHeader(appVersion);
+			final long[] fileId = new long[1];
+			for (int slot = mIndex.head(); slot >= 0; slot = mIndex.next(slot)) {
+				if (mIndex.fileId(slot) >= 0) {
+					fileId[0] = mIndex.fileId(slot);
+					writer.write(OP_SLOT, mIndex.key(slot), fileId);
+				}
+				if (mIndex.editor(slot) != null) {
+					writer.write(OP_DIRTY, mIndex.key(slot), null);
+				} else {
+					mIndex.getLengths(slot, mWorkLengths);
+					writer.write(OP_CLEAN, mIndex.key(slot), mWorkLengths);
+				}
 			}
+		} finally {
+			writer.close();
 		}
-
-		writer.close();
 		journalFileTmp.renameTo(journalFile);
-		journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+		journalWriter = new JournalWriter(journalFile, true, valueCount);
+		// 書き直したジャーナルには削除済みのエントリーが含まれないので
+		// 未使用のスロットファイルはすぐに再利用できる
+		for (int i = 0; i < mFreeFileCount; i++) {
+			mFreeJournalPositions[i] = 0;
+		}
 	}
 
 	private static void deleteIfExists(final File file) throws IOException {
@@ -513,23 +910,39 @@ final class TimeShiftDiskCache implements Closeable {
 		}
 	}
 
+	@Override
+	public synchronized long nextKey(final long key) {
+		final int slot = mIndex.higher(key);
+		return slot >= 0 ? mIndex.key(slot) : 0;
+	}
+
+	/**
+	 * 最も新しいエントリーのキーを取得
+	 * @return エントリーが無ければ0
+	 */
+	@Override
+	public synchronized long newestKey() {
+		final int slot = mIndex.tail();
+		return slot >= 0 ? mIndex.key(slot) : 0;
+	}
+
+	@Override
 	public synchronized long oldestKey() {
-		return mEntries.size() > 0 ? mEntries.keySet().iterator().next() : 0;
+		final int slot = mIndex.head();
+		return slot >= 0 ? mIndex.key(slot) : 0;
 	}
 
 	/**
 	 * Returns a snapshot of the entry named {@code key}, or null if it doesn't
 	 * exist is not currently readable.
 	 */
+	@Override
 	public synchronized Snapshot get(final long key) throws IOException {
 		checkNotClosed();
 //		validateKey(key);
-		final Entry entry = mEntries.get(key);
-		if (entry == null) {
-			return null;
-		}
-
-		if (!entry.readable) {
+		final int slot = mIndex.indexOf(key);
+		if ((slot < 0)
+			|| ((mIndex.state(slot) & TimeShiftFrameIndex.STATE_READABLE) == 0)) {
 			return null;
 		}
 
@@ -537,26 +950,45 @@ final class TimeShiftDiskCache implements Closeable {
          * Open all streams eagerly to guarantee that we see a single published
          * snapshot. If we opened streams lazily then the streams could come
          * from different edits.
+         * フラグをインデックスに保持している時はフラグのファイルは開かない
          */
-		final InputStream[] ins = new InputStream[valueCount];
+		final boolean hasFlags
+			= (mIndex.state(slot) & TimeShiftFrameIndex.STATE_HAS_FLAGS) != 0;
+		final int fileId = mIndex.fileId(slot);
+		final FileInputStream[] ins = new FileInputStream[valueCount];
 		try {
 			for (int i = 0; i < valueCount; i++) {
-				ins[i] = new FileInputStream(entry.getCleanFile(i));
+				if ((i != INDEX_FLAGS) || !hasFlags) {
+					ins[i] = new FileInputStream(getValueFile(key, fileId, i));
+				}
 			}
 		} catch (final FileNotFoundException e) {
 			// a file must have been deleted manually!
+			for (final InputStream in: ins) {
+				closeQuietly(in);
+			}
 			return null;
 		}
+		final long[] lengths = new long[valueCount];
+		mIndex.getLengths(slot, lengths);
 
-		redundantOpCount++;
-		journalWriter.append(READ + ' ').append(Long.toString(key)).append('\n');
-		if (journalRebuildRequired()) {
-			executorService.submit(cleanupCallable);
+		if (!ephemeral) {
+			redundantOpCount++;
+			journalWriter.write(OP_READ, key, null);
+			if (journalRebuildRequired()) {
+				scheduleCleanup();
+			}
 		}
 
-		return new Snapshot(key, entry.sequenceNumber, ins);
+		if (fileId >= 0) {
+			// 読み込み中のスロットファイルは再利用しない
+			mFileReaders[fileId]++;
+		}
+		return new Snapshot(key, fileId, mIndex.sequenceNumber(slot), ins, lengths,
+			hasFlags, mIndex.flags(slot));
 	}
 
+	@Override
 	public synchronized Snapshot getOldest() throws IOException {
 		return get(oldestKey());
 	}
@@ -565,6 +997,7 @@ final class TimeShiftDiskCache implements Closeable {
 	 * Returns an editor for the entry named {@code key}, or null if another
 	 * edit is in progress.
 	 */
+	@Override
 	public Editor edit(final long key) throws IOException {
 		return edit(key, ANY_SEQUENCE_NUMBER);
 	}
@@ -574,31 +1007,70 @@ final class TimeShiftDiskCache implements Closeable {
 
 		checkNotClosed();
 //		validateKey(key);
-		Entry entry = mEntries.get(key);
+		int slot = mIndex.indexOf(key);
 		if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-				&& ((entry == null) ||
-					(entry.sequenceNumber != expectedSequenceNumber))) {
+				&& ((slot < 0) ||
+					(mIndex.sequenceNumber(slot) != expectedSequenceNumber))) {
 			return null; // snapshot is stale
 		}
-		if (entry == null) {
-			entry = new Entry(key);
-			mEntries.put(key, entry);
-		} else if (entry.currentEditor != null) {
+		if (slot < 0) {
+			if (!mIndex.canAppend(key)) {
+				// キーは単調増加でないといけない
+				Log.w(TAG, "edit:key should be increasing," + key);
+				return null;
+			}
+			if (slotFileSize <= 0) {
+				for (int i = 0; i < valueCount; i++) {
+					if (mReclaimer.isPending(getCleanFile(key, i))) {
+						// 削除したエントリーのファイルがまだ削除されていない
+						Log.w(TAG, "edit:files of removed entry are still pending," + key);
+						return null;
+					}
+				}
+			}
+			slot = mIndex.add(key);
+			if (slotFileSize > 0) {
+				final int fileId;
+				try {
+					fileId = obtainFileId();
+				} catch (final IOException e) {
+					mIndex.remove(slot);
+					throw e;
+				}
+				mIndex.setFileId(slot, fileId);
+				if (!ephemeral) {
+					final long[] work = mWorkLengths;
+					work[0] = fileId;
+					journalWriter.write(OP_SLOT, key, work);
+				}
+			}
+		} else if (mIndex.editor(slot) != null) {
 			return null; // another edit is in progress
+		} else if (mIndex.fileId(slot) >= 0) {
+			// スロットファイルはその場で上書きするので読み込み中の値を壊さないように
+			// 既存のエントリーの更新はできない
+			return null;
+		} else {
+			mIndex.setState(slot, mIndex.state(slot) | TimeShiftFrameIndex.STATE_DIRTY);
 		}
 
-		final Editor editor = new Editor(entry);
-		entry.currentEditor = editor;
+		final Editor editor = new Editor(key);
+		mIndex.setEditor(slot, editor);
 
-		// flush the journal before creating files to prevent file leaks
-		journalWriter.write(DIRTY + ' ' + key + '\n');
-		journalWriter.flush();
+		if (!ephemeral) {
+			// flush the journal before creating files to prevent file leaks
+			// グループコミット時はファイルへ書き出す前にクラッシュすると
+			// DIRTYの無いファイルが残るのでcollectOrphansで削除する
+			journalWriter.write(OP_DIRTY, key, null);
+			commitJournal(false);
+		}
 		return editor;
 	}
 
 	/**
 	 * Returns the directory where this cache stores its data.
 	 */
+	@Override
 	public File getDirectory() {
 		return directory;
 	}
@@ -607,15 +1079,36 @@ final class TimeShiftDiskCache implements Closeable {
 	 * Returns the maximum number of bytes that this cache should use to store
 	 * its data.
 	 */
+	@Override
 	public long maxSize() {
 		return maxSize;
 	}
 
+	@Override
+	public synchronized void setMaxSize(final long maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		this.maxSize = maxSize;
+		if (!closed && (size > maxSize)) {
+			if (ephemeral) {
+				try {
+					trimEntries();
+				} catch (final IOException e) {
+					Log.w(TAG, e);
+				}
+			} else {
+				scheduleCleanup();
+			}
+		}
+	}
+
 	/**
 	 * Returns the number of bytes currently being used to store the values in
 	 * this cache. This may be greater than the max size if a background
 	 * deletion is pending.
 	 */
+	@Override
 	public synchronized long size() {
 		return size;
 	}
@@ -624,15 +1117,19 @@ final class TimeShiftDiskCache implements Closeable {
 	private synchronized void completeEdit(final Editor editor,
 		final boolean success) throws IOException {
 
-		final Entry entry = editor.entry;
-		if (entry.currentEditor != editor) {
+		final long key = editor.key;
+		final int slot = mIndex.indexOf(key);
+		if ((slot < 0) || (mIndex.editor(slot) != editor)) {
 			throw new IllegalStateException();
 		}
+		final boolean readable
+			= (mIndex.state(slot) & TimeShiftFrameIndex.STATE_READABLE) != 0;
 
+		final int fileId = mIndex.fileId(slot);
 		// if this edit is creating the entry for the first time, every index must have a value
-		if (success && !entry.readable) {
+		if (success && !readable) {
 			for (int i = 0; i < valueCount; i++) {
-				if (!entry.getDirtyFile(i).exists()) {
+				if ((fileId >= 0) ? !editor.opened[i] : !getEditFile(key, i, readable).exists()) {
 					editor.abort();
 					throw new IllegalStateException("edit didn't create file " + i);
 				}
@@ -640,14 +1137,26 @@ final class TimeShiftDiskCache implements Closeable {
 		}
 
 		for (int i = 0; i < valueCount; i++) {
-			final File dirty = entry.getDirtyFile(i);
+			if (fileId >= 0) {
+				// スロットファイルはリネームせずに書き込んだバイト数を値の長さにする
+				if (success) {
+					final long oldLength = mIndex.length(slot, i);
+					final long newLength = editor.written[i];
+					mIndex.setLength(slot, i, newLength);
+					size = size - oldLength + newLength;
+				}
+				continue;
+			}
+			final File dirty = getEditFile(key, i, readable);
 			if (success) {
 				if (dirty.exists()) {
-					File clean = entry.getCleanFile(i);
-					dirty.renameTo(clean);
-					long oldLength = entry.lengths[i];
+					File clean = getCleanFile(key, i);
+					if (!dirty.equals(clean)) {
+						dirty.renameTo(clean);
+					}
+					long oldLength = mIndex.length(slot, i);
 					long newLength = clean.length();
-					entry.lengths[i] = newLength;
+					mIndex.setLength(slot, i, newLength);
 					size = size - oldLength + newLength;
 				}
 			} else {
@@ -655,27 +1164,51 @@ final class TimeShiftDiskCache implements Closeable {
 			}
 		}
 
-		redundantOpCount++;
-		entry.currentEditor = null;
-		if (entry.readable | success) {
-			entry.readable = true;
-			journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+		mIndex.setEditor(slot, null);
+		if (readable | success) {
+			mIndex.setState(slot,
+				(mIndex.state(slot) & ~TimeShiftFrameIndex.STATE_DIRTY)
+					| TimeShiftFrameIndex.STATE_READABLE);
+			if (!ephemeral) {
+				redundantOpCount++;
+				mIndex.getLengths(slot, mWorkLengths);
+				journalWriter.write(OP_CLEAN, key, mWorkLengths);
+			}
 			if (success) {
-				entry.sequenceNumber = nextSequenceNumber++;
+				mIndex.setSequenceNumber(slot, nextSequenceNumber++);
+				if (editor.hasFlags) {
+					mIndex.setFlags(slot, editor.flags);
+				}
 			}
 		} else {
-			mEntries.remove(entry.key);
-			journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+			mIndex.remove(slot);
+			if (!ephemeral) {
+				redundantOpCount++;
+				journalWriter.write(OP_REMOVE, key, null);
+			}
+			if (fileId >= 0) {
+				releaseFileId(fileId);
+			}
 		}
 
-		final long limit = SystemClock.elapsedRealtime() - maxDurationMs;
-		final long oldest = oldestKey();
-		if ((oldest > 0) && (oldest < limit)) {
-			remove(oldest);
+		// 先頭のエントリーだけを確認して最大保持時間を超えていれば削除する
+		final long limit = durationLimit();
+		long oldest = oldestKey();
+		while ((oldest > 0) && (oldest < limit)) {
+			if (!evictOldest()) {
+				break;
+			}
+			oldest = oldestKey();
 		}
 
-		if (size > maxSize() || journalRebuildRequired()) {
-			executorService.submit(cleanupCallable);
+		if (ephemeral) {
+			// クリーンアップ用のスレッドを使わずにここで古いエントリーを削除する
+			// ファイルの削除は削除スレッドで行うのでメモリー上のインデックスの操作だけ
+			if (size > maxSize()) {
+				trimEntries();
+			}
+		} else if (size > maxSize() || journalRebuildRequired()) {
+			scheduleCleanup();
 		}
 	}
 
@@ -686,52 +1219,251 @@ final class TimeShiftDiskCache implements Closeable {
 	private boolean journalRebuildRequired() {
 		final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
 		return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
-				&& redundantOpCount >= mEntries.size();
+				&& redundantOpCount >= mIndex.size();
 	}
 
 	/**
 	 * Drops the entry for {@code key} if it exists and can be removed. Entries
 	 * actively being edited cannot be removed.
+	 * エントリーはメモリー上ですぐに削除し、ファイルは削除スレッド上でまとめて削除する
 	 *
 	 * @return true if an entry was removed.
 	 */
+	@Override
 	public synchronized boolean remove(final long key) throws IOException {
 		checkNotClosed();
 //		validateKey(key);
-		Entry entry = mEntries.get(key);
-		if (entry == null || entry.currentEditor != null) {
+		final int slot = mIndex.indexOf(key);
+		if ((slot < 0) || (mIndex.editor(slot) != null)) {
 			return false;
 		}
 
+		final int fileId = mIndex.fileId(slot);
 		for (int i = 0; i < valueCount; i++) {
-			File file = entry.getCleanFile(i);
-			if (!file.delete()) {
-				throw new IOException("failed to delete " + file);
+			if (fileId < 0) {
+				mReclaimer.enqueue(getCleanFile(key, i));
 			}
-			size -= entry.lengths[i];
-			entry.lengths[i] = 0;
+			size -= mIndex.length(slot, i);
 		}
 
-		redundantOpCount++;
-		journalWriter.append(REMOVE + ' ').append(Long.toString(key)).append('\n');
-		mEntries.remove(key);
-
-		if (journalRebuildRequired()) {
-			executorService.submit(cleanupCallable);
+		mIndex.remove(slot);
+		if (!ephemeral) {
+			redundantOpCount++;
+			journalWriter.write(OP_REMOVE, key, null);
+			if (journalRebuildRequired()) {
+				scheduleCleanup();
+			}
+		}
+		if (fileId >= 0) {
+			// スロットファイルは削除せずに再利用する
+			// REMOVEを書き込んだ後に解放しないとジャーナルの書き込み位置を記録できない
+			releaseFileId(fileId);
 		}
 
 		return true;
 	}
 
+	@Override
+	public synchronized int removeBefore(final long key) throws IOException {
+		checkNotClosed();
+		int result = 0;
+		for (int slot = mIndex.head();
+			(slot >= 0) && (mIndex.key(slot) < key); slot = mIndex.head()) {
+
+			if (!remove(mIndex.key(slot))) {
+				break;
+			}
+			result++;
+		}
+		if (result > 0) {
+			result += trimToKeyFrame();
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized void setKeyFrameAligned(final boolean aligned) {
+		keyFrameAligned = aligned;
+	}
+
+	@Override
+	public synchronized void setLowWaterMark(final long key) {
+		lowWaterMark = key;
+	}
+
+	/**
+	 * スロットファイルを再利用するかどうかを設定する
+	 * 再利用する時はエントリーの値をキーではなくスロットファイルの番号から生成した
+	 * ファイルへ保存し、エントリーを削除してもファイルは削除せずに未使用のスロットファイルとして保持する。
+	 * 新しいエントリーは未使用のスロットファイルを切り詰めずに先頭から上書きするので
+	 * 未使用のスロットファイルがある間はフレーム毎のファイルの生成/リネーム/削除が発生しない。
+	 * スロットファイルの先頭の値のファイルは生成時にsizeバイト確保する。
+	 * スロットファイルはファイル長が値の長さより長いことがあるので
+	 * Snapshot#getInputStreamで末尾まで読み込んではいけない
+	 * @param size 典型的なフレームサイズ[バイト], 0ならスロットファイルを再利用しない
+	 */
+	public synchronized void setSlotFileSize(final int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("size should be zero or positive");
+		}
+		slotFileSize = size;
+	}
+
+	/**
+	 * 読み込み中でない未使用のスロットファイルを取得する, 無ければ生成する
+	 * @return スロットファイルの番号
+	 * @throws IOException
+	 */
+	private int obtainFileId() throws IOException {
+		final long committed = journalWriter != null ? journalWriter.committedPosition() : Long.MAX_VALUE;
+		int uncommitted = -1;
+		for (int i = 0; i < mFreeFileCount; i++) {
+			final int id = mFreeFileIds[i];
+			if (mFileReaders[id] == 0) {
+				if (mFreeJournalPositions[i] <= committed) {
+					removeFreeFileId(i);
+					return id;
+				} else if (uncommitted < 0) {
+					uncommitted = i;
+				}
+			}
+		}
+		if (uncommitted >= 0) {
+			// スロットファイルを解放したREMOVEがまだジャーナルファイルへ書き出されていない時は
+			// 新しいファイルを生成するよりもジャーナルを書き出して再利用する方が軽い
+			commitJournal(true);
+			final int id = mFreeFileIds[uncommitted];
+			removeFreeFileId(uncommitted);
+			return id;
+		}
+		final int id = nextFileId++;
+		ensureFileReaders(id);
+		// 先頭の値のファイルは典型的なフレームサイズ分をあらかじめ確保しておく
+		final RandomAccessFile raf = new RandomAccessFile(getSlotFile(id, 0), "rw");
+		try {
+			raf.setLength(slotFileSize);
+		} finally {
+			raf.close();
+		}
+		return id;
+	}
+
+	/**
+	 * 使い終わったスロットファイルを未使用のスロットファイルとして保持する
+	 * 再利用しない時または未使用のスロットファイルが多すぎる時は削除スレッドで削除する
+	 * @param id
+	 */
+	private void releaseFileId(final int id) {
+		ensureFileReaders(id);
+		final int maxFree = slotFileSize > 0
+			? Math.max(MIN_FREE_SLOT_FILES, mIndex.size() / 4) : 0;
+		if (mFreeFileCount >= maxFree) {
+			for (int i = 0; i < valueCount; i++) {
+				mReclaimer.enqueue(getSlotFile(id, i));
+			}
+			return;
+		}
+		if (mFreeFileCount == mFreeFileIds.length) {
+			final int[] ids = new int[mFreeFileIds.length * 2];
+			System.arraycopy(mFreeFileIds, 0, ids, 0, mFreeFileCount);
+			mFreeFileIds = ids;
+			final long[] positions = new long[ids.length];
+			System.arraycopy(mFreeJournalPositions, 0, positions, 0, mFreeFileCount);
+			mFreeJournalPositions = positions;
+		}
+		mFreeFileIds[mFreeFileCount] = id;
+		mFreeJournalPositions[mFreeFileCount] = journalWriter != null ? journalWriter.position() : 0;
+		mFreeFileCount++;
+	}
+
+	/**
+	 * 未使用のスロットファイルを取り除く, 解放した順序を保つように詰める
+	 * @param i
+	 */
+	private void removeFreeFileId(final int i) {
+		final int n = mFreeFileCount - i - 1;
+		if (n > 0) {
+			System.arraycopy(mFreeFileIds, i + 1, mFreeFileIds, i, n);
+			System.arraycopy(mFreeJournalPositions, i + 1, mFreeJournalPositions, i, n);
+		}
+		mFreeFileCount--;
+	}
+
+	/**
+	 * ジャーナルのグループコミットを設定する
+	 * 時間窓またはサイズ窓を指定するとエントリーの編集開始毎にジャーナルをファイルへ書き出さずに
+	 * 窓の中のレコードをまとめて1回で書き出す。クラッシュした時は最後の窓のレコードが失われるが、
+	 * ジャーナルに記録されていないエントリーのファイルは開き直した時に削除する
+	 * @param windowMs 時間窓[ミリ秒], 0なら時間窓を使わない
+	 * @param windowBytes サイズ窓[バイト], 0ならサイズ窓を使わない
+	 * 			ジャーナルの書き込みバッファ(8KB)を超える値を指定してもバッファが一杯になった時点で書き出す
+	 * @param force 窓の境界でジャーナルを書き出す時にFileChannel#forceでストレージへ同期するかどうか
+	 */
+	public synchronized void setJournalCommitWindow(
+		final long windowMs, final int windowBytes, final boolean force) {
+
+		if ((windowMs < 0) || (windowBytes < 0)) {
+			throw new IllegalArgumentException("window should be zero or positive");
+		}
+		journalCommitWindowMs = windowMs;
+		journalCommitWindowBytes = windowBytes;
+		journalForce = force;
+	}
+
+	/**
+	 * 窓の境界に達していればジャーナルをファイルへ書き出す
+	 * グループコミットしない時は常に書き出す
+	 * @param boundary trueなら窓の境界に関係なく書き出す
+	 * @throws IOException
+	 */
+	private void commitJournal(final boolean boundary) throws IOException {
+		final long now = SystemClock.elapsedRealtime();
+		if (!boundary
+			&& ((journalCommitWindowMs > 0) || (journalCommitWindowBytes > 0))
+			&& ((journalCommitWindowMs <= 0) || (now - lastJournalCommitMs < journalCommitWindowMs))
+			&& ((journalCommitWindowBytes <= 0) || (journalWriter.pending() < journalCommitWindowBytes))) {
+
+			return;
+		}
+		journalWriter.flush();
+		if (journalForce) {
+			journalWriter.force();
+		}
+		lastJournalCommitMs = now;
+	}
+
+	/**
+	 * スロットファイル毎の読み込み中のスナップショット数の配列を拡張する
+	 * @param id
+	 */
+	private void ensureFileReaders(final int id) {
+		if (id >= mFileReaders.length) {
+			final int[] readers = new int[Math.max(id + 1, mFileReaders.length * 2)];
+			System.arraycopy(mFileReaders, 0, readers, 0, mFileReaders.length);
+			mFileReaders = readers;
+		}
+	}
+
+	/**
+	 * スナップショットを閉じた時にスロットファイルの読み込み中の数を減らす
+	 * @param id
+	 */
+	private synchronized void releaseReader(final int id) {
+		if ((id >= 0) && (id < mFileReaders.length) && (mFileReaders[id] > 0)) {
+			mFileReaders[id]--;
+		}
+	}
+
 	/**
 	 * Returns true if this cache has been closed.
 	 */
+	@Override
 	public boolean isClosed() {
-		return journalWriter == null;
+		return closed;
 	}
 
 	private void checkNotClosed() {
-		if (journalWriter == null) {
+		if (closed) {
 			throw new IllegalStateException("cache is closed");
 		}
 	}
@@ -739,27 +1471,43 @@ final class TimeShiftDiskCache implements Closeable {
 	/**
 	 * Force buffered operations to the filesystem.
 	 */
+	@Override
 	public synchronized void flush() throws IOException {
 		checkNotClosed();
 		trimEntries();
-		journalWriter.flush();
+		if (!ephemeral) {
+			commitJournal(true);
+		}
 	}
 
 	/**
 	 * Closes this cache. Stored values will remain on the filesystem.
+	 * エフェメラルモードの時はジャーナルが無く開き直しても引き継げないのでキャッシュディレクトリを削除する
 	 */
+	@Override
 	public synchronized void close() throws IOException {
-		if (journalWriter == null) {
+		if (closed) {
 			return; // already closed
 		}
-		for (Entry entry : new ArrayList<Entry>(mEntries.values())) {
-			if (entry.currentEditor != null) {
-				entry.currentEditor.abort();
+		for (int slot = mIndex.head(); slot >= 0; ) {
+			final int next = mIndex.next(slot);
+			final Editor editor = mIndex.editor(slot);
+			if (editor != null) {
+				editor.abort();
 			}
+			slot = next;
 		}
 		trimEntries();
-		journalWriter.close();
-		journalWriter = null;
+		closed = true;
+		if (journalWriter != null) {
+			journalWriter.close();
+			journalWriter = null;
+		}
+		// 削除待ちのファイルはここで削除する
+		mReclaimer.drain();
+		if (ephemeral) {
+			deleteContents(directory);
+		}
 	}
 
 	private void trimEntries() throws IOException {
@@ -769,12 +1517,12 @@ final class TimeShiftDiskCache implements Closeable {
 //			final Map.Entry<Long, Entry> toEvict = mEntries.entrySet().iterator().next();
 //			remove(toEvict.getKey());	// この中でsizeが再計算される
 //		}
-		final long limit = SystemClock.elapsedRealtime() - maxDurationMs;
+		final long limit = durationLimit();
 		for (long key = oldestKey();
 			(size > maxSize) || ((key > 0) && (key < limit));
 			key = oldestKey()) {
 
-			if (!remove(key)) {    // この中でsizeが再計算される
+			if (!evictOldest()) {    // この中でsizeが再計算される
 				// 削除されなければfalseが返ってくるのでループを中断する
 				break;
 			}
@@ -782,14 +1530,76 @@ final class TimeShiftDiskCache implements Closeable {
 		if (DEBUG) Log.v(TAG, "trimEntries:finished, size=" + size);
 	}
 
+	/**
+	 * 最大保持時間による削除の境界となるキーを取得する
+	 * キーはフレームのpts[マイクロ秒]なので最も新しいエントリーのキーを基準にする
+	 * @return このキーより古いエントリーは最大保持時間を超えている, エントリーが無ければ0
+	 */
+	private long durationLimit() {
+		final long newest = newestKey();
+		return newest > 0 ? newest - maxDurationUs : 0;
+	}
+
+	/**
+	 * 最も古いエントリーを削除する
+	 * キーフレーム単位で削除する時は次のキーフレームの手前まで削除する
+	 * @return 削除できればtrue
+	 * @throws IOException
+	 */
+	private boolean evictOldest() throws IOException {
+		final int slot = mIndex.head();
+		if ((slot < 0) || isRetained(mIndex.key(slot)) || !remove(mIndex.key(slot))) {
+			return false;
+		}
+		trimToKeyFrame();
+		return true;
+	}
+
+	/**
+	 * 低水位マーク以降のエントリーかどうか
+	 * @param key
+	 * @return trueなら最大サイズ/最大時間を超えても削除しない
+	 */
+	private boolean isRetained(final long key) {
+		return (lowWaterMark > 0) && (key >= lowWaterMark);
+	}
+
+	/**
+	 * キーフレーム単位で削除する時は先頭がキーフレームになるまで削除する
+	 * フラグが不明なエントリー(ジャーナルから復元した時など)や
+	 * 編集中のエントリーが先頭になった時はそこで止める
+	 * @return 削除したエントリー数
+	 * @throws IOException
+	 */
+	private int trimToKeyFrame() throws IOException {
+		int result = 0;
+		if (keyFrameAligned) {
+			for (int slot = mIndex.head(); slot >= 0; slot = mIndex.head()) {
+				if (((mIndex.state(slot) & TimeShiftFrameIndex.STATE_HAS_FLAGS) == 0)
+					|| ((mIndex.flags(slot) & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0)
+					|| isRetained(mIndex.key(slot))
+					|| !remove(mIndex.key(slot))) {
+
+					break;
+				}
+				result++;
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * Closes the cache and deletes all of its stored values. This will delete
 	 * all files in the cache directory including files that weren't created by
 	 * the cache.
 	 */
+	@Override
 	public void delete() throws IOException {
 		close();
-		deleteContents(directory);
+		if (directory.exists()) {
+			// エフェメラルモードの時はcloseで削除済み
+			deleteContents(directory);
+		}
 	}
 
 	private static String inputStreamToString(final InputStream in)
@@ -801,17 +1611,34 @@ final class TimeShiftDiskCache implements Closeable {
 	/**
 	 * A snapshot of the values for an entry.
 	 */
-	public final class Snapshot implements Closeable {
+	public final class Snapshot implements ITimeShiftCache.Snapshot {
 		private final long key;
+		/**
+		 * 値を保存しているスロットファイルの番号, 負ならキーから生成したファイル名
+		 */
+		private final int fileId;
 		private final long sequenceNumber;
-		private final InputStream[] ins;
+		private final FileInputStream[] ins;
+		/**
+		 * インデックスに保持している値の長さ
+		 */
+		private final long[] lengths;
+		private final boolean hasFlags;
+		private final int flags;
 
-		private Snapshot(final long key,
-			final long sequenceNumber, final InputStream[] ins) {
+		private boolean closed;
+
+		private Snapshot(final long key, final int fileId,
+			final long sequenceNumber, final FileInputStream[] ins,
+			final long[] lengths, final boolean hasFlags, final int flags) {
 
 			this.key = key;
+			this.fileId = fileId;
 			this.sequenceNumber = sequenceNumber;
 			this.ins = ins;
+			this.lengths = lengths;
+			this.hasFlags = hasFlags;
+			this.flags = flags;
 		}
 
 		/**
@@ -825,8 +1652,16 @@ final class TimeShiftDiskCache implements Closeable {
 
 		/**
 		 * Returns the unbuffered stream with the value for {@code index}.
+		 * インデックスに保持しているフラグのファイルはここで開く
 		 */
-		public InputStream getInputStream(final int index) {
+		public InputStream getInputStream(final int index) throws IOException {
+			return getFileInputStream(index);
+		}
+
+		private FileInputStream getFileInputStream(final int index) throws IOException {
+			if (ins[index] == null) {
+				ins[index] = new FileInputStream(getValueFile(key, fileId, index));
+			}
 			return ins[index];
 		}
 
@@ -841,12 +1676,23 @@ final class TimeShiftDiskCache implements Closeable {
 			return getBytes(index, null);
 		}
 
+		/**
+		 * インデックスに保持している値の長さを返す
+		 * @param index
+		 * @return
+		 * @throws IOException
+		 */
+		@Override
 		public int available(final int index) throws IOException {
-			final InputStream in = getInputStream(index);
-			return in != null ? in.available() : 0;
+			return (int)lengths[index];
 		}
 
+		@Override
 		public int getInt(final int index) throws IOException {
+			if ((index == INDEX_FLAGS) && hasFlags) {
+				// インデックスに保持しているフラグを返す
+				return flags;
+			}
 			final byte[] work = new byte[4];
 			final InputStream in = getInputStream(index);
 			try {
@@ -902,41 +1748,80 @@ final class TimeShiftDiskCache implements Closeable {
 			throw new IOException();
 		}
 
+		/**
+		 * 指定したインデックスの値をdstへ読み込む
+		 * インデックスに保持している長さ分をFileChannelの位置指定読み込みで
+		 * 直接dstへ読み込むので中間バッファを経由しない
+		 * @param index
+		 * @param dst nullまたは容量が足りなければ新しいダイレクトByteBufferを生成する
+		 * @return
+		 * @throws IOException
+		 */
+		@NonNull
+		@Override
+		public ByteBuffer getByteBuffer(final int index,
+			@Nullable final ByteBuffer dst) throws IOException {
+
+			final int size = (int)lengths[index];
+			final ByteBuffer result = (dst != null) && (dst.capacity() >= size)
+				? dst : ByteBuffer.allocateDirect(size);
+			result.clear();
+			result.limit(size);
+			read(index, result);
+			result.flip();
+			return result;
+		}
+
+		/**
+		 * 指定したインデックスの値をバイト配列として取得
+		 * @param index
+		 * @param dst nullまたはサイズが足りなければ値の長さのバイト配列を生成する
+		 * @return
+		 * @throws IOException
+		 */
+		@Override
 		public byte[] getBytes(final int index, final byte[] dst)
 			throws IOException {
 
-			final byte[] buf = new byte[4096];
-			byte[] result = dst;
-			final InputStream in = getInputStream(index);
-			try {
-				int total = 0;
-				int bytes;
-				while ((bytes = in.read(buf)) != -1) {
-					if ((result == null) || (result.length < total + bytes)) {
-						final byte[] temp = new byte[
-							result == null ? 4096 : result.length * 2];
-						if ((total > 0) && (result != null)) {
-							System.arraycopy(result, 0, temp, 0, total);
-						}
-						result = temp;
-					}
-					System.arraycopy(buf, 0, result, total, bytes);
-					total += bytes;
-				}
-			} finally {
-				in.close();
-			}
+			final int size = (int)lengths[index];
+			final byte[] result = (dst != null) && (dst.length >= size)
+				? dst : new byte[size];
+			read(index, ByteBuffer.wrap(result, 0, size));
 			return result;
 		}
 
+		/**
+		 * 値をファイルの先頭からdstのposition〜limitへ読み込む
+		 * @param index
+		 * @param dst
+		 * @throws IOException
+		 */
+		private void read(final int index,
+			@NonNull final ByteBuffer dst) throws IOException {
+
+			final FileChannel channel = getFileInputStream(index).getChannel();
+			long position = 0;
+			while (dst.hasRemaining()) {
+				final int bytes = channel.read(dst, position);
+				if (bytes < 0) {
+					throw new EOFException("unexpected end of file, key=" + key);
+				}
+				position += bytes;
+			}
+		}
 
 		@Override
 		public void close() {
-			for (InputStream in : ins) {
+			for (final InputStream in : ins) {
 				closeQuietly(in);
 			}
+			if (!closed) {
+				closed = true;
+				releaseReader(fileId);
+			}
 		}
 
+		@Override
 		public long getKey() {
 			return key;
 		}
@@ -945,13 +1830,23 @@ final class TimeShiftDiskCache implements Closeable {
 	/**
 	 * Edits the values for an entry.
 	 */
-	public final class Editor {
-		private final Entry entry;
+	public final class Editor implements ITimeShiftCache.Editor {
+		private final long key;
+		/**
+		 * スロットファイルへ書き込んだバイト数
+		 */
+		private final long[] written = new long[valueCount];
+		/**
+		 * スロットファイルへの書き込みを開始したかどうか
+		 */
+		private final boolean[] opened = new boolean[valueCount];
 		private boolean hasErrors;
 		private byte[] work;
+		private boolean hasFlags;
+		private int flags;
 
-		private Editor(Entry entry) {
-			this.entry = entry;
+		private Editor(final long key) {
+			this.key = key;
 		}
 
 		/**
@@ -962,13 +1857,14 @@ final class TimeShiftDiskCache implements Closeable {
 			throws IOException, IllegalStateException {
 
 			synchronized (TimeShiftDiskCache.this) {
-				if (entry.currentEditor != this) {
+				final int slot = mIndex.indexOf(key);
+				if ((slot < 0) || (mIndex.editor(slot) != this)) {
 					throw new IllegalStateException();
 				}
-				if (!entry.readable) {
+				if ((mIndex.state(slot) & TimeShiftFrameIndex.STATE_READABLE) == 0) {
 					return null;
 				}
-				return new FileInputStream(entry.getCleanFile(index));
+				return new FileInputStream(getValueFile(key, mIndex.fileId(slot), index));
 			}
 		}
 
@@ -992,11 +1888,24 @@ final class TimeShiftDiskCache implements Closeable {
 			throws IOException, IllegalStateException {
 
 			synchronized (TimeShiftDiskCache.this) {
-				if (entry.currentEditor != this) {
+				final int slot = mIndex.indexOf(key);
+				if ((slot < 0) || (mIndex.editor(slot) != this)) {
 					throw new IllegalStateException();
 				}
-				return new FaultHidingOutputStream(
-					new FileOutputStream(entry.getDirtyFile(index)));
+				final int fileId = mIndex.fileId(slot);
+				if (fileId >= 0) {
+					// スロットファイルは切り詰めずに先頭から上書きする
+					final RandomAccessFile raf
+						= new RandomAccessFile(getSlotFile(fileId, index), "rw");
+					opened[index] = true;
+					written[index] = 0;
+					return new FaultHidingOutputStream(index,
+						Channels.newOutputStream(raf.getChannel()));
+				}
+				final boolean readable
+					= (mIndex.state(slot) & TimeShiftFrameIndex.STATE_READABLE) != 0;
+				return new FaultHidingOutputStream(index,
+					new FileOutputStream(getEditFile(key, index, readable)));
 			}
 		}
 
@@ -1033,6 +1942,7 @@ final class TimeShiftDiskCache implements Closeable {
 		 * @param size
 		 * @throws IOException
 		 */
+		@Override
 		public void set(final int index,
 			final ByteBuffer buffer, final int offset, final int size)
 				throws IOException {
@@ -1042,7 +1952,7 @@ final class TimeShiftDiskCache implements Closeable {
 			if ((work == null) || (work.length < size)) {
 				work = new byte[size];
 			}
-			buffer.get(work);
+			buffer.get(work, 0, size);
 			final OutputStream out = newOutputStream(index);
 			try {
 				out.write(work, 0, size);
@@ -1051,7 +1961,13 @@ final class TimeShiftDiskCache implements Closeable {
 			}
 		}
 
+		@Override
 		public void set(final int index, final int value) throws IOException {
+			if (index == INDEX_FLAGS) {
+				// コミット時にインデックスへも保持する
+				hasFlags = true;
+				flags = value;
+			}
 			final byte[] work = new byte[4];
 			final ByteBuffer buf = ByteBuffer.wrap(work);
 			buf.putInt(value);
@@ -1107,10 +2023,11 @@ final class TimeShiftDiskCache implements Closeable {
 		 * Commits this edit so it is visible to readers.  This releases the
 		 * edit lock so another edit may be started on the same key.
 		 */
+		@Override
 		public void commit() throws IOException {
 			if (hasErrors) {
 				completeEdit(this, false);
-				remove(entry.key); // the previous entry is stale
+				remove(key); // the previous entry is stale
 			} else {
 				completeEdit(this, true);
 			}
@@ -1120,19 +2037,24 @@ final class TimeShiftDiskCache implements Closeable {
 		 * Aborts this edit. This releases the edit lock so another edit may be
 		 * started on the same key.
 		 */
+		@Override
 		public void abort() throws IOException {
 			completeEdit(this, false);
 		}
 
 		private class FaultHidingOutputStream extends FilterOutputStream {
-			private FaultHidingOutputStream(final OutputStream out) {
+			private final int index;
+
+			private FaultHidingOutputStream(final int index, final OutputStream out) {
 				super(out);
+				this.index = index;
 			}
 
 			@Override
 			public void write(final int oneByte) {
 				try {
 					out.write(oneByte);
+					written[index]++;
 				} catch (final IOException e) {
 					hasErrors = true;
 				}
@@ -1144,6 +2066,7 @@ final class TimeShiftDiskCache implements Closeable {
 
 				try {
 					out.write(buffer, offset, length);
+					written[index] += length;
 				} catch (final IOException e) {
 					hasErrors = true;
 				}
@@ -1169,69 +2092,182 @@ final class TimeShiftDiskCache implements Closeable {
 		}
 	}
 
-	private final class Entry {
-		private final long key;
-
+	/**
+	 * VERSION_2形式のジャーナル書き込み用クラス
+	 * レコードを内部のバイト配列へ書き込んでまとめてファイルへ書き出す
+	 */
+	private static final class JournalWriter implements Closeable {
+		private final FileOutputStream out;
+		private final int valueCount;
+		private final byte[] buf = new byte[IO_BUFFER_SIZE];
+		private final CRC32 crc = new CRC32();
+		private int count;
 		/**
-		 * Lengths of this entry's files.
+		 * ファイルへ書き出したバイト数
 		 */
-		private final long[] lengths;
+		private long committed;
 
 		/**
-		 * True if this entry has ever been published
+		 * コンストラクタ
+		 * @param file
+		 * @param append
+		 * @param valueCount
+		 * @throws IOException
 		 */
-		private boolean readable;
+		private JournalWriter(@NonNull final File file,
+			final boolean append, final int valueCount) throws IOException {
+
+			out = new FileOutputStream(file, append);
+			this.valueCount = valueCount;
+		}
 
 		/**
-		 * The ongoing edit or null if this entry is not being edited.
+		 * ジャーナルのヘッダーを書き込む
+		 * @param appVersion
+		 * @throws IOException
 		 */
-		private Editor currentEditor;
+		private void writeHeader(final int appVersion) throws IOException {
+			final String header = MAGIC + "\n"
+				+ VERSION_2 + "\n"
+				+ appVersion + "\n"
+				+ valueCount + "\n"
+				+ "\n";
+			flushBuffer();
+			final byte[] bytes = header.getBytes(UTF_8);
+			out.write(bytes);
+			committed += bytes.length;
+		}
 
 		/**
-		 * The sequence number of the most recently committed edit to this entry.
+		 * レコードを1つ書き込む
+		 * @param op
+		 * @param key
+		 * @param lengths opがOP_CLEANのときのみ使う, OP_SLOTのときは先頭をスロットファイルの番号として使う
+		 * @throws IOException
 		 */
-		private long sequenceNumber;
+		private void write(final byte op, final long key,
+			@Nullable final long[] lengths) throws IOException {
 
-		private Entry(long key) {
-			this.key = key;
-			this.lengths = new long[valueCount];
+			if (count + 1 + 8 + valueCount * MAX_VARINT_LENGTH + 4 > buf.length) {
+				flushBuffer();
+			}
+			final int start = count;
+			buf[count++] = op;
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				buf[count++] = (byte)(key >>> shift);
+			}
+			final int n = lengths == null ? 0
+				: (op == OP_CLEAN ? valueCount : (op == OP_SLOT ? 1 : 0));
+			if (n > 0) {
+				for (int i = 0; i < n; i++) {
+					long v = lengths[i];
+					while ((v & ~0x7fL) != 0) {
+						buf[count++] = (byte)((v & 0x7f) | 0x80);
+						v >>>= 7;
+					}
+					buf[count++] = (byte)v;
+				}
+			}
+			crc.reset();
+			crc.update(buf, start, count - start);
+			final int sum = (int)crc.getValue();
+			buf[count++] = (byte)(sum >>> 24);
+			buf[count++] = (byte)(sum >>> 16);
+			buf[count++] = (byte)(sum >>> 8);
+			buf[count++] = (byte)sum;
+		}
+
+		private void flushBuffer() throws IOException {
+			if (count > 0) {
+				out.write(buf, 0, count);
+				committed += count;
+				count = 0;
+			}
 		}
 
-		public String getLengths() throws IOException {
-			final StringBuilder result = new StringBuilder();
-			for (long size : lengths) {
-				result.append(' ').append(size);
-			}
-			return result.toString();
+		/**
+		 * バッファリング中のバイト数
+		 * @return
+		 */
+		private int pending() {
+			return count;
 		}
 
 		/**
-		 * Set lengths using decimal numbers like "10123".
+		 * バッファリング中のレコードも含めた書き込み位置
+		 * @return
 		 */
-		private void setLengths(final String[] strings) throws IOException {
-			if (strings.length != valueCount) {
-				throw invalidLengths(strings);
-			}
+		private long position() {
+			return committed + count;
+		}
 
-			try {
-				for (int i = 0; i < strings.length; i++) {
-					lengths[i] = Long.parseLong(strings[i]);
-				}
-			} catch (final NumberFormatException e) {
-				throw invalidLengths(strings);
-			}
+		/**
+		 * ファイルへ書き出し済みの書き込み位置
+		 * @return
+		 */
+		private long committedPosition() {
+			return committed;
 		}
 
-		private IOException invalidLengths(final String[] strings) throws IOException {
-			throw new IOException("unexpected journal line: " + Arrays.toString(strings));
+		/**
+		 * ファイルへ書き出したジャーナルをストレージへ同期する
+		 * @throws IOException
+		 */
+		private void force() throws IOException {
+			out.getChannel().force(false);
 		}
 
-		public File getCleanFile(int i) {
-			return new File(directory, key + "." + i);
+		/**
+		 * バッファリングしているレコードをファイルへ書き出す
+		 * @throws IOException
+		 */
+		private void flush() throws IOException {
+			flushBuffer();
+			out.flush();
 		}
 
-		public File getDirtyFile(int i) {
-			return new File(directory, key + "." + i + ".tmp");
+		@Override
+		public void close() throws IOException {
+			try {
+				flushBuffer();
+			} finally {
+				out.close();
+			}
 		}
 	}
+
+	private File getCleanFile(final long key, final int i) {
+		return new File(directory, key + "." + i);
+	}
+
+	private File getDirtyFile(final long key, final int i) {
+		return new File(directory, key + "." + i + ".tmp");
+	}
+
+	/**
+	 * エントリーの編集中に値を書き込むファイルを取得
+	 * エフェメラルモードで新規に生成するエントリーはリネームせずに済むように直接書き込む
+	 * @param key
+	 * @param i
+	 * @param readable 既存のエントリーを更新する時はtrue
+	 * @return
+	 */
+	private File getEditFile(final long key, final int i, final boolean readable) {
+		return ephemeral && !readable ? getCleanFile(key, i) : getDirtyFile(key, i);
+	}
+
+	private File getSlotFile(final int fileId, final int i) {
+		return new File(directory, SLOT_FILE_PREFIX + fileId + "." + i);
+	}
+
+	/**
+	 * エントリーの値を保存しているファイルを取得
+	 * @param key
+	 * @param fileId スロットファイルの番号, 負ならキーから生成したファイル名
+	 * @param i
+	 * @return
+	 */
+	private File getValueFile(final long key, final int fileId, final int i) {
+		return fileId >= 0 ? getSlotFile(fileId, i) : getCleanFile(key, i);
+	}
 }
@@ -0,0 +1,392 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import androidx.annotation.Nullable;
+
+/**
+ * タイムシフト録画用キャッシュのフレームインデックス
+ * キー(presentationTimeUs)が単調増加することを前提に、エントリーの情報を
+ * プリミティブ配列のリング(struct of arrays)で保持する。
+ * 最も古いエントリーの取得と末尾への追加はO(1)、キーでの検索は二分探索でO(log n)で、
+ * 追加・削除時にエントリー毎のオブジェクト生成は行わない。
+ * 各エントリーはスロット(配列上の位置)で参照する。スロットは#addで容量を
+ * 拡張するまで変わらない。
+ * スレッドセーフではないので呼び出し側で排他制御すること
+ * @param <E> エントリーを編集中のエディタの型
+ */
+final class TimeShiftFrameIndex<E> {
+	private static final int INITIAL_CAPACITY = 256;
+
+	/**
+	 * 削除済み
+	 */
+	static final int STATE_REMOVED = 0;
+	/**
+	 * 編集中
+	 */
+	static final int STATE_DIRTY = 0x01;
+	/**
+	 * 読み込み可能(1度以上コミットされた)
+	 */
+	static final int STATE_READABLE = 0x02;
+	/**
+	 * フラグの値を保持している
+	 */
+	static final int STATE_HAS_FLAGS = 0x04;
+
+	private final int valueCount;
+	private long[] mKeys = new long[INITIAL_CAPACITY];
+	/**
+	 * 値の長さ, エントリー毎にvalueCount個ずつ並ぶ
+	 */
+	private long[] mLengths;
+	private int[] mFlags = new int[INITIAL_CAPACITY];
+	/**
+	 * 値を保存しているスロットファイルの番号, 負ならキーから生成したファイル名
+	 */
+	private int[] mFileIds = new int[INITIAL_CAPACITY];
+	private int[] mStates = new int[INITIAL_CAPACITY];
+	private long[] mSequenceNumbers = new long[INITIAL_CAPACITY];
+	private Object[] mEditors = new Object[INITIAL_CAPACITY];
+	private int mHead;
+	/**
+	 * 先頭から末尾までのスロット数(途中の削除済みスロットを含む)
+	 */
+	private int mCount;
+	/**
+	 * 削除されていないエントリーの数
+	 */
+	private int mLive;
+
+	/**
+	 * コンストラクタ
+	 * @param valueCount エントリー毎の値の数
+	 */
+	TimeShiftFrameIndex(final int valueCount) {
+		if (valueCount <= 0) {
+			throw new IllegalArgumentException("valueCount <= 0");
+		}
+		this.valueCount = valueCount;
+		mLengths = new long[INITIAL_CAPACITY * valueCount];
+	}
+
+	/**
+	 * 削除されていないエントリーの数を取得
+	 * @return
+	 */
+	int size() {
+		return mLive;
+	}
+
+	/**
+	 * 指定したキーを末尾へ追加できるかどうか
+	 * @param key
+	 * @return
+	 */
+	boolean canAppend(final long key) {
+		return (mCount == 0) || (key > mKeys[physical(mCount - 1)]);
+	}
+
+	/**
+	 * 最も古いエントリーのスロットを取得
+	 * @return エントリーが無ければ-1
+	 */
+	int head() {
+		return mCount > 0 ? mHead : -1;
+	}
+
+	/**
+	 * 最も新しいエントリーのスロットを取得
+	 * @return エントリーが無ければ-1
+	 */
+	int tail() {
+		return mCount > 0 ? physical(mCount - 1) : -1;
+	}
+
+	/**
+	 * 指定したスロットの次の(削除されていない)エントリーのスロットを取得
+	 * @param slot
+	 * @return 次のエントリーが無ければ-1
+	 */
+	int next(final int slot) {
+		int i = slot - mHead;
+		if (i < 0) {
+			i += mKeys.length;
+		}
+		for (i++; i < mCount; i++) {
+			final int ix = physical(i);
+			if (mStates[ix] != STATE_REMOVED) {
+				return ix;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * キーを二分探索してスロットを返す
+	 * @param key
+	 * @return 見つからないか削除済みなら-1
+	 */
+	int indexOf(final long key) {
+		int lo = 0;
+		int hi = mCount - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			final int ix = physical(mid);
+			final long k = mKeys[ix];
+			if (k < key) {
+				lo = mid + 1;
+			} else if (k > key) {
+				hi = mid - 1;
+			} else {
+				return mStates[ix] != STATE_REMOVED ? ix : -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 指定したキーより大きいキーを持つ最も古い(削除されていない)エントリーのスロットを返す
+	 * @param key
+	 * @return 見つからなければ-1
+	 */
+	int higher(final long key) {
+		int lo = 0;
+		int hi = mCount - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (mKeys[physical(mid)] <= key) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		for (int i = lo; i < mCount; i++) {
+			final int ix = physical(i);
+			if (mStates[ix] != STATE_REMOVED) {
+				return ix;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 末尾へエントリーを追加する, 容量が足りなければ倍に拡張する
+	 * 追加直後の状態はSTATE_DIRTY
+	 * @param key 末尾のエントリーのキーより大きくないといけない
+	 * @return 追加したエントリーのスロット
+	 * @throws IllegalArgumentException
+	 */
+	int add(final long key) throws IllegalArgumentException {
+		if (!canAppend(key)) {
+			throw new IllegalArgumentException("key should be increasing:" + key);
+		}
+		if (mCount == mKeys.length) {
+			grow();
+		}
+		final int ix = physical(mCount);
+		mKeys[ix] = key;
+		for (int i = 0; i < valueCount; i++) {
+			mLengths[ix * valueCount + i] = 0;
+		}
+		mFlags[ix] = 0;
+		mFileIds[ix] = -1;
+		mStates[ix] = STATE_DIRTY;
+		mSequenceNumbers[ix] = 0;
+		mEditors[ix] = null;
+		mCount++;
+		mLive++;
+		return ix;
+	}
+
+	/**
+	 * 指定したスロットのエントリーを削除する
+	 * 先頭/末尾以外のエントリーは削除済みの印を付けるだけ
+	 * @param slot
+	 */
+	void remove(final int slot) {
+		if (mStates[slot] == STATE_REMOVED) {
+			return;
+		}
+		mStates[slot] = STATE_REMOVED;
+		mEditors[slot] = null;
+		mLive--;
+		// 先頭の削除済みスロットを取り除く
+		while ((mCount > 0) && (mStates[mHead] == STATE_REMOVED)) {
+			mHead = physical(1);
+			mCount--;
+		}
+		// 末尾の削除済みスロットを取り除く
+		while ((mCount > 0) && (mStates[physical(mCount - 1)] == STATE_REMOVED)) {
+			mCount--;
+		}
+		if (mCount == 0) {
+			mHead = 0;
+		}
+	}
+
+	/**
+	 * 全てのエントリーを削除する
+	 */
+	void clear() {
+		for (int i = 0; i < mCount; i++) {
+			final int ix = physical(i);
+			mStates[ix] = STATE_REMOVED;
+			mEditors[ix] = null;
+		}
+		mHead = mCount = mLive = 0;
+	}
+
+	long key(final int slot) {
+		return mKeys[slot];
+	}
+
+	int state(final int slot) {
+		return mStates[slot];
+	}
+
+	void setState(final int slot, final int state) {
+		mStates[slot] = state;
+	}
+
+	long length(final int slot, final int index) {
+		return mLengths[slot * valueCount + index];
+	}
+
+	void setLength(final int slot, final int index, final long length) {
+		mLengths[slot * valueCount + index] = length;
+	}
+
+	/**
+	 * 指定したスロットの値の長さをまとめてコピーする
+	 * @param slot
+	 * @param dst valueCount以上の長さが必要
+	 */
+	void getLengths(final int slot, final long[] dst) {
+		System.arraycopy(mLengths, slot * valueCount, dst, 0, valueCount);
+	}
+
+	/**
+	 * 指定したスロットの値の長さをまとめて設定する
+	 * @param slot
+	 * @param src valueCount以上の長さが必要
+	 */
+	void setLengths(final int slot, final long[] src) {
+		System.arraycopy(src, 0, mLengths, slot * valueCount, valueCount);
+	}
+
+	/**
+	 * 指定したスロットの値の長さの合計を取得
+	 * @param slot
+	 * @return
+	 */
+	long totalLength(final int slot) {
+		long result = 0;
+		final int offset = slot * valueCount;
+		for (int i = 0; i < valueCount; i++) {
+			result += mLengths[offset + i];
+		}
+		return result;
+	}
+
+	int flags(final int slot) {
+		return mFlags[slot];
+	}
+
+	/**
+	 * フラグを設定してSTATE_HAS_FLAGSを立てる
+	 * @param slot
+	 * @param flags
+	 */
+	void setFlags(final int slot, final int flags) {
+		mFlags[slot] = flags;
+		mStates[slot] |= STATE_HAS_FLAGS;
+	}
+
+	/**
+	 * 値を保存しているスロットファイルの番号を取得
+	 * @param slot
+	 * @return 負ならキーから生成したファイル名
+	 */
+	int fileId(final int slot) {
+		return mFileIds[slot];
+	}
+
+	void setFileId(final int slot, final int fileId) {
+		mFileIds[slot] = fileId;
+	}
+
+	long sequenceNumber(final int slot) {
+		return mSequenceNumbers[slot];
+	}
+
+	void setSequenceNumber(final int slot, final long sequenceNumber) {
+		mSequenceNumbers[slot] = sequenceNumber;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Nullable
+	E editor(final int slot) {
+		return (E)mEditors[slot];
+	}
+
+	void setEditor(final int slot, @Nullable final E editor) {
+		mEditors[slot] = editor;
+	}
+
+	/**
+	 * 論理インデックス(0が最も古い)をスロットへ変換
+	 * @param i
+	 * @return
+	 */
+	private int physical(final int i) {
+		final int ix = mHead + i;
+		return ix < mKeys.length ? ix : ix - mKeys.length;
+	}
+
+	/**
+	 * 容量を倍に拡張する, 先頭のスロットが0になるように並べ直す
+	 */
+	private void grow() {
+		final int n = mKeys.length * 2;
+		final long[] keys = new long[n];
+		final long[] lengths = new long[n * valueCount];
+		final int[] flags = new int[n];
+		final int[] fileIds = new int[n];
+		final int[] states = new int[n];
+		final long[] sequenceNumbers = new long[n];
+		final Object[] editors = new Object[n];
+		for (int i = 0; i < mCount; i++) {
+			final int ix = physical(i);
+			keys[i] = mKeys[ix];
+			System.arraycopy(mLengths, ix * valueCount, lengths, i * valueCount, valueCount);
+			flags[i] = mFlags[ix];
+			fileIds[i] = mFileIds[ix];
+			states[i] = mStates[ix];
+			sequenceNumbers[i] = mSequenceNumbers[ix];
+			editors[i] = mEditors[ix];
+		}
+		mKeys = keys;
+		mLengths = lengths;
+		mFlags = flags;
+		mFileIds = fileIds;
+		mStates = states;
+		mSequenceNumbers = sequenceNumbers;
+		mEditors = editors;
+		mHead = 0;
+	}
+}
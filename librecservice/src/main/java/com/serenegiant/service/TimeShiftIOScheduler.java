@@ -0,0 +1,526 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * キャッシュへの書き込み、書き出し、削除等のストレージへのアクセスを
+ * 優先度クラス毎にまとめて実行するためのスケジューラー
+ * 全てのキャッシュ/録画サービスで1つのインスタンスを共有する。
+ * 古いエントリーの削除やPostMuxの書き出し等の終わりのある処理は#executeで
+ * 全ての優先度クラスで共有するスレッドプール上で実行する。
+ * スレッドプールのスレッド数の上限を超えない範囲で空いているスレッドは
+ * どの優先度クラスでも使えるので、実行待ちのタスクは優先度の高いクラスから順に開始する。
+ * ただし1つの優先度クラスが全てのスレッドを使わないように優先度クラス毎の同時実行数も制限する。
+ * 非同期書き込み、録画、クリップの書き出し等の録画/書き出しが終わるまで続く処理は
+ * スレッドプールのスレッドを占有しないように#startThreadで専用スレッド上で実行する。
+ * 専用スレッドの数も優先度クラス毎に制限し、上限に達している時は開始せずに例外を投げる。
+ * どちらもスレッドの優先度を優先度クラスに合わせて変更する
+ * テスト時等は#setInstanceで任意のExecutorを使うインスタンスに差し替えることができる
+ */
+final class TimeShiftIOScheduler {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = TimeShiftIOScheduler.class.getSimpleName();
+
+	/**
+	 * 優先度クラス: タイムシフトバッファへのフレームデータの書き込みと録画中のmp4ファイルへの書き出し
+	 * 録画はエンコーダーの出力に追いつけないとフレームデータが削除されて欠落するので書き込みと同じにする
+	 */
+	static final int PRIORITY_LIVE_WRITE = 0;
+	/**
+	 * 優先度クラス: クリップの書き出し等の録画以外のキャッシュからの読み込み
+	 */
+	static final int PRIORITY_EXPORT = 1;
+	/**
+	 * 優先度クラス: 古いエントリーの削除やジャーナルの再構築等の保守処理
+	 */
+	static final int PRIORITY_MAINTENANCE = 2;
+	private static final int NUM_PRIORITIES = 3;
+
+	/**
+	 * スレッドプールのデフォルトのスレッド数
+	 */
+	private static final int DEFAULT_MAX_THREADS = 3;
+	/**
+	 * 優先度クラス毎のデフォルトの同時実行数
+	 * 書き込み以外はスレッド数より少なくして他の優先度クラス用のスレッドを残す
+	 */
+	private static final int[] DEFAULT_MAX_RUNNING = {3, 2, 2};
+	/**
+	 * 優先度クラス毎のデフォルトの専用スレッド数の上限
+	 * 書き込みは非同期書き込みと録画で1サービスあたり2スレッド使うので2サービス分にする
+	 */
+	private static final int[] DEFAULT_MAX_STREAMING = {4, 2, 1};
+	/**
+	 * 優先度クラス毎のスレッドの優先度
+	 */
+	private static final int[] THREAD_PRIORITIES = {
+		Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_MORE_FAVORABLE,
+		Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE,
+		Process.THREAD_PRIORITY_LOWEST,
+	};
+	/**
+	 * スレッドプールのスレッドが終了するまでのアイドル時間[秒]
+	 */
+	private static final long KEEP_ALIVE_SECS = 30;
+
+	@Nullable
+	private static TimeShiftIOScheduler sInstance;
+
+	/**
+	 * 共有インスタンスを取得する, まだ生成されていなければ生成する
+	 * @return
+	 */
+	@NonNull
+	static synchronized TimeShiftIOScheduler getInstance() {
+		if (sInstance == null) {
+			sInstance = new TimeShiftIOScheduler();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * 共有インスタンスを差し替える, テスト用
+	 * nullを渡すと次に#getInstanceを呼んだときにデフォルトのインスタンスを生成する
+	 * 差し替える前に開いたキャッシュ等は差し替える前のインスタンスを使い続ける
+	 * @param scheduler
+	 */
+	static synchronized void setInstance(@Nullable final TimeShiftIOScheduler scheduler) {
+		sInstance = scheduler;
+	}
+
+	/**
+	 * 実行待ちのタスク
+	 */
+	private static final class Task {
+		@NonNull
+		private final String name;
+		@NonNull
+		private final Runnable runnable;
+		private final long queuedMs;
+
+		private Task(@NonNull final String name, @NonNull final Runnable runnable) {
+			this.name = name;
+			this.runnable = runnable;
+			this.queuedMs = SystemClock.elapsedRealtime();
+		}
+	}
+
+	@NonNull
+	private final Executor mExecutor;
+	/**
+	 * #executeDelayedで遅延時間が経過したタスクを実行待ちキューへ追加するためのタイマー
+	 * タスク自体はこのスレッド上では実行しない
+	 */
+	@Nullable
+	private ScheduledThreadPoolExecutor mTimer;
+	private final int mMaxThreads;
+	private final int[] mMaxRunning;
+	private final Object mSync = new Object();
+	@SuppressWarnings("unchecked")
+	private final ArrayDeque<Task>[] mQueues = new ArrayDeque[NUM_PRIORITIES];
+	/**
+	 * スレッドプール上で実行中のタスク数の合計
+	 */
+	private int mTotalRunning;
+	private final int[] mRunning = new int[NUM_PRIORITIES];
+	private final long[] mCompleted = new long[NUM_PRIORITIES];
+	private final long[] mTotalWaitMs = new long[NUM_PRIORITIES];
+	private final long[] mMaxWaitMs = new long[NUM_PRIORITIES];
+	/**
+	 * 専用スレッド上で実行中のタスク数
+	 */
+	private final int[] mStreaming = new int[NUM_PRIORITIES];
+	private final int[] mMaxStreaming;
+
+	/**
+	 * デフォルトのスレッド数のスレッドプールを使うコンストラクタ
+	 */
+	private TimeShiftIOScheduler() {
+		this(createExecutor(DEFAULT_MAX_THREADS), DEFAULT_MAX_THREADS, DEFAULT_MAX_RUNNING);
+	}
+
+	/**
+	 * 専用スレッド数の上限をデフォルト値にするコンストラクタ
+	 * @param executor タスクを実行するExecutor, maxThreads個のタスクを同時に実行できなければならない
+	 * @param maxThreads 全ての優先度クラスで同時に実行するタスク数の上限
+	 * @param maxRunning 優先度クラス毎の同時実行数, PRIORITY_LIVE_WRITE, PRIORITY_EXPORT,
+	 * 					PRIORITY_MAINTENANCEの順
+	 */
+	TimeShiftIOScheduler(@NonNull final Executor executor,
+		final int maxThreads, @NonNull final int[] maxRunning) {
+
+		this(executor, maxThreads, maxRunning, DEFAULT_MAX_STREAMING);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param executor タスクを実行するExecutor, maxThreads個のタスクを同時に実行できなければならない
+	 * @param maxThreads 全ての優先度クラスで同時に実行するタスク数の上限
+	 * @param maxRunning 優先度クラス毎の同時実行数, PRIORITY_LIVE_WRITE, PRIORITY_EXPORT,
+	 * 					PRIORITY_MAINTENANCEの順
+	 * @param maxStreaming 優先度クラス毎の専用スレッド数の上限, maxRunningと同じ順
+	 */
+	TimeShiftIOScheduler(@NonNull final Executor executor,
+		final int maxThreads, @NonNull final int[] maxRunning,
+		@NonNull final int[] maxStreaming) {
+
+		if (maxThreads <= 0) {
+			throw new IllegalArgumentException("maxThreads should be greater than zero");
+		}
+		if (maxRunning.length != NUM_PRIORITIES) {
+			throw new IllegalArgumentException("maxRunning should have " + NUM_PRIORITIES + " elements");
+		}
+		for (final int n: maxRunning) {
+			if (n <= 0) {
+				throw new IllegalArgumentException("maxRunning should be greater than zero");
+			}
+		}
+		if (maxStreaming.length != NUM_PRIORITIES) {
+			throw new IllegalArgumentException("maxStreaming should have " + NUM_PRIORITIES + " elements");
+		}
+		for (final int n: maxStreaming) {
+			if (n <= 0) {
+				throw new IllegalArgumentException("maxStreaming should be greater than zero");
+			}
+		}
+		mExecutor = executor;
+		mMaxThreads = maxThreads;
+		mMaxRunning = maxRunning.clone();
+		mMaxStreaming = maxStreaming.clone();
+		for (int i = 0; i < NUM_PRIORITIES; i++) {
+			mQueues[i] = new ArrayDeque<>();
+		}
+	}
+
+	/**
+	 * 終わりのある短いタスクを実行待ちキューへ追加する
+	 * 同じ優先度クラスのタスクは追加した順に実行する
+	 * 録画/書き出しが終わるまで続くタスクは#startThreadを使うこと
+	 * @param priority PRIORITY_LIVE_WRITE, PRIORITY_EXPORT, PRIORITY_MAINTENANCEのいずれか
+	 * @param name 実行中のスレッド名
+	 * @param task
+	 */
+	void execute(final int priority,
+		@NonNull final String name, @NonNull final Runnable task) {
+
+		checkPriority(priority);
+		synchronized (mSync) {
+			mQueues[priority].addLast(new Task(name, task));
+		}
+		dispatch();
+	}
+
+	/**
+	 * 指定した時間が経過してから終わりのある短いタスクを実行待ちキューへ追加する
+	 * 待機中もスレッドプールのスレッドを占有しない
+	 * @param priority PRIORITY_LIVE_WRITE, PRIORITY_EXPORT, PRIORITY_MAINTENANCEのいずれか
+	 * @param name 実行中のスレッド名
+	 * @param task
+	 * @param delayMs 遅延時間[ミリ秒], 0以下なら#executeと同じ
+	 */
+	void executeDelayed(final int priority,
+		@NonNull final String name, @NonNull final Runnable task, final long delayMs) {
+
+		checkPriority(priority);
+		if (delayMs <= 0) {
+			execute(priority, name, task);
+			return;
+		}
+		final ScheduledThreadPoolExecutor timer;
+		synchronized (mSync) {
+			if (mTimer == null) {
+				mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+					@Override
+					public Thread newThread(@NonNull final Runnable r) {
+						final Thread thread = new Thread(r, TAG + "-timer");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				mTimer.setKeepAliveTime(KEEP_ALIVE_SECS, TimeUnit.SECONDS);
+				mTimer.allowCoreThreadTimeOut(true);
+			}
+			timer = mTimer;
+		}
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				execute(priority, name, task);
+			}
+		}, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 録画/書き出しが終わるまで続くタスクを専用スレッド上で実行する
+	 * スレッドの優先度は優先度クラスに合わせる
+	 * 優先度クラス毎の専用スレッド数が上限に達している時は開始しない
+	 * @param priority PRIORITY_LIVE_WRITE, PRIORITY_EXPORT, PRIORITY_MAINTENANCEのいずれか
+	 * @param name スレッド名
+	 * @param task
+	 * @return 開始したスレッド
+	 * @throws IllegalStateException 専用スレッド数が上限に達している時
+	 */
+	@NonNull
+	Thread startThread(final int priority,
+		@NonNull final String name, @NonNull final Runnable task) {
+
+		checkPriority(priority);
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				setThreadPriority(priority);
+				try {
+					task.run();
+				} finally {
+					synchronized (mSync) {
+						mStreaming[priority]--;
+					}
+				}
+			}
+		}, name);
+		synchronized (mSync) {
+			if (mStreaming[priority] >= mMaxStreaming[priority]) {
+				throw new IllegalStateException("too many streaming threads:" + name
+					+ ",priority=" + priority + ",max=" + mMaxStreaming[priority]);
+			}
+			mStreaming[priority]++;
+		}
+		try {
+			thread.start();
+		} catch (final RuntimeException e) {
+			synchronized (mSync) {
+				mStreaming[priority]--;
+			}
+			throw e;
+		}
+		return thread;
+	}
+
+	/**
+	 * 実行待ちのタスク数を取得
+	 * @param priority
+	 * @return
+	 */
+	int getQueuedCount(final int priority) {
+		checkPriority(priority);
+		synchronized (mSync) {
+			return mQueues[priority].size();
+		}
+	}
+
+	/**
+	 * スレッドプール上で実行中のタスク数を取得
+	 * @param priority
+	 * @return
+	 */
+	int getRunningCount(final int priority) {
+		checkPriority(priority);
+		synchronized (mSync) {
+			return mRunning[priority];
+		}
+	}
+
+	/**
+	 * 専用スレッド上で実行中のタスク数を取得
+	 * @param priority
+	 * @return
+	 */
+	int getStreamingCount(final int priority) {
+		checkPriority(priority);
+		synchronized (mSync) {
+			return mStreaming[priority];
+		}
+	}
+
+	/**
+	 * スレッドプール上で実行し終わったタスク数を取得
+	 * @param priority
+	 * @return
+	 */
+	long getCompletedCount(final int priority) {
+		checkPriority(priority);
+		synchronized (mSync) {
+			return mCompleted[priority];
+		}
+	}
+
+	/**
+	 * キューへ追加してから実行を開始するまでの待ち時間の平均[ミリ秒]を取得
+	 * @param priority
+	 * @return
+	 */
+	long getAverageWaitMs(final int priority) {
+		checkPriority(priority);
+		synchronized (mSync) {
+			final long started = mCompleted[priority] + mRunning[priority];
+			return started > 0 ? mTotalWaitMs[priority] / started : 0;
+		}
+	}
+
+	/**
+	 * キューへ追加してから実行を開始するまでの待ち時間の最大値[ミリ秒]を取得
+	 * @param priority
+	 * @return
+	 */
+	long getMaxWaitMs(final int priority) {
+		checkPriority(priority);
+		synchronized (mSync) {
+			return mMaxWaitMs[priority];
+		}
+	}
+
+	/**
+	 * スレッドプールに空きがある間、実行待ちのタスクを優先度の高いクラスから順に開始する
+	 * 同時実行数の上限に達している優先度クラスは飛ばす
+	 */
+	private void dispatch() {
+		for ( ; ; ) {
+			final Task task;
+			int priority = -1;
+			synchronized (mSync) {
+				if (mTotalRunning >= mMaxThreads) {
+					return;
+				}
+				for (int i = 0; i < NUM_PRIORITIES; i++) {
+					if (!mQueues[i].isEmpty() && (mRunning[i] < mMaxRunning[i])) {
+						priority = i;
+						break;
+					}
+				}
+				if (priority < 0) {
+					return;
+				}
+				task = mQueues[priority].removeFirst();
+				mRunning[priority]++;
+				mTotalRunning++;
+				final long waitMs = SystemClock.elapsedRealtime() - task.queuedMs;
+				mTotalWaitMs[priority] += waitMs;
+				if (waitMs > mMaxWaitMs[priority]) {
+					mMaxWaitMs[priority] = waitMs;
+				}
+			}
+			try {
+				mExecutor.execute(new Worker(priority, task));
+			} catch (final RuntimeException e) {
+				synchronized (mSync) {
+					mRunning[priority]--;
+					mTotalRunning--;
+				}
+				Log.w(TAG, "failed to execute " + task.name, e);
+			}
+		}
+	}
+
+	/**
+	 * タスクを実行し終わった時の処理
+	 * @param priority
+	 */
+	private void finish(final int priority) {
+		synchronized (mSync) {
+			mRunning[priority]--;
+			mTotalRunning--;
+			mCompleted[priority]++;
+		}
+		dispatch();
+	}
+
+	/**
+	 * スレッドの名前と優先度を優先度クラスに合わせて変更してタスクを実行する
+	 */
+	private final class Worker implements Runnable {
+		private final int priority;
+		@NonNull
+		private final Task task;
+
+		private Worker(final int priority, @NonNull final Task task) {
+			this.priority = priority;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			final Thread thread = Thread.currentThread();
+			final String name = thread.getName();
+			thread.setName(task.name);
+			setThreadPriority(priority);
+			try {
+				task.runnable.run();
+			} catch (final RuntimeException e) {
+				Log.w(TAG, "task " + task.name + " failed", e);
+			} finally {
+				thread.setName(name);
+				finish(priority);
+			}
+		}
+	}
+
+	/**
+	 * 呼び出し元スレッドの優先度を優先度クラスに合わせて変更する
+	 * @param priority
+	 */
+	private static void setThreadPriority(final int priority) {
+		try {
+			Process.setThreadPriority(THREAD_PRIORITIES[priority]);
+		} catch (final RuntimeException e) {
+			if (DEBUG) Log.w(TAG, e);
+		}
+	}
+
+	private static void checkPriority(final int priority) {
+		if ((priority < 0) || (priority >= NUM_PRIORITIES)) {
+			throw new IllegalArgumentException("unknown priority:" + priority);
+		}
+	}
+
+	/**
+	 * デフォルトのスレッドプールを生成する
+	 * アイドル状態が続くとスレッドを終了する
+	 * @param maxThreads
+	 * @return
+	 */
+	@NonNull
+	private static Executor createExecutor(final int maxThreads) {
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			maxThreads, maxThreads, KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger();
+				@Override
+				public Thread newThread(@NonNull final Runnable r) {
+					final Thread thread = new Thread(r, TAG + "-" + mCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+}
@@ -0,0 +1,279 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * フレームデータをメモリー上のByteBufferのプールにだけ保持するITimeShiftCache実装
+ * ストレージへは書き込まないので端末を再起動したりプロセスが終了すると消える。
+ * ヒープ上のByteBufferとダイレクトByteBufferのどちらを使うかを選択できる
+ */
+final class TimeShiftMemoryCache implements ITimeShiftCache {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = TimeShiftMemoryCache.class.getSimpleName();
+
+	/**
+	 * フォーマット等の書き出し先, フレームデータはここへは書き込まない
+	 */
+	@NonNull
+	private final File directory;
+	private volatile long maxSize;
+	private final long maxDurationUs;
+	/**
+	 * フレームデータを保持するByteBufferのプール
+	 */
+	@NonNull
+	private final TimeShiftMemoryStore mStore;
+	private long newestKey;
+	private boolean closed;
+	/**
+	 * 古いエントリーをキーフレーム単位で削除するかどうか
+	 */
+	private boolean keyFrameAligned;
+	/**
+	 * 低水位マーク, これ以降のエントリーは最大サイズ/最大時間を超えても削除しない
+	 */
+	private long lowWaterMark;
+
+	/**
+	 * Opens the cache.
+	 * @param directory   フォーマット等の書き出し先, フレームデータは書き込まない
+	 * @param maxSize     the maximum number of bytes this cache should use to store
+	 * @param maxDuration the maximum time as mills seconds that this cache will hold
+	 * @param direct      trueならダイレクトByteBuffer, falseならヒープ上のByteBufferを使う
+	 * @throws IOException
+	 */
+	public static TimeShiftMemoryCache open(@NonNull final File directory,
+		final long maxSize, final long maxDuration, final boolean direct) throws IOException {
+
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		if (maxDuration <= 0) {
+			throw new IllegalArgumentException("maxDuration <= 0");
+		}
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("failed to create directory " + directory);
+		}
+		return new TimeShiftMemoryCache(directory, maxSize, maxDuration, direct);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param directory
+	 * @param maxSize
+	 * @param maxDurationMs
+	 * @param direct
+	 */
+	private TimeShiftMemoryCache(@NonNull final File directory,
+		final long maxSize, final long maxDurationMs, final boolean direct) {
+
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.maxDurationUs = maxDurationMs * 1000L;
+		mStore = new TimeShiftMemoryStore(this, maxSize, direct,
+			new TimeShiftMemoryStore.Callback() {
+				@Override
+				public void onCommit(@NonNull final TimeShiftMemoryStore.Entry entry)
+					throws IOException {
+
+					publish(entry);
+				}
+			});
+	}
+
+	@Override
+	public File getDirectory() {
+		return directory;
+	}
+
+	@Override
+	public long maxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * 最大サイズを変更する
+	 * 小さくしたときは超えた分の古いエントリーをすぐに削除して、プールも縮める
+	 * @param maxSize
+	 */
+	@Override
+	public synchronized void setMaxSize(final long maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		if (this.maxSize != maxSize) {
+			this.maxSize = maxSize;
+			if (!closed) {
+				trimEntries();
+				mStore.setMaxCapacity(maxSize);
+			}
+		}
+	}
+
+	@Override
+	public synchronized long size() {
+		return mStore.size();
+	}
+
+	@Override
+	public synchronized long oldestKey() {
+		return mStore.firstKey();
+	}
+
+	@Override
+	public synchronized long newestKey() {
+		return mStore.lastKey();
+	}
+
+	@Override
+	public synchronized long nextKey(final long key) {
+		return mStore.nextKey(key);
+	}
+
+	@Override
+	public synchronized Snapshot get(final long key) throws IOException {
+		checkNotClosed();
+		return mStore.get(key);
+	}
+
+	@Override
+	public synchronized Snapshot getOldest() throws IOException {
+		return get(oldestKey());
+	}
+
+	@Override
+	public synchronized Editor edit(final long key) throws IOException {
+		checkNotClosed();
+		if (mStore.contains(key)) {
+			return null;
+		}
+		return mStore.edit(key);
+	}
+
+	@Override
+	public synchronized boolean remove(final long key) throws IOException {
+		checkNotClosed();
+		return mStore.remove(key);
+	}
+
+	@Override
+	public synchronized int removeBefore(final long key) throws IOException {
+		checkNotClosed();
+		int result = mStore.removeBefore(key);
+		if ((result > 0) && keyFrameAligned) {
+			result += mStore.trimToKeyFrame(lowWaterMark);
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized void setKeyFrameAligned(final boolean aligned) {
+		keyFrameAligned = aligned;
+	}
+
+	@Override
+	public synchronized void setLowWaterMark(final long key) {
+		lowWaterMark = key;
+	}
+
+	@Override
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		checkNotClosed();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return; // already closed
+		}
+		closed = true;
+		mStore.close();
+	}
+
+	/**
+	 * キャッシュを閉じてディレクトリ内のファイル(フォーマット等)も削除する
+	 * @throws IOException
+	 */
+	@Override
+	public void delete() throws IOException {
+		close();
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (final File file: files) {
+				if (file.isFile() && !file.delete()) {
+					Log.w(TAG, "failed to delete " + file);
+				}
+			}
+		}
+		if (!directory.delete()) {
+			Log.w(TAG, "failed to delete " + directory);
+		}
+	}
+
+	private void checkNotClosed() {
+		if (closed) {
+			throw new IllegalStateException("cache is closed");
+		}
+	}
+
+	private synchronized void publish(@NonNull final TimeShiftMemoryStore.Entry entry)
+		throws IOException {
+
+		checkNotClosed();
+		mStore.put(entry);
+		if (entry.key > newestKey) {
+			newestKey = entry.key;
+		}
+		trimEntries();
+	}
+
+	/**
+	 * 最大サイズまたは最大時間を超えた古いエントリーを削除する
+	 * 低水位マーク以降のエントリーは削除しない
+	 */
+	private void trimEntries() {
+		final long limit = newestKey - maxDurationUs;
+		int removed = 0;
+		for ( ; ; ) {
+			final TimeShiftMemoryStore.Entry entry = mStore.peekFirst();
+			if ((entry == null)
+				|| ((mStore.capacity() <= maxSize) && (entry.key >= limit))
+				|| TimeShiftMemoryStore.isRetained(entry.key, lowWaterMark)) {
+				break;
+			}
+			mStore.pollFirst();
+			mStore.release(entry);
+			removed++;
+		}
+		if ((removed > 0) && keyFrameAligned) {
+			removed += mStore.trimToKeyFrame(lowWaterMark);
+		}
+		if (DEBUG && (removed > 0)) Log.v(TAG, "trimEntries:removed=" + removed
+			+ ",size=" + mStore.size() + ",capacity=" + mStore.capacity());
+	}
+}
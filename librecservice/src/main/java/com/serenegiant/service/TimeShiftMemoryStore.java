@@ -0,0 +1,534 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.media.MediaCodec;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * フレームデータをプールしたByteBufferへ保持するメモリー上のストア
+ * TimeShiftMemoryCacheとTimeShiftTieredCacheのメモリー上の部分で共有する
+ * 読み込み中のスナップショットがあるエントリーのByteBufferは閉じるまで再利用しない
+ * スレッドセーフではないので所有するキャッシュのロック(コンストラクタへ渡したlock)を
+ * 保持して呼ぶこと。Snapshot/Editorは自分でlockをロックする
+ */
+final class TimeShiftMemoryStore {
+	/**
+	 * プールするByteBufferの容量の単位[バイト]
+	 */
+	private static final int POOL_UNIT = 4 * 1024;
+
+	/**
+	 * Editor#commitでエントリーをストアへ追加する時のコールバックインターフェース
+	 */
+	interface Callback {
+		/**
+		 * 所有するキャッシュのロックを保持せずに呼ばれるので
+		 * ロックしてから#putでストアへ追加すること
+		 * @param entry
+		 * @throws IOException
+		 */
+		public void onCommit(@NonNull final Entry entry) throws IOException;
+	}
+
+	/**
+	 * メモリー上に保持しているフレームデータ
+	 */
+	static final class Entry {
+		final long key;
+		final ByteBuffer buffer;
+		final int size;
+		final int flags;
+		/**
+		 * 読み込み中のスナップショット数
+		 */
+		private int pins;
+		private boolean removed;
+
+		private Entry(final long key,
+			@NonNull final ByteBuffer buffer, final int size, final int flags) {
+
+			this.key = key;
+			this.buffer = buffer;
+			this.size = size;
+			this.flags = flags;
+		}
+
+		boolean isKeyFrame() {
+			return (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+		}
+	}
+
+	@NonNull
+	private final Object mLock;
+	@NonNull
+	private final Callback mCallback;
+	/**
+	 * trueならダイレクトByteBuffer, falseならヒープ上のByteBufferを使う
+	 */
+	private final boolean direct;
+	/**
+	 * 保持しているフレームデータとプールしているByteBufferの容量の合計の上限
+	 */
+	private long maxCapacity;
+	/**
+	 * キー順のエントリー, キーで次のエントリーを探せるようにTreeMapで保持する
+	 */
+	private final TreeMap<Long, Entry> mEntries = new TreeMap<>();
+	/**
+	 * 再利用するByteBufferのプール
+	 */
+	private final ArrayDeque<ByteBuffer> mPool = new ArrayDeque<>();
+	/**
+	 * 保持しているフレームデータのサイズ
+	 */
+	private long size;
+	/**
+	 * 保持しているフレームデータに割り当てているByteBufferの容量の合計
+	 */
+	private long capacity;
+	/**
+	 * プールしているByteBufferの容量の合計
+	 */
+	private long poolCapacity;
+	private boolean closed;
+
+	/**
+	 * コンストラクタ
+	 * @param lock 所有するキャッシュのロック
+	 * @param maxCapacity 保持しているフレームデータとプールしているByteBufferの容量の合計の上限[バイト]
+	 * @param direct trueならダイレクトByteBuffer, falseならヒープ上のByteBufferを使う
+	 * @param callback
+	 */
+	TimeShiftMemoryStore(@NonNull final Object lock,
+		final long maxCapacity, final boolean direct, @NonNull final Callback callback) {
+
+		mLock = lock;
+		mCallback = callback;
+		this.maxCapacity = maxCapacity;
+		this.direct = direct;
+	}
+
+	/**
+	 * 保持しているフレームデータのサイズを返す
+	 * @return
+	 */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * 保持しているフレームデータに割り当てているByteBufferの容量の合計を返す
+	 * @return
+	 */
+	long capacity() {
+		return capacity;
+	}
+
+	/**
+	 * 容量の上限を変更する, 小さくしたときはプールを縮める
+	 * 保持しているエントリーの削除は所有するキャッシュ側で行う
+	 * @param maxCapacity
+	 */
+	void setMaxCapacity(final long maxCapacity) {
+		this.maxCapacity = maxCapacity;
+		while (!mPool.isEmpty() && (capacity + poolCapacity > maxCapacity)) {
+			poolCapacity -= mPool.removeFirst().capacity();
+		}
+	}
+
+	boolean isEmpty() {
+		return mEntries.isEmpty();
+	}
+
+	boolean contains(final long key) {
+		return mEntries.containsKey(key);
+	}
+
+	/**
+	 * @return 空なら0
+	 */
+	long firstKey() {
+		return mEntries.size() > 0 ? mEntries.firstKey() : 0;
+	}
+
+	/**
+	 * @return 空なら0
+	 */
+	long lastKey() {
+		return mEntries.size() > 0 ? mEntries.lastKey() : 0;
+	}
+
+	/**
+	 * @param key
+	 * @return 無ければ0
+	 */
+	long nextKey(final long key) {
+		final Long next = mEntries.higherKey(key);
+		return next != null ? next : 0;
+	}
+
+	/**
+	 * 最も古いエントリーを取得する, 削除はしない
+	 * @return 空ならnull
+	 */
+	@Nullable
+	Entry peekFirst() {
+		final Map.Entry<Long, Entry> first = mEntries.firstEntry();
+		return first != null ? first.getValue() : null;
+	}
+
+	/**
+	 * 最も古いエントリーを取り除く
+	 * ByteBufferは#releaseを呼ぶまで再利用しないので、取り除いた後でも読み込める
+	 * @return 空ならnull
+	 */
+	@Nullable
+	Entry pollFirst() {
+		final Map.Entry<Long, Entry> first = mEntries.pollFirstEntry();
+		return first != null ? first.getValue() : null;
+	}
+
+	/**
+	 * Editor#commitで生成したエントリーを追加する
+	 * @param entry
+	 */
+	void put(@NonNull final Entry entry) {
+		checkNotClosed();
+		mEntries.put(entry.key, entry);
+		size += entry.size;
+		capacity += entry.buffer.capacity();
+	}
+
+	/**
+	 * 指定したキーのエントリーを削除する
+	 * @param key
+	 * @return 削除したときはtrue
+	 */
+	boolean remove(final long key) {
+		final Entry entry = mEntries.remove(key);
+		if (entry != null) {
+			release(entry);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 指定したキーより前のエントリーを全て削除する
+	 * @param key
+	 * @return 削除したエントリー数
+	 */
+	int removeBefore(final long key) {
+		int result = 0;
+		for (final Iterator<Entry> i = mEntries.values().iterator(); i.hasNext(); ) {
+			final Entry entry = i.next();
+			if (entry.key >= key) {
+				break;
+			}
+			i.remove();
+			release(entry);
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * 先頭がキーフレームまたは低水位マーク以降のエントリーになるまで削除する
+	 * @param lowWaterMark
+	 * @return 削除したエントリー数
+	 */
+	int trimToKeyFrame(final long lowWaterMark) {
+		int result = 0;
+		for (final Iterator<Entry> i = mEntries.values().iterator(); i.hasNext(); ) {
+			final Entry entry = i.next();
+			if (entry.isKeyFrame() || isRetained(entry.key, lowWaterMark)) {
+				break;
+			}
+			i.remove();
+			release(entry);
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * 指定したキーのエントリーのスナップショットを取得する
+	 * @param key
+	 * @return 無ければnull
+	 */
+	@Nullable
+	ITimeShiftCache.Snapshot get(final long key) {
+		checkNotClosed();
+		final Entry entry = mEntries.get(key);
+		if (entry != null) {
+			entry.pins++;
+			return new Snapshot(entry);
+		}
+		return null;
+	}
+
+	/**
+	 * 指定したキーのエントリーを書き込むためのEditorを生成する
+	 * @param key
+	 * @return
+	 */
+	@NonNull
+	ITimeShiftCache.Editor edit(final long key) {
+		checkNotClosed();
+		return new Editor(key);
+	}
+
+	/**
+	 * 全てのエントリーとプールを破棄する
+	 * 以降は読み込み中のスナップショットを閉じてもByteBufferをプールへ戻さない
+	 */
+	void close() {
+		closed = true;
+		mEntries.clear();
+		mPool.clear();
+		size = capacity = poolCapacity = 0;
+	}
+
+	/**
+	 * 取り除いたエントリーを削除済みにする
+	 * 読み込み中でなければByteBufferをプールへ戻す
+	 * @param entry
+	 */
+	void release(@NonNull final Entry entry) {
+		if (!entry.removed) {
+			entry.removed = true;
+			size -= entry.size;
+			capacity -= entry.buffer.capacity();
+		}
+		if (entry.pins <= 0) {
+			recycle(entry.buffer);
+		}
+	}
+
+	/**
+	 * 低水位マーク以降のエントリーかどうか
+	 * @param key
+	 * @param lowWaterMark
+	 * @return trueなら最大サイズ/最大時間を超えても削除しない
+	 */
+	static boolean isRetained(final long key, final long lowWaterMark) {
+		return (lowWaterMark > 0) && (key >= lowWaterMark);
+	}
+
+	private void checkNotClosed() {
+		if (closed) {
+			throw new IllegalStateException("cache is closed");
+		}
+	}
+
+	/**
+	 * プールからByteBufferを取得する, プールに無ければ新たに割り当てる
+	 * @param size
+	 * @return
+	 */
+	@NonNull
+	private ByteBuffer obtain(final int size) {
+		for (final Iterator<ByteBuffer> i = mPool.iterator(); i.hasNext(); ) {
+			final ByteBuffer buf = i.next();
+			if (buf.capacity() >= size) {
+				i.remove();
+				poolCapacity -= buf.capacity();
+				buf.clear();
+				return buf;
+			}
+		}
+		final int capacity = Math.max((size + POOL_UNIT - 1) / POOL_UNIT * POOL_UNIT, POOL_UNIT);
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * ByteBufferをプールへ戻す, 上限を超える時は破棄する
+	 * @param buf
+	 */
+	private void recycle(@NonNull final ByteBuffer buf) {
+		if (!closed && (capacity + poolCapacity + buf.capacity() <= maxCapacity)) {
+			mPool.addLast(buf);
+			poolCapacity += buf.capacity();
+		}
+	}
+
+	private void unpin(@NonNull final Entry entry) {
+		synchronized (mLock) {
+			entry.pins--;
+			if (entry.removed && (entry.pins <= 0)) {
+				recycle(entry.buffer);
+			}
+		}
+	}
+
+	/**
+	 * A snapshot of the entry on memory.
+	 * 閉じるまではByteBufferは再利用されない
+	 */
+	private final class Snapshot implements ITimeShiftCache.Snapshot {
+		private final Entry entry;
+		private boolean closed;
+
+		private Snapshot(@NonNull final Entry entry) {
+			this.entry = entry;
+		}
+
+		@Override
+		public long getKey() {
+			return entry.key;
+		}
+
+		@Override
+		public int available(final int index) throws IOException {
+			return index == 0 ? entry.size : 4;
+		}
+
+		@Override
+		public byte[] getBytes(final int index, final byte[] dst) throws IOException {
+			final ByteBuffer buf = getByteBuffer(index, null);
+			final byte[] result = (dst != null) && (dst.length >= buf.remaining())
+				? dst : new byte[buf.remaining()];
+			buf.get(result, 0, buf.remaining());
+			return result;
+		}
+
+		@Override
+		public int getInt(final int index) throws IOException {
+			if (index == 1) {
+				return entry.flags;
+			}
+			throw new IOException("unexpected index " + index);
+		}
+
+		/**
+		 * ByteBufferの読み込み専用のビューを返す, コピーはしない
+		 * @param index
+		 * @param dst 使わない
+		 * @return
+		 * @throws IOException
+		 */
+		@NonNull
+		@Override
+		public ByteBuffer getByteBuffer(final int index,
+			@Nullable final ByteBuffer dst) throws IOException {
+
+			if (closed) {
+				throw new IOException("snapshot is already closed");
+			}
+			if (index == 0) {
+				final ByteBuffer result = entry.buffer.asReadOnlyBuffer();
+				result.clear();
+				result.limit(entry.size);
+				return result.slice();
+			} else {
+				final ByteBuffer result = ByteBuffer.allocate(4);
+				result.putInt(entry.flags).flip();
+				return result;
+			}
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				unpin(entry);
+			}
+		}
+	}
+
+	/**
+	 * Edits the values for an entry on memory.
+	 */
+	private final class Editor implements ITimeShiftCache.Editor {
+		private final long key;
+		private ByteBuffer buffer;
+		private int size;
+		private int flags;
+		private boolean done;
+
+		private Editor(final long key) {
+			this.key = key;
+		}
+
+		@Override
+		public void set(final int index,
+			final ByteBuffer buffer, final int offset, final int size)
+				throws IOException {
+
+			if (index != 0) {
+				throw new IllegalArgumentException("unexpected index " + index);
+			}
+			synchronized (mLock) {
+				checkNotClosed();
+				if (this.buffer == null) {
+					this.buffer = obtain(size);
+				} else if (this.buffer.capacity() < size) {
+					recycle(this.buffer);
+					this.buffer = obtain(size);
+				}
+			}
+			final ByteBuffer src = buffer.duplicate();
+			src.clear();
+			src.position(offset);
+			src.limit(offset + size);
+			this.buffer.clear();
+			this.buffer.put(src);
+			this.size = size;
+		}
+
+		@Override
+		public void set(final int index, final int value) throws IOException {
+			if (index != 1) {
+				throw new IllegalArgumentException("unexpected index " + index);
+			}
+			flags = value;
+		}
+
+		@Override
+		public void commit() throws IOException {
+			if (done) {
+				throw new IllegalStateException();
+			}
+			done = true;
+			if (buffer == null) {
+				throw new IllegalStateException("edit didn't set frame data");
+			}
+			mCallback.onCommit(new Entry(key, buffer, size, flags));
+		}
+
+		@Override
+		public void abort() throws IOException {
+			if (!done) {
+				done = true;
+				if (buffer != null) {
+					synchronized (mLock) {
+						recycle(buffer);
+					}
+				}
+			}
+		}
+	}
+}
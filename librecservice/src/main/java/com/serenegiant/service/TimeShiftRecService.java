@@ -40,6 +40,10 @@ import com.serenegiant.utils.UriHelper;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.PriorityQueue;
 
 /**
  * タイムシフト録画サービス
@@ -64,16 +68,121 @@ public class TimeShiftRecService extends AbstractRecorderService {
 	 */
 	public static final String EXTRA_MAX_SHIFT_MS = "extra_max_shift_ms";
 
+	/**
+	 * インテントのextra(int)でキャッシュへの非同期書き込み用キューの最大フレーム数を指定するときのキー文字列
+	 * 0を指定するとMediaReaperのスレッド上で同期してキャッシュへ書き込む
+	 * デフォルトはDEFAULT_WRITER_QUEUE_SIZE
+	 */
+	public static final String EXTRA_WRITER_QUEUE_SIZE = "extra_writer_queue_size";
+	/**
+	 * インテントのextra(int)で非同期書き込み用キューが一杯になった時の動作を指定するときのキー文字列
+	 * WRITER_OVERFLOW_BLOCK, WRITER_OVERFLOW_DROP_OLDEST_NON_KEY_FRAME, WRITER_OVERFLOW_FAILのいずれか
+	 * デフォルトはWRITER_OVERFLOW_BLOCK
+	 */
+	public static final String EXTRA_WRITER_OVERFLOW_POLICY = "extra_writer_overflow_policy";
+	/**
+	 * インテントのextra(String)でタイムシフトバッファのセッションIDを指定するときのキー文字列
+	 * 同じセッションIDで再起動したときは前回のキャッシュを読み込んでタイムシフトバッファリングを再開する
+	 * 指定しなければ前回終了時に#stopTimeShiftを呼んでいなければ前回のセッションIDを引き継ぐ
+	 */
+	public static final String EXTRA_SESSION_ID = "extra_session_id";
+	/**
+	 * インテントのextra(int)でストレージ上のキャッシュのスロットファイルを再利用する時の
+	 * 典型的なフレームサイズ[バイト]を指定するときのキー文字列
+	 * 0より大きい値を指定するとフレーム毎にファイルを生成/削除せずにスロットファイルを再利用する
+	 * デフォルトは0(再利用しない)
+	 */
+	public static final String EXTRA_SLOT_FILE_SIZE = "extra_slot_file_size";
+	/**
+	 * インテントのextra(boolean)でストレージ上のキャッシュをジャーナルを使わない
+	 * エフェメラルモードで開くかどうかを指定するときのキー文字列
+	 * trueを指定するとフレーム毎のジャーナルへの書き込みを行わない代わりに
+	 * 再起動時に前回のセッションのキャッシュを引き継がない
+	 * デフォルトはfalse
+	 */
+	public static final String EXTRA_EPHEMERAL_CACHE = "extra_ephemeral_cache";
+	/**
+	 * インテントのextra(long)でストレージ上のキャッシュのジャーナルをグループコミットする
+	 * 時間窓[ミリ秒]を指定するときのキー文字列
+	 * 0より大きい値を指定するとフレーム毎にジャーナルを書き出さずに時間窓毎にまとめて書き出す
+	 * デフォルトは0(フレーム毎に書き出す)
+	 */
+	public static final String EXTRA_JOURNAL_COMMIT_WINDOW_MS = "extra_journal_commit_window_ms";
+	/**
+	 * インテントのextra(boolean)でストレージ上のキャッシュのジャーナルを書き出す時に
+	 * ストレージへ同期(FileChannel#force)するかどうかを指定するときのキー文字列
+	 * デフォルトはfalse
+	 */
+	public static final String EXTRA_JOURNAL_FORCE = "extra_journal_force";
+	/**
+	 * インテントのextra(int)で使用するキャッシュの種類を指定するときのキー文字列
+	 * CACHE_TYPE_FILE, CACHE_TYPE_SEGMENT, CACHE_TYPE_RING, CACHE_TYPE_MEMORY_HEAP,
+	 * CACHE_TYPE_MEMORY_DIRECTのいずれか
+	 * デフォルトはCACHE_TYPE_FILE
+	 */
+	public static final String EXTRA_CACHE_TYPE = "extra_cache_type";
+
+	/**
+	 * 非同期書き込み用キューが一杯の時は空きができるまで待つ
+	 */
+	public static final int WRITER_OVERFLOW_BLOCK = TimeShiftWriter.OVERFLOW_BLOCK;
+	/**
+	 * 非同期書き込み用キューが一杯の時はキュー内の最も古いキーフレーム以外のフレームを破棄する
+	 */
+	public static final int WRITER_OVERFLOW_DROP_OLDEST_NON_KEY_FRAME
+		= TimeShiftWriter.OVERFLOW_DROP_OLDEST_NON_KEY_FRAME;
+	/**
+	 * 非同期書き込み用キューが一杯の時はエラーにする
+	 */
+	public static final int WRITER_OVERFLOW_FAIL = TimeShiftWriter.OVERFLOW_FAIL;
+
+	/**
+	 * フレーム毎にファイルを生成するTimeShiftDiskCacheを使う
+	 */
+	public static final int CACHE_TYPE_FILE = 0;
+	/**
+	 * 追記専用のセグメントファイルを使うTimeShiftSegmentCacheを使う
+	 */
+	public static final int CACHE_TYPE_SEGMENT = 1;
+	/**
+	 * メモリーマップしたリングバッファを使うTimeShiftRingCacheを使う
+	 */
+	public static final int CACHE_TYPE_RING = 2;
+	/**
+	 * ヒープ上のByteBufferを使うTimeShiftMemoryCacheを使う
+	 * ストレージへは書き込まないので再起動時に前回のセッションのキャッシュを引き継がない
+	 */
+	public static final int CACHE_TYPE_MEMORY_HEAP = 3;
+	/**
+	 * ダイレクトByteBufferを使うTimeShiftMemoryCacheを使う
+	 * ストレージへは書き込まないので再起動時に前回のセッションのキャッシュを引き継がない
+	 */
+	public static final int CACHE_TYPE_MEMORY_DIRECT = 4;
+
 	/**
 	 * 最大キャッシュサイズ[バイト]
 	 */
 	private static final long CACHE_SIZE = 1024 * 1024 * 20; // 20MB... 1920x1080@15fpsで20秒強ぐらい
+	/**
+	 * キャッシュサイズを自動で決める時に見積もったデータ量に加える余裕分の割合
+	 */
+	private static final float AUTO_CACHE_SIZE_MARGIN = 0.25f;
 
 	/**
 	 * 最大タイムシフト時間[ミリ秒]
 	 */
 	private static final long DEFAULT_MAX_SHIFT_MS = 10000L;	// 10秒
 
+	/**
+	 * 映像と音声で共有するキャッシュのサブディレクトリ名
+	 */
+	private static final String CACHE_DIR_NAME = "timeshift";
+
+	/**
+	 * 非同期書き込み用キューのデフォルトの最大フレーム数
+	 */
+	private static final int DEFAULT_WRITER_QUEUE_SIZE = 60;	// 30fpsで2秒分ぐらい
+
 	/**
 	 * MediaStoreOutputStreamを使って出力するかどうか(Android8以降のみ有効)
 	 */
@@ -89,11 +198,59 @@ public class TimeShiftRecService extends AbstractRecorderService {
 	/** binder instance to access this local service */
 	private final IBinder mBinder = new LocalBinder();
 
-	private TimeShiftDiskCache mVideoCache;
-	private TimeShiftDiskCache mAudioCache;
+	/**
+	 * 映像と音声のフレームデータをpts順に保持するキャッシュ
+	 * 生成・破棄はmSyncをロックして行い, フレームデータの書き込み・読み込み時はロックせずに参照する
+	 */
+	private volatile TimeShiftTrackCache mCache;
+	/**
+	 * 前回のセッションから引き継いだ最も新しいフレームデータのキー, 引き継いでいなければ0
+	 */
+	private long mRestoredKey;
 	private long mCacheSize = CACHE_SIZE;
+	/**
+	 * メモリー上に保持するキャッシュサイズ[バイト], 0ならメモリー上には保持しない
+	 */
+	private long mMemoryCacheSize = 0;
+	/**
+	 * キャッシュサイズをビットレートから自動で決めるかどうか
+	 */
+	private boolean mAutoCacheSize;
+	/**
+	 * キャッシュサイズを自動で決める時のヘルパー, MediaReaperのスレッドからロックせずに参照する
+	 */
+	private volatile TimeShiftCacheSizer mCacheSizer;
 	private String mCacheDir;
 	private RecordingTask mRecordingTask;
+	/**
+	 * キャッシュを経由せずにmuxerへ直接書き込む状態の切り替え用同期オブジェクト
+	 * MediaReaperからの書き込みはこのオブジェクトをロックしてキャッシュかmuxerへ書き込む
+	 */
+	private final Object mPassthroughSync = new Object();
+	/**
+	 * キャッシュを経由せずにmuxerへ直接書き込む時のRecordingTask, mPassthroughSyncをロックしてアクセスすること
+	 */
+	private RecordingTask mPassthroughTask;
+	/**
+	 * MediaReaperのスレッドからキャッシュへ書き込み中のフレーム数, mPassthroughSyncをロックしてアクセスすること
+	 * キャッシュへの書き込みはブロックすることがあるのでmPassthroughSyncをロックせずに行い、
+	 * 書き込み中のフレームがある間はmuxerへの直接書き込みへ切り替えない
+	 */
+	private int mCacheWrites;
+	/**
+	 * キャッシュへの非同期書き込み用, nullならMediaReaperのスレッド上で同期して書き込む
+	 * 生成・破棄はmSyncをロックして行い, フレームデータの書き込み時はロックせずに参照する
+	 */
+	private volatile TimeShiftWriter mWriter;
+	/**
+	 * キャッシュディレクトリ名に使うセッションID
+	 */
+	private String mSessionId;
+	/**
+	 * #start(DocumentFile, long)で指定された録画開始時に遡る時間[ミリ秒]
+	 * 負ならキャッシュしている全てのフレームデータから録画する
+	 */
+	private long mLookBackMs = -1;
 
 	/**
 	 * デフォルトコンストラクタ
@@ -151,6 +308,88 @@ public class TimeShiftRecService extends AbstractRecorderService {
 		}
 	}
 
+	/**
+	 * 指定した時間だけ遡って録画を開始
+	 * キャッシュ内のキーフレームインデックスから指定した時刻を含むGOPの先頭を探して
+	 * それより古いフレームデータは読み込まずに破棄する
+	 * @param output 出力ファイル
+	 * @param lookBackMs 録画開始時に遡る時間[ミリ秒], 負ならキャッシュしている全てのフレームデータから録画する
+	 * @throws IllegalStateException
+	 * @throws IOException
+	 */
+	public void start(@Nullable final DocumentFile output, final long lookBackMs)
+		throws IllegalStateException, IOException {
+
+		if (DEBUG) Log.v(TAG, "start:lookBackMs=" + lookBackMs);
+		synchronized (mSync) {
+			mLookBackMs = lookBackMs;
+			try {
+				start(output);
+			} finally {
+				mLookBackMs = -1;
+			}
+		}
+	}
+
+	/**
+	 * キャッシュしているフレームデータのうち指定した範囲を別スレッドでmp4ファイルへ書き出す
+	 * キャッシュからは削除しないのでタイムシフトバッファリングや#startでの録画を継続したまま
+	 * 複数のクリップを同時に書き出すことができる。
+	 * 開始時刻を含むGOPの先頭から書き出す。
+	 * ただし#startでの録画がキャッシュに追いついてmuxerへ直接書き込んでいる間の
+	 * フレームデータはキャッシュされないので書き出されない
+	 * @param output 出力ファイル
+	 * @param fromPtsUs 開始時刻[マイクロ秒], System.nanoTime() / 1000と同じ時刻系
+	 * @param toPtsUs 終了時刻[マイクロ秒], System.nanoTime() / 1000と同じ時刻系
+	 * @throws IllegalStateException タイムシフトバッファリング中でない時または
+	 * 			同時に書き出せるクリップ数の上限に達している時
+	 * @throws IOException
+	 */
+	public void exportClip(@NonNull final DocumentFile output,
+		final long fromPtsUs, final long toPtsUs)
+			throws IllegalStateException, IOException {
+
+		if (DEBUG) Log.v(TAG, "exportClip:from=" + fromPtsUs + ",to=" + toPtsUs);
+		if (fromPtsUs > toPtsUs) {
+			throw new IllegalArgumentException("fromPtsUs should not be greater than toPtsUs");
+		}
+		synchronized (mSync) {
+			if (!isTimeShift() || (mCache == null)) {
+				throw new IllegalStateException("not started");
+			}
+			final MediaFormat videoFormat = getVideoFormat();
+			final MediaFormat audioFormat = getAudioFormat();
+			// 書き出し終わるまで指定範囲のフレームデータが削除されないようにカーソルを先に開く
+			final TimeShiftTrackCache.Cursor cursor = openCursor("ClipExportTask", fromPtsUs);
+			try {
+				final IMuxer muxer = createMuxer(output);
+				final int videoTrackIx = videoFormat != null ? muxer.addTrack(videoFormat) : -1;
+				final int audioTrackIx = audioFormat != null ? muxer.addTrack(audioFormat) : -1;
+				TimeShiftIOScheduler.getInstance().startThread(
+					TimeShiftIOScheduler.PRIORITY_EXPORT, "ClipExportTask",
+					new ClipExportTask(cursor, muxer, videoTrackIx, audioTrackIx, toPtsUs));
+			} catch (final IOException | RuntimeException e) {
+				cursor.close();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * 直近の指定した時間分のフレームデータを別スレッドでmp4ファイルへ書き出す
+	 * @param output 出力ファイル
+	 * @param durationMs 書き出す時間[ミリ秒]
+	 * @throws IllegalStateException タイムシフトバッファリング中でない時
+	 * @throws IOException
+	 * @see #exportClip(DocumentFile, long, long)
+	 */
+	public void exportLast(@NonNull final DocumentFile output, final long durationMs)
+		throws IllegalStateException, IOException {
+
+		final long nowUs = System.nanoTime() / 1000L;
+		exportClip(output, nowUs - durationMs * 1000L, nowUs);
+	}
+
 	/**
 	 * タイムシフトバッファリング中かどうかを取得
 	 * @return
@@ -194,6 +433,10 @@ public class TimeShiftRecService extends AbstractRecorderService {
 			setState(STATE_INITIALIZED);
 			synchronized (mSync) {
 				releaseEncoder();
+				// 明示的に終了したときはキャッシュを引き継がないので削除する
+				releaseCache();
+				mSessionId = null;
+				TimeShiftSession.clearSessionId(this);
 			}
 		} else if (DEBUG) {
 			Log.v(TAG, "internalStopTimeShift: not buffering now");
@@ -216,13 +459,13 @@ public class TimeShiftRecService extends AbstractRecorderService {
 			throw new IllegalStateException("not started");
 		}
 		if (!TextUtils.isEmpty(outputPath)) {
+			final TimeShiftTrackCache.Cursor cursor = openRecordingCursor();
 			@SuppressLint("InlinedApi")
 			final IMuxer muxer = new MediaMuxerWrapper(
 				outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
 			final int videoTrackIx = videoFormat != null ? muxer.addTrack(videoFormat) : -1;
 			final int audioTrackIx = audioFormat != null ? muxer.addTrack(audioFormat) : -1;
-			mRecordingTask = new RecordingTask(muxer, videoTrackIx, audioTrackIx);
-			new Thread(mRecordingTask, "RecordingTask").start();
+			startRecordingTask(cursor, muxer, videoTrackIx, audioTrackIx);
 		} else {
 			throw new IOException("invalid output dir or name");
 		}
@@ -250,21 +493,68 @@ public class TimeShiftRecService extends AbstractRecorderService {
 		if (output == null) {
 			throw new IOException("output is null");
 		}
+		final TimeShiftTrackCache.Cursor cursor = openRecordingCursor();
+		final IMuxer muxer = createMuxer(output);
+		final int videoTrackIx = videoFormat != null ? muxer.addTrack(videoFormat) : -1;
+		final int audioTrackIx = audioFormat != null ? muxer.addTrack(audioFormat) : -1;
+		startRecordingTask(cursor, muxer, videoTrackIx, audioTrackIx);
+	}
+
+	/**
+	 * 録画中の状態にしてからRecordingTaskを開始する
+	 * RecordingTaskは録画中でなければすぐに終了するので、#startが録画中の状態にするのを待たずに
+	 * ここで録画中の状態にする。開始できなかった時はタイムシフトバッファリング中の状態へ戻す
+	 * mSyncをロックして呼ぶこと
+	 * @param cursor
+	 * @param muxer
+	 * @param videoTrackIx
+	 * @param audioTrackIx
+	 */
+	private void startRecordingTask(@NonNull final TimeShiftTrackCache.Cursor cursor,
+		@NonNull final IMuxer muxer,
+		final int videoTrackIx, final int audioTrackIx) {
+
+		final RecordingTask task = new RecordingTask(cursor,
+			muxer, videoTrackIx, audioTrackIx);
+		mRecordingTask = task;
+		setState(STATE_RECORDING);
+		try {
+			TimeShiftIOScheduler.getInstance().startThread(
+				TimeShiftIOScheduler.PRIORITY_LIVE_WRITE, "RecordingTask", task);
+		} catch (final RuntimeException e) {
+			mRecordingTask = null;
+			setState(STATE_BUFFERING);
+			cursor.close();
+			releaseMuxer(muxer);
+			throw e;
+		}
+	}
+
+	/**
+	 * 指定した出力ファイルへ書き出すためのIMuxerを生成する
+	 * @param output
+	 * @return
+	 * @throws IOException
+	 * @throws IllegalArgumentException 出力ファイルへ書き込めない時
+	 */
+	@SuppressLint("NewApi")
+	@NonNull
+	private IMuxer createMuxer(@NonNull final DocumentFile output) throws IOException {
 		IMuxer muxer = null;
 		if (BuildCheck.isAPI29()) {
 			// API29以上は対象範囲別ストレージなのでMediaStoreOutputStreamを使って出力終了時にIS_PENDINGの更新を自動でする
-			if (DEBUG) Log.v(TAG, "internalStart:create MediaMuxerWrapper using MediaStoreOutputStream");
+			if (DEBUG) Log.v(TAG, "createMuxer:create MediaMuxerWrapper using MediaStoreOutputStream");
 			muxer = new MediaMuxerWrapper(
 				new MediaStoreOutputStream(this, output),
 				MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
 		} else if (BuildCheck.isAPI26()) {
 			if (USE_MEDIASTORE_OUTPUT_STREAM) {
-				if (DEBUG) Log.v(TAG, "internalStart:create MediaMuxerWrapper using MediaStoreOutputStream");
+				if (DEBUG) Log.v(TAG, "createMuxer:create MediaMuxerWrapper using MediaStoreOutputStream");
 				muxer = new MediaMuxerWrapper(
 					new MediaStoreOutputStream(this, output),
 					MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
 			} else {
-				if (DEBUG) Log.v(TAG, "internalStart:create MediaMuxerWrapper using ContentResolver");
+				if (DEBUG) Log.v(TAG, "createMuxer:create MediaMuxerWrapper using ContentResolver");
 				muxer = new MediaMuxerWrapper(getContentResolver()
 					.openFileDescriptor(output.getUri(), "rw").getFileDescriptor(),
 					MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
@@ -283,10 +573,7 @@ public class TimeShiftRecService extends AbstractRecorderService {
 		if (muxer == null) {
 			throw new IllegalArgumentException();
 		}
-		final int videoTrackIx = videoFormat != null ? muxer.addTrack(videoFormat) : -1;
-		final int audioTrackIx = audioFormat != null ? muxer.addTrack(audioFormat) : -1;
-		mRecordingTask = new RecordingTask(muxer, videoTrackIx, audioTrackIx);
-		new Thread(mRecordingTask, "RecordingTask").start();
+		return muxer;
 	}
 
 	@Override
@@ -338,6 +625,50 @@ public class TimeShiftRecService extends AbstractRecorderService {
 		}
 	}
 
+	/**
+	 * キャッシュサイズをビットレートから自動で決めるかどうかを指定
+	 * trueにすると#setCacheSizeで指定したキャッシュサイズの代わりに
+	 * 映像と音声のビットレートと最大タイムシフト時間に余裕分(AUTO_CACHE_SIZE_MARGIN)を加えて
+	 * キャッシュサイズを見積もり、タイムシフトバッファリング中は実際にエンコードされた
+	 * データ量に合わせてキャッシュサイズを見直す
+	 * ただしCACHE_TYPE_RINGはリングバッファの容量を変更できないので見積もったサイズで固定になる
+	 * @param autoCacheSize
+	 * @throws IllegalStateException #prepare以降に呼び出されるとIllegalStateExceptionを投げる
+	 */
+	public void setAutoCacheSize(final boolean autoCacheSize)
+		throws IllegalStateException {
+
+		synchronized (mSync) {
+			if (getState() != STATE_INITIALIZED) {
+				throw new IllegalStateException();
+			}
+			mAutoCacheSize = autoCacheSize;
+		}
+	}
+
+	/**
+	 * メモリー上に保持するキャッシュサイズを指定
+	 * 0以外を指定すると直近のフレームデータをダイレクトByteBufferで保持して
+	 * 指定したサイズを超えた古いフレームデータだけをストレージ上のキャッシュへ書き出す
+	 * @param memoryCacheSize タイムシフトに使用するメモリー上のキャッシュサイズ[バイト],
+	 * 							0ならメモリー上には保持しない(デフォルト)
+	 * @throws IllegalStateException #prepare以降に呼び出されるとIllegalStateExceptionを投げる
+	 * @throws IllegalArgumentException 負の値をセットするとIllegalArgumentExceptionを投げる
+	 */
+	public void setMemoryCacheSize(final int memoryCacheSize)
+		throws IllegalStateException, IllegalArgumentException {
+
+		synchronized (mSync) {
+			if (getState() != STATE_INITIALIZED) {
+				throw new IllegalStateException();
+			}
+			if (memoryCacheSize < 0) {
+				throw new IllegalArgumentException("memory cache size should not be negative");
+			}
+			mMemoryCacheSize = memoryCacheSize;
+		}
+	}
+
 	/**
 	 * キャッシュ場所を指定, パーミッションが有ってアプリから書き込めること
 	 * @param cacheDir
@@ -375,7 +706,12 @@ public class TimeShiftRecService extends AbstractRecorderService {
 			throws IllegalStateException, IOException {
 		if (DEBUG) Log.v(TAG, "internalPrepare:video");
 
-		mVideoCache = createCache("video");
+		prepareCacheSizer(requireConfig().getBitrate(width, height, frameRate, bpp),
+			AUDIO_BIT_RATE);
+		createCache();
+		// 映像のGOP単位で削除して先頭が常に映像のキーフレームになるようにする
+		mCache.setSyncTrack(TimeShiftTrackCache.TRACK_VIDEO);
+		createWriter();
 		super.internalPrepare(width, height, frameRate, bpp);
 	}
 
@@ -384,10 +720,37 @@ public class TimeShiftRecService extends AbstractRecorderService {
 		throws IllegalStateException, IOException {
 		if (DEBUG) Log.v(TAG, "internalPrepare:audio");
 		
-		mAudioCache = createCache("audio");
+		prepareCacheSizer(0, AUDIO_BIT_RATE);
+		createCache();
+		createWriter();
 		super.internalPrepare(sampleRate, channelCount);
 	}
 
+	/**
+	 * キャッシュサイズを自動で決める時はビットレートからキャッシュサイズを見積もる
+	 * キャッシュ生成済みまたは自動で決めない時は何もしない
+	 * @param videoBitrate 映像のビットレート[ビット/秒]
+	 * @param audioBitrate 音声のビットレート[ビット/秒]
+	 * @throws IOException
+	 */
+	private void prepareCacheSizer(final int videoBitrate, final int audioBitrate)
+		throws IOException {
+
+		if (mAutoCacheSize && (mCache == null)) {
+			final int cacheType = getCacheType();
+			// メモリー上のキャッシュはヒープの最大サイズ、それ以外はストレージの空き容量の半分を上限にする
+			final long upperLimit = (cacheType == CACHE_TYPE_MEMORY_HEAP)
+				|| (cacheType == CACHE_TYPE_MEMORY_DIRECT)
+				? Runtime.getRuntime().maxMemory() / 2
+				: getTimeShiftCacheDir().getUsableSpace() / 2;
+			final TimeShiftCacheSizer sizer = new TimeShiftCacheSizer(
+				getMaxShiftMs(), AUTO_CACHE_SIZE_MARGIN, upperLimit);
+			mCacheSize = sizer.estimate(videoBitrate, audioBitrate);
+			mCacheSizer = sizer;
+			if (DEBUG) Log.v(TAG, "prepareCacheSizer:cacheSize=" + mCacheSize);
+		}
+	}
+
 	@SuppressWarnings("ResultOfMethodCallIgnored")
 	private File getTimeShiftCacheDir() throws IOException {
 		File cacheDir = null;
@@ -425,6 +788,7 @@ public class TimeShiftRecService extends AbstractRecorderService {
 		if (getState() != STATE_BUFFERING) {
 			super.stopEncoder();
 			super.releaseEncoder();
+			releaseWriter();
 		}
 	}
 	
@@ -441,239 +805,969 @@ public class TimeShiftRecService extends AbstractRecorderService {
 	}
 
 	/**
-	 * typeで指定したサブディレクトリを使うTimeShiftDiskCacheインスタンスを生成する
+	 * 録画サービス起動時のインテントに非同期書き込み用キューの最大フレーム数の
+	 * 指定があればその値を返す。指定がなければDEFAULT_WRITER_QUEUE_SIZEを返す。
+	 * @return
+	 */
+	private int getWriterQueueSize() {
+		final Intent intent = getIntent();
+		return (intent != null)
+			? intent.getIntExtra(EXTRA_WRITER_QUEUE_SIZE, DEFAULT_WRITER_QUEUE_SIZE)
+			: DEFAULT_WRITER_QUEUE_SIZE;
+	}
+
+	/**
+	 * 録画サービス起動時のインテントに非同期書き込み用キューが一杯になった時の
+	 * 動作の指定があればその値を返す。指定がなければWRITER_OVERFLOW_BLOCKを返す。
+	 * @return
+	 */
+	private int getWriterOverflowPolicy() {
+		final Intent intent = getIntent();
+		return (intent != null)
+			? intent.getIntExtra(EXTRA_WRITER_OVERFLOW_POLICY, WRITER_OVERFLOW_BLOCK)
+			: WRITER_OVERFLOW_BLOCK;
+	}
+
+	/**
+	 * 録画サービス起動時のインテントに使用するキャッシュの種類の指定があればその値を返す。
+	 * 指定がなければCACHE_TYPE_FILEを返す。
+	 * @return
+	 */
+	private int getCacheType() {
+		final Intent intent = getIntent();
+		return (intent != null)
+			? intent.getIntExtra(EXTRA_CACHE_TYPE, CACHE_TYPE_FILE)
+			: CACHE_TYPE_FILE;
+	}
+
+	/**
+	 * 録画サービス起動時のインテントでストレージ上のキャッシュを
+	 * エフェメラルモードで開くように指定されているかどうかを返す。指定がなければfalseを返す。
+	 * @return
+	 */
+	private boolean isEphemeralCache() {
+		final Intent intent = getIntent();
+		return (intent != null)
+			&& intent.getBooleanExtra(EXTRA_EPHEMERAL_CACHE, false);
+	}
+
+	/**
+	 * 録画サービス起動時のインテントにジャーナルをグループコミットする時間窓の
+	 * 指定があればその値を返す。指定がなければ0を返す。
+	 * @return
+	 */
+	private long getJournalCommitWindowMs() {
+		final Intent intent = getIntent();
+		return (intent != null)
+			? intent.getLongExtra(EXTRA_JOURNAL_COMMIT_WINDOW_MS, 0)
+			: 0;
+	}
+
+	/**
+	 * 録画サービス起動時のインテントでジャーナルをストレージへ同期するように
+	 * 指定されているかどうかを返す。指定がなければfalseを返す。
+	 * @return
+	 */
+	private boolean isJournalForce() {
+		final Intent intent = getIntent();
+		return (intent != null)
+			&& intent.getBooleanExtra(EXTRA_JOURNAL_FORCE, false);
+	}
+
+	/**
+	 * 録画サービス起動時のインテントにスロットファイルを再利用する時の
+	 * 典型的なフレームサイズの指定があればその値を返す。指定がなければ0を返す。
+	 * @return
+	 */
+	private int getSlotFileSize() {
+		final Intent intent = getIntent();
+		return (intent != null)
+			? intent.getIntExtra(EXTRA_SLOT_FILE_SIZE, 0)
+			: 0;
+	}
+
+	/**
+	 * キャッシュディレクトリ名に使うセッションIDを取得する
+	 * 録画サービス起動時のインテントにセッションIDの指定があればその値を、
+	 * 指定がなければ前回のセッションIDを、それもなければ新しいセッションIDを返す
+	 * @return
+	 */
+	@NonNull
+	private String getSessionId() {
+		if (mSessionId == null) {
+			final Intent intent = getIntent();
+			mSessionId = TimeShiftSession.obtainSessionId(this,
+				intent != null ? intent.getStringExtra(EXTRA_SESSION_ID) : null);
+		}
+		return mSessionId;
+	}
+
+	/**
+	 * キャッシュへの非同期書き込み用のTimeShiftWriterを生成する
+	 * 生成済みまたはキューの最大フレーム数が0なら何もしない
+	 * 書き込みスレッドを開始できなければ生成せずにキャッシュへ同期書き込みする
+	 */
+	private void createWriter() {
+		if (mWriter == null) {
+			final int queueSize = getWriterQueueSize();
+			if (queueSize > 0) {
+				try {
+					mWriter = new TimeShiftWriter(queueSize, getWriterOverflowPolicy(),
+						new TimeShiftWriter.Callback() {
+							@Override
+							public void onError(@NonNull final Throwable t) {
+								TimeShiftRecService.this.onError(t);
+							}
+						});
+				} catch (final IllegalStateException e) {
+					// 書き込みスレッドを開始できない時は同期書き込みにする
+					Log.w(TAG, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 非同期書き込み用のTimeShiftWriterを破棄する
+	 */
+	private void releaseWriter() {
+		final TimeShiftWriter writer;
+		synchronized (mSync) {
+			writer = mWriter;
+			mWriter = null;
+		}
+		if (writer != null) {
+			if (DEBUG || (writer.droppedFrames() > 0) || (writer.errorFrames() > 0)) {
+				Log.i(TAG, String.format("releaseWriter:queued=%d,written=%d,dropped=%d,err=%d,maxDepth=%d",
+					writer.queuedFrames(), writer.writtenFrames(),
+					writer.droppedFrames(), writer.errorFrames(), writer.maxQueueDepth()));
+			}
+			writer.release();
+		}
+	}
+
+	/**
+	 * 読み込み中のカーソルが保持期間より遅れた時のコールバック
+	 */
+	private final TimeShiftTrackCache.Callback mCursorCallback
+		= new TimeShiftTrackCache.Callback() {
+		@Override
+		public void onLagging(@NonNull final TimeShiftTrackCache.Cursor cursor,
+			final boolean released) {
+
+			Log.w(TAG, "onLagging:" + cursor + ",released=" + released);
+		}
+	};
+
+	/**
+	 * 映像と音声で共有するTimeShiftTrackCacheインスタンスを生成する
+	 * 生成済みなら何もしない
+	 * @throws IOException
+	 */
+	private void createCache() throws IOException {
+		if (mCache == null) {
+			mCache = new TimeShiftTrackCache(createCache(CACHE_DIR_NAME),
+				getMaxShiftMs(), mCursorCallback);
+		}
+	}
+
+	/**
+	 * typeで指定したサブディレクトリを使うITimeShiftCacheインスタンスを生成する
 	 * @param type
 	 * @return
 	 * @throws IOException
 	 */
-	private TimeShiftDiskCache createCache(
+	private ITimeShiftCache createCache(
 		@NonNull final String type) throws IOException {
 
 		final File cacheDir = new File(getTimeShiftCacheDir(), type);
 		if (cacheDir.mkdirs() && DEBUG) {
-			Log.v(TAG, "create new cache dir for video");
+			Log.v(TAG, "create new cache dir for " + type);
 		}
+		mRestoredKey = 0;
 		final long maxShiftMs = getMaxShiftMs();
 		requireConfig().setMaxDuration(maxShiftMs);
-		return TimeShiftDiskCache.open(cacheDir,
-			BuildConfig.VERSION_CODE, 2, mCacheSize, maxShiftMs);
+		final ITimeShiftCache cache;
+		final int cacheType = getCacheType();
+		if ((cacheType == CACHE_TYPE_SEGMENT) || (cacheType == CACHE_TYPE_RING)
+			|| (cacheType == CACHE_TYPE_MEMORY_HEAP) || (cacheType == CACHE_TYPE_MEMORY_DIRECT)) {
+			// ファイル以外のキャッシュは前回の内容を引き継がないので
+			// 前回異常終了した時等に残ったディレクトリを削除する
+			TimeShiftSession.deleteOtherSessions(cacheDir, null);
+		}
+		switch (cacheType) {
+		case CACHE_TYPE_MEMORY_HEAP:
+		case CACHE_TYPE_MEMORY_DIRECT:
+			// キャッシュディレクトリはフォーマットの書き出しにだけ使う
+			cache = TimeShiftMemoryCache.open(cacheDir, mCacheSize, maxShiftMs,
+				cacheType == CACHE_TYPE_MEMORY_DIRECT);
+			break;
+		case CACHE_TYPE_SEGMENT:
+			cache = TimeShiftSegmentCache.open(cacheDir, mCacheSize, maxShiftMs);
+			break;
+		case CACHE_TYPE_RING:
+			cache = TimeShiftRingCache.open(cacheDir, mCacheSize, maxShiftMs);
+			break;
+		case CACHE_TYPE_FILE:
+		default:
+		{
+			// セッションIDのディレクトリを開いてジャーナルから前回の内容を読み込む
+			final String sessionId = getSessionId();
+			TimeShiftSession.deleteOtherSessions(cacheDir, sessionId);
+			final boolean ephemeral = isEphemeralCache();
+			TimeShiftDiskCache diskCache = TimeShiftDiskCache.open(cacheDir, sessionId,
+				BuildConfig.VERSION_CODE, 2, mCacheSize, maxShiftMs, ephemeral);
+			if (ephemeral) {
+				// ジャーナルを使わないので前回の内容は引き継がない
+				if (DEBUG) Log.v(TAG, "createCache:ephemeral");
+			} else if (diskCache.newestKey() >= System.nanoTime() / 1000L) {
+				// 端末の再起動等でキーの時刻が連続していないときは引き継げない
+				Log.w(TAG, "discard stale cache:" + diskCache.getDirectory());
+				diskCache.delete();
+				diskCache = TimeShiftDiskCache.open(cacheDir, sessionId,
+					BuildConfig.VERSION_CODE, 2, mCacheSize, maxShiftMs);
+			} else {
+				mRestoredKey = diskCache.newestKey();
+				if (DEBUG) Log.v(TAG, "createCache:restored " + diskCache.size() + " bytes");
+			}
+			if (!ephemeral) {
+				final long windowMs = getJournalCommitWindowMs();
+				final boolean force = isJournalForce();
+				if ((windowMs > 0) || force) {
+					diskCache.setJournalCommitWindow(windowMs, 0, force);
+				}
+			}
+			final int slotFileSize = getSlotFileSize();
+			if (slotFileSize > 0) {
+				diskCache.setSlotFileSize(slotFileSize);
+			}
+			cache = diskCache;
+			break;
+		}
+		}
+		if (mMemoryCacheSize > 0) {
+			// メモリー上に保持しきれなくなったフレームデータだけをストレージへ書き出す
+			return new TimeShiftTieredCache(cache, mMemoryCacheSize, maxShiftMs);
+		} else {
+			return cache;
+		}
 	}
 
 	/**
-	 * ストレージ上のキャッシュを削除
+	 * キャッシュからフレームデータを削除せずに読み込むためのカーソルを開く, mSyncをロックして呼ぶこと
+	 * @param name
+	 * @param fromPtsUs 0より大きければその時刻を含むGOPの先頭から, それ以外は最も古いフレームデータから読み込む
+	 * @return
+	 * @throws IOException
 	 */
-	private void releaseCache() {
-		if (DEBUG) Log.v(TAG, "releaseCache:");
-		if (mVideoCache != null) {
+	@NonNull
+	private TimeShiftTrackCache.Cursor openCursor(
+		@NonNull final String name, final long fromPtsUs) throws IOException {
+
+		if ((mCache == null) || mCache.isClosed()) {
+			throw new IOException("cache is not ready");
+		}
+		final TimeShiftTrackCache.Cursor cursor = mCache.openCursor(name);
+		if (fromPtsUs > 0) {
+			final long key = cursor.seekTo(fromPtsUs);
+			if (DEBUG) Log.v(TAG, "openCursor:" + name + ",fromPtsUs=" + fromPtsUs + ",key=" + key);
+		}
+		return cursor;
+	}
+
+	/**
+	 * 録画用のカーソルを開く, mSyncをロックして呼ぶこと
+	 * #start(DocumentFile, long)で遡る時間が指定されていればその時刻を含むGOPの先頭から読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private TimeShiftTrackCache.Cursor openRecordingCursor() throws IOException {
+		// キャッシュのキーは#getInputPTSUsと同じ時刻系
+		return openCursor("RecordingTask", mLookBackMs >= 0
+			? System.nanoTime() / 1000L - mLookBackMs * 1000L : 0);
+	}
+
+	/**
+	 * エンコーダーの出力フォーマットをキャッシュディレクトリへ保存する
+	 * 前回のセッションから引き継いだフレームデータのフォーマットと一致しなければ
+	 * 引き継いだフレームデータは使えないので削除する
+	 * @param reaper
+	 * @param format
+	 */
+	@Override
+	protected void onFormatChanged(@NonNull final MediaReaper reaper,
+		@NonNull final MediaFormat format) {
+
+		if (DEBUG) Log.v(TAG, "onFormatChanged:" + format);
+		final TimeShiftTrackCache cache;
+		final long restoredKey;
+		synchronized (mSync) {
+			cache = mCache;
+			restoredKey = mRestoredKey;
+		}
+		final String name = reaper.reaperType() == MediaReaper.REAPER_VIDEO ? "video" : "audio";
+		if ((cache != null) && !cache.isClosed()
+			&& !TimeShiftSession.updateFormat(cache.getDirectory(), name, format)
+			&& (restoredKey > 0)) {
+
+			// 今回のセッションで書き込んだフレームデータは残す
 			try {
-				mVideoCache.delete();
+				final int n = cache.removeBefore(restoredKey + 1);
+				if (DEBUG || (n > 0)) Log.i(TAG, "onFormatChanged:discard " + n + " frames");
 			} catch (final IOException e) {
 				Log.w(TAG, e);
 			}
-			mVideoCache = null;
 		}
-		if (mAudioCache != null) {
+	}
+
+	/**
+	 * ストレージ上のキャッシュを削除
+	 */
+	private void releaseCache() {
+		if (DEBUG) Log.v(TAG, "releaseCache:");
+		// 書き込みスレッドがキャッシュへ書き込み中の時に削除しないように先に終了させる
+		releaseWriter();
+		if (mCache != null) {
 			try {
-				mAudioCache.delete();
+				mCache.delete();
 			} catch (final IOException e) {
 				Log.w(TAG, e);
 			}
-			mAudioCache = null;
+			mCache = null;
 		}
+		mCacheSizer = null;
+		mRestoredKey = 0;
 	}
 	
-	byte[] videoBuf = null;
-	byte[] audioBuf = null;
-	long prevVideoPtsUs = 0;
-	long prevAudioPtsUs = 0;
-	TimeShiftDiskCache.Snapshot oldestVideo;
-	TimeShiftDiskCache.Snapshot oldestAudio;
+	/**
+	 * CursorTaskでトラック毎のpts順の併合待ちのフレームデータ
+	 */
+	private static final class MergeFrame {
+		private ByteBuffer buffer;
+		private int track;
+		private int flags;
+		private int size;
+		private long ptsUs;
+	}
 
 	/**
-	 * 非同期でエンコード済みの動画フレームを取得して
-	 * mp4ファイルへ書き出すためのRunnable
+	 * CursorTaskでpts順に併合するトラック毎のフレームデータのキュー
+	 * 同じトラック内では書き込み時にptsが狭義単調増加になっているので
+	 * 各トラックの先頭同士を比較するだけでpts順に併合できる
+	 */
+	private static final class MergeQueue {
+		private final int track;
+		private final ArrayDeque<MergeFrame> frames = new ArrayDeque<>();
+
+		private MergeQueue(final int track) {
+			this.track = track;
+		}
+	}
+
+	/**
+	 * TimeShiftTrackCache.Cursorでキャッシュからフレームデータを削除せずに読み込んで
+	 * mp4ファイルへ書き出すためのRunnableの基底クラス
+	 * カーソルを閉じるまでは読み込んでいないフレームデータはキャッシュから削除されない
+	 * キャッシュにはトラックを跨いで書き込み順に保持されているので、
+	 * 読み込んだフレームデータをトラック毎のキューへ振り分けて、各トラックの先頭を
+	 * ptsをキーとする最小ヒープで比較してpts順に併合してから書き出す。
+	 * 全てのトラックのフレームデータが揃うまで最大MAX_LOOKAHEAD_FRAMESフレームまで先読みする。
+	 * muxerへ渡すptsはトラック毎に狭義単調増加を保証する
 	 */
-	private class RecordingTask implements Runnable {
+	private abstract class CursorTask implements Runnable {
+		/**
+		 * 1回に先読みする最大フレーム数
+		 */
+		private static final int PREFETCH_MAX_FRAMES = 64;
+		/**
+		 * 1回に先読みするバイト数の目安, 超えたところで先読みを終了する
+		 */
+		private static final int PREFETCH_MAX_BYTES = 1024 * 1024;	// 1MB
+		/**
+		 * pts順に併合するために保持する最大フレーム数
+		 * これを超えた時は揃っていないトラックがあっても書き出す
+		 */
+		private static final int MAX_LOOKAHEAD_FRAMES = 128;
+		/**
+		 * 先読みバッファの確保単位
+		 */
+		private static final int BUFFER_UNIT = 4096;
+
+		@NonNull
+		private final String name;
+		@NonNull
+		protected final TimeShiftTrackCache.Cursor cursor;
+		@NonNull
 		private final IMuxer muxer;
 		private final int videoTrackIx;
 		private final int audioTrackIx;
-		public RecordingTask(@NonNull final IMuxer muxer,
+		protected final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		/**
+		 * トラック毎の併合待ちのフレームデータ
+		 */
+		private final MergeQueue[] queues = new MergeQueue[TimeShiftTrackCache.MAX_TRACK_ID + 1];
+		/**
+		 * 併合待ちのフレームデータがあるトラックのキューを先頭のpts順に保持する最小ヒープ
+		 */
+		private final PriorityQueue<MergeQueue> heap = new PriorityQueue<>(
+			TimeShiftTrackCache.MAX_TRACK_ID + 1, new Comparator<MergeQueue>() {
+				@Override
+				public int compare(final MergeQueue q1, final MergeQueue q2) {
+					final long pts1 = q1.frames.peekFirst().ptsUs;
+					final long pts2 = q2.frames.peekFirst().ptsUs;
+					return pts1 < pts2 ? -1 : (pts1 > pts2 ? 1 : q1.track - q2.track);
+				}
+			});
+		/**
+		 * 再利用するフレームデータ
+		 */
+		private final ArrayDeque<MergeFrame> pool = new ArrayDeque<>();
+		/**
+		 * 書き出すトラックの数
+		 */
+		private final int activeTracks;
+		/**
+		 * 併合待ちのフレーム数
+		 */
+		private int pendingFrames;
+		/**
+		 * 開始時にキャッシュに溜まっていたフレームデータを読み込み終わったかどうか
+		 */
+		private boolean drained;
+		private int drainedFrames;
+		private long drainedBytes;
+		/**
+		 * 映像がある時は映像のキーフレームから書き出す
+		 */
+		private boolean iFrame;
+		/**
+		 * トラック毎に最後にmuxerへ渡したフレームデータのpts
+		 */
+		protected final long[] lastPtsUs = new long[TimeShiftTrackCache.MAX_TRACK_ID + 1];
+		private int error;
+		private int videoFrames;
+		private int audioFrames;
+
+		protected CursorTask(@NonNull final String name,
+			@NonNull final TimeShiftTrackCache.Cursor cursor,
+			@NonNull final IMuxer muxer,
 			final int videoTrackIx, final int audioTrackIx) {
+
+			this.name = name;
+			this.cursor = cursor;
 			this.muxer = muxer;
 			this.videoTrackIx = videoTrackIx;
 			this.audioTrackIx = audioTrackIx;
+			activeTracks = (videoTrackIx >= 0 ? 1 : 0) + (audioTrackIx >= 0 ? 1 : 0);
+			iFrame = videoTrackIx < 0;
 		}
 
-		@SuppressWarnings("WrongConstant")
 		@Override
 		public void run() {
-			if (DEBUG) Log.v(TAG, "RecordingTask#run");
-			final MediaCodec.BufferInfo videoInfo = new MediaCodec.BufferInfo();
-			final MediaCodec.BufferInfo audioInfo = new MediaCodec.BufferInfo();
-			int error = 0;
-			int videoFrames = 0;
-			int audioFrames = 0;
-			ByteBuffer videoBuf = null;
-			ByteBuffer audioBuf = null;
+			if (DEBUG) Log.v(TAG, name + "#run");
 			muxer.start();
-			boolean iFrame = false;
-			for ( ; ; ) {
-				synchronized (mSync) {
-					if (getState() != STATE_RECORDING) break;
-					try {
-						videoBuf = processVideoFrame(videoInfo);
-						if (videoBuf != null) {
-							if (!iFrame) {
-								if ((videoInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME)
-									!= MediaCodec.BUFFER_FLAG_KEY_FRAME) {
-
-									videoInfo.size = 0;
-								} else {
-									iFrame = true;
-								}
-							}
-						}
-					} catch (final IOException e) {
-						videoInfo.size = 0;
-					}
-					try {
-						audioBuf = processAudioFrame(audioInfo);
-					} catch (final IOException e) {
-						audioInfo.size = 0;
+			final long startNs = System.nanoTime();
+			boolean flush = true;
+			try {
+				for ( ; isRunning() ; ) {
+					// サービスのロックを保持せずにまとめて先読みする
+					final int n = prefetch();
+					if (!writeMerged(false)) {
+						flush = false;
+						break;
 					}
-					
-					if ((videoInfo.size <= 0) && (audioInfo.size <= 0)) {
-						try {
-							mSync.wait(TIMEOUT_MS);
-						} catch (final InterruptedException e) {
-							break;
-						}
+					if (n > 0) {
 						continue;
 					}
-				} // synchronized (mSync)
-				if ((videoTrackIx >= 0) && (videoInfo.size > 0)) {
-//					if (DEBUG) Log.v(TAG, "writeSampleData/Video:size="+ videoInfo.size
-//						+ ", presentationTimeUs=" + videoInfo.presentationTimeUs);
-					try {
-						videoFrames++;
-						muxer.writeSampleData(videoTrackIx, videoBuf, videoInfo);
-					} catch (final Exception e) {
-						Log.w(TAG, e);
-						error++;
+					if (!drained) {
+						drained = true;
+						reportDrain(startNs);
 					}
-				}
-				if ((audioTrackIx >= 0) && (audioInfo.size > 0)) {
-//					if (DEBUG) Log.v(TAG, "writeSampleData/Audio:size=" + audioInfo.size
-//						+ ", presentationTimeUs=" + audioInfo.presentationTimeUs);
-					try {
-						audioFrames++;
-						muxer.writeSampleData(audioTrackIx, audioBuf, audioInfo);
-					} catch (final Exception e) {
-						Log.w(TAG, e);
-						error++;
+					if (!waitFrame()) {
+						break;
 					}
 				}
-			} // for ( ; ; )
-			try {
-				muxer.stop();
+			} catch (final InterruptedException e) {
+				// ignore
 			} catch (final Exception e) {
+				// キャッシュが閉じられた時等
 				Log.w(TAG, e);
+			} finally {
+				cursor.close();
 			}
-			final String outputPath;
-			if (muxer instanceof MediaMuxerWrapper) {
-				outputPath = ((MediaMuxerWrapper) muxer).getOutputPath();
-			} else {
-				outputPath = null;
+			if (flush) {
+				// 終了前に読み込んだフレームデータは揃っていないトラックがあっても書き出す
+				writeMerged(true);
 			}
-			try {
-				muxer.release();
-			} catch (final Exception e) {
-				Log.w(TAG, e);
+			if (!drained) {
+				reportDrain(startNs);
 			}
-			if (!TextUtils.isEmpty(outputPath)) {
+			onStop();
+			releaseMuxer(muxer);
+			if (DEBUG) Log.v(TAG, String.format("%s#run:finished, video=%d,audio=%d,err=%d",
+				name, videoFrames, audioFrames, error));
+		}
+
+		/**
+		 * 書き出しを継続するかどうか, 先読みする前に呼ばれる
+		 * @return falseなら終了する
+		 */
+		protected abstract boolean isRunning();
+
+		/**
+		 * 次のフレームデータがまだキャッシュへ書き込まれていない時の処理
+		 * @return falseなら終了する
+		 * @throws InterruptedException
+		 */
+		protected abstract boolean waitFrame() throws InterruptedException;
+
+		/**
+		 * フレームデータを書き出すかどうか
+		 * @param ptsUs
+		 * @return falseなら終了する
+		 */
+		protected boolean isWritable(final long ptsUs) {
+			return true;
+		}
+
+		/**
+		 * muxerを破棄する直前の処理
+		 */
+		protected void onStop() {
+		}
+
+		/**
+		 * カーソルからPREFETCH_MAX_FRAMESフレームまたはPREFETCH_MAX_BYTESバイトまで
+		 * フレームデータを読み込んでトラック毎の併合待ちのキューへ追加する
+		 * 併合待ちのフレーム数がMAX_LOOKAHEAD_FRAMESに達した時はそこで読み込みを終了する
+		 * @return 読み込んだフレーム数
+		 * @throws IOException
+		 */
+		private int prefetch() throws IOException {
+			int n = 0;
+			int bytes = 0;
+			while ((n < PREFETCH_MAX_FRAMES) && (bytes < PREFETCH_MAX_BYTES)
+				&& (pendingFrames < MAX_LOOKAHEAD_FRAMES)) {
+
+				final TimeShiftTrackCache.Snapshot snapshot = cursor.next();
+				if (snapshot == null) {
+					break;
+				}
 				try {
-					final File out = new File(outputPath);
-					if (out.exists() && out.canRead()) {
-						if (DEBUG) Log.v(TAG, "RecordingTask#run::scanFile " + outputPath);
-						scanFile(outputPath);
+					final int track = snapshot.getTrack();
+					final int size = snapshot.available();
+					n++;
+					bytes += size;
+					if ((muxerTrackIndex(track) < 0) || (size <= 0)) {
+						// 書き出さないトラックのフレームデータは読み捨てる
+						continue;
 					}
-				} catch (final Exception e) {
-					Log.w(TAG, e);
+					final MergeFrame frame = obtain(size);
+					final ByteBuffer buf = snapshot.getByteBuffer(frame.buffer);
+					if (buf != frame.buffer) {
+						frame.buffer.clear();
+						frame.buffer.put(buf);
+						frame.buffer.flip();
+					}
+					frame.track = track;
+					frame.flags = snapshot.getFlags();
+					frame.size = frame.buffer.remaining();
+					frame.ptsUs = snapshot.getPtsUs();
+					enqueue(frame);
+				} finally {
+					snapshot.close();
 				}
 			}
-			if (DEBUG) Log.v(TAG, String.format("RecordingTask#run:finished, video=%d,audio=%d,err=%d",
-				videoFrames, audioFrames, error));
+			if (!drained) {
+				drainedFrames += n;
+				drainedBytes += bytes;
+			}
+			return n;
 		}
 
+		/**
+		 * フレームデータをトラック毎の併合待ちのキューへ追加する
+		 * @param frame
+		 */
+		private void enqueue(@NonNull final MergeFrame frame) {
+			MergeQueue queue = queues[frame.track];
+			if (queue == null) {
+				queue = queues[frame.track] = new MergeQueue(frame.track);
+			}
+			queue.frames.addLast(frame);
+			if (queue.frames.size() == 1) {
+				// キューの先頭が変わった時だけヒープへ追加する
+				heap.add(queue);
+			}
+			pendingFrames++;
+		}
+
+		/**
+		 * 併合待ちのフレームデータをpts順にmuxerへ書き出す
+		 * 書き出す全てのトラックのフレームデータが揃っている間または
+		 * 併合待ちのフレーム数がMAX_LOOKAHEAD_FRAMES以上の間は最もptsが小さいフレームデータを書き出す
+		 * @param flush trueなら揃っていないトラックがあっても全て書き出す
+		 * @return falseなら終了する
+		 */
+		@SuppressWarnings("WrongConstant")
+		protected boolean writeMerged(final boolean flush) {
+			while (!heap.isEmpty()
+				&& (flush || (heap.size() >= activeTracks)
+					|| (pendingFrames >= MAX_LOOKAHEAD_FRAMES))) {
+
+				final MergeQueue queue = heap.poll();
+				final MergeFrame frame = queue.frames.pollFirst();
+				if (!queue.frames.isEmpty()) {
+					heap.add(queue);
+				}
+				pendingFrames--;
+				try {
+					if (!isWritable(frame.ptsUs)) {
+						return false;
+					}
+					info.set(0, frame.size, nextPtsUs(frame.track, frame.ptsUs), frame.flags);
+					final int trackIx = trackIndex(frame.track);
+					if ((trackIx >= 0) && (info.size > 0)) {
+						frame.buffer.clear();
+						frame.buffer.limit(frame.size);
+						writeSample(frame.track, trackIx, frame.buffer);
+					}
+				} finally {
+					recycle(frame);
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * 再利用するフレームデータを取得する, 無ければ生成する
+		 * @param size
+		 * @return
+		 */
+		@NonNull
+		private MergeFrame obtain(final int size) {
+			MergeFrame frame = pool.pollFirst();
+			if (frame == null) {
+				frame = new MergeFrame();
+			}
+			if ((frame.buffer == null) || (frame.buffer.capacity() < size)) {
+				final int capacity = ((size + BUFFER_UNIT - 1) / BUFFER_UNIT) * BUFFER_UNIT;
+				frame.buffer = ByteBuffer.allocateDirect(capacity);
+			}
+			frame.buffer.clear();
+			return frame;
+		}
+
+		/**
+		 * フレームデータを再利用できるように戻す
+		 * @param frame
+		 */
+		private void recycle(@NonNull final MergeFrame frame) {
+			if (pool.size() < MAX_LOOKAHEAD_FRAMES) {
+				pool.addLast(frame);
+			}
+		}
+
+		/**
+		 * 開始時にキャッシュに溜まっていたフレームデータを読み込み終わるまでのスループットを出力する
+		 * @param startNs
+		 */
+		private void reportDrain(final long startNs) {
+			final long elapsedMs = Math.max((System.nanoTime() - startNs) / 1000000L, 1L);
+			Log.i(TAG, String.format(Locale.US,
+				"%s:drained %d frames/%d bytes in %d ms (%.2f MB/s, %.1f frames/s)",
+				name, drainedFrames, drainedBytes, elapsedMs,
+				drainedBytes / 1048.576 / elapsedMs, drainedFrames * 1000.0 / elapsedMs));
+		}
+
+		/**
+		 * muxerへ渡すptsを取得する
+		 * 同じトラックで直前に渡したpts以下ならptsが重複・逆転しないように1マイクロ秒後へずらす
+		 * 他のトラックのptsとは比較しない
+		 * @param track
+		 * @param ptsUs
+		 * @return
+		 */
+		protected long nextPtsUs(final int track, final long ptsUs) {
+			final long last = lastPtsUs[track];
+			final long result = ptsUs > last ? ptsUs : last + 1;
+			lastPtsUs[track] = result;
+			return result;
+		}
+
+		/**
+		 * トラックIDに対応するmuxerのトラックインデックスを取得する
+		 * @param track
+		 * @return 対応するトラックが無ければ-1
+		 */
+		private int muxerTrackIndex(final int track) {
+			switch (track) {
+			case TimeShiftTrackCache.TRACK_VIDEO:
+				return videoTrackIx;
+			case TimeShiftTrackCache.TRACK_AUDIO:
+				return audioTrackIx;
+			default:
+				return -1;
+			}
+		}
+
+		/**
+		 * トラックIDに対応するmuxerのトラックインデックスを取得する
+		 * 映像のキーフレームより前のフレームデータはinfo.sizeを0にして書き出さないようにする
+		 * @param track
+		 * @return 対応するトラックが無ければ-1
+		 */
+		protected int trackIndex(final int track) {
+			final int trackIx;
+			switch (track) {
+			case TimeShiftTrackCache.TRACK_VIDEO:
+				if (!iFrame) {
+					if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME)
+						!= MediaCodec.BUFFER_FLAG_KEY_FRAME) {
+
+						info.size = 0;
+					} else {
+						iFrame = true;
+					}
+				}
+				trackIx = videoTrackIx;
+				break;
+			case TimeShiftTrackCache.TRACK_AUDIO:
+				if (!iFrame) {
+					// 最初の映像のキーフレームより前の音声は書き出さない
+					info.size = 0;
+				}
+				trackIx = audioTrackIx;
+				break;
+			default:
+				trackIx = -1;
+				break;
+			}
+			return trackIx;
+		}
+
+		/**
+		 * infoで指定したフレームデータをmuxerへ書き込む
+		 * @param track
+		 * @param trackIx
+		 * @param buf
+		 */
+		protected void writeSample(final int track, final int trackIx,
+			@NonNull final ByteBuffer buf) {
+
+//			if (DEBUG) Log.v(TAG, "writeSampleData:track=" + track + ",size="+ info.size
+//				+ ", presentationTimeUs=" + info.presentationTimeUs);
+			try {
+				if (track == TimeShiftTrackCache.TRACK_VIDEO) {
+					videoFrames++;
+				} else {
+					audioFrames++;
+				}
+				muxer.writeSampleData(trackIx, buf, info);
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+				error++;
+			}
+		}
 	}
 
 	/**
-	 * ビデオフレームデータが準備できているかどうか確認して準備できていれば
-	 * BufferInfoを設定してByteBufferを返す
-	 * @param info
-	 * @return
-	 * @throws IOException
+	 * 非同期でエンコード済みの動画フレームを取得して
+	 * mp4ファイルへ書き出すためのRunnable
+	 * キャッシュ内のフレームデータを全て書き出してキャッシュへの書き込みに追いついた後は
+	 * 録画を終了するまでキャッシュを経由せずにMediaReaperのスレッド上で直接muxerへ書き込む
+	 * 直接muxerへ書き込んでいる間もタイムシフトバッファが途切れないようにキャッシュへの書き込みは続ける
 	 */
-	@SuppressWarnings("WrongConstant")
-	protected ByteBuffer processVideoFrame(
-		@NonNull final MediaCodec.BufferInfo info) throws IOException {
-
-		if (mVideoCache.size() > 0) {
-			oldestVideo = mVideoCache.getOldest();
-			info.size = oldestVideo != null ? oldestVideo.available(0) : 0;
-			if (info.size > 0) {
-				info.presentationTimeUs = oldestVideo.getKey();
-				videoBuf = oldestVideo.getBytes(0, videoBuf);
-				info.flags = oldestVideo.getInt(1);
-				oldestVideo.close();
-				mVideoCache.remove(info.presentationTimeUs);
-				if (info.presentationTimeUs == prevVideoPtsUs) {
-					Log.w(TAG, "duplicated frame data");
-					info.size = 0;
+	private class RecordingTask extends CursorTask {
+		/**
+		 * キャッシュを経由せずにmuxerへ直接書き込んでいるかどうか
+		 */
+		private boolean passthrough;
+
+		public RecordingTask(@NonNull final TimeShiftTrackCache.Cursor cursor,
+			@NonNull final IMuxer muxer,
+			final int videoTrackIx, final int audioTrackIx) {
+
+			super("RecordingTask", cursor, muxer, videoTrackIx, audioTrackIx);
+		}
+
+		@Override
+		protected boolean isRunning() {
+			return getState() == STATE_RECORDING;
+		}
+
+		@Override
+		protected boolean waitFrame() throws InterruptedException {
+			if (!passthrough) {
+				passthrough = startPassthrough();
+				if (!passthrough) {
+					// キャッシュへ書き込まれると起こされる
+					cursor.await(TIMEOUT_MS);
+					return true;
 				}
-				prevVideoPtsUs = info.presentationTimeUs;
 			}
-			return ByteBuffer.wrap(videoBuf, 0, info.size);
-		} else {
-			info.size = 0;
+			// muxerへ直接書き込んでいる間は録画を終了するまで待機する
+			synchronized (mSync) {
+				while (getState() == STATE_RECORDING) {
+					mSync.wait();
+				}
+			}
+			return false;
+		}
+
+		@Override
+		protected void onStop() {
+			synchronized (mPassthroughSync) {
+				if (mPassthroughTask == this) {
+					// 以降のフレームデータは再びキャッシュへ書き込む
+					mPassthroughTask = null;
+				}
+			}
+			if (DEBUG) Log.v(TAG, "RecordingTask#onStop:passthrough=" + passthrough);
+		}
+
+		/**
+		 * キャッシュ内のフレームデータを全て書き出していれば
+		 * キャッシュを経由せずにmuxerへ直接書き込むように切り替える
+		 * @return 切り替えた時はtrue
+		 */
+		private boolean startPassthrough() {
+			synchronized (mPassthroughSync) {
+				// MediaReaperからキャッシュへ書き込み中のフレームデータと
+				// 非同期書き込み中のフレームデータが無くカーソルが最後まで読み込んでいれば
+				// キャッシュとmuxerの継ぎ目でフレームデータが重複・欠落しない
+				if (getState() != STATE_RECORDING) {
+					return false;
+				}
+				final TimeShiftTrackCache cache = mCache;
+				final TimeShiftWriter writer = mWriter;
+				if ((cache == null) || cache.isClosed()
+					|| (mCacheWrites > 0)
+					|| ((writer != null) && !writer.isIdle())
+					|| (cache.cursorCount() > 1)	// 他にもキャッシュを読み込んでいる時は切り替えない
+					|| cursor.hasNext()) {
+
+					return false;
+				}
+				// 併合待ちのフレームデータは直接書き込みを始める前に全て書き出す
+				writeMerged(true);
+				if (DEBUG) Log.v(TAG, "RecordingTask#startPassthrough:videoPtsUs="
+					+ lastPtsUs[TimeShiftTrackCache.TRACK_VIDEO]
+					+ ",audioPtsUs=" + lastPtsUs[TimeShiftTrackCache.TRACK_AUDIO]);
+				cursor.close();
+				mPassthroughTask = this;
+				return true;
+			}
+		}
+
+		/**
+		 * キャッシュを経由せずにフレームデータをmuxerへ書き込む
+		 * MediaReaperのスレッド上でmPassthroughSyncをロックして呼ぶこと
+		 * @param track
+		 * @param byteBuf
+		 * @param bufferInfo
+		 * @param ptsUs
+		 */
+		@SuppressWarnings("WrongConstant")
+		private void writeDirect(final int track,
+			@NonNull final ByteBuffer byteBuf,
+			@NonNull final MediaCodec.BufferInfo bufferInfo, final long ptsUs) {
+
+			info.set(bufferInfo.offset, bufferInfo.size, nextPtsUs(track, ptsUs), bufferInfo.flags);
+			final int trackIx = trackIndex(track);
+			if ((trackIx >= 0) && (info.size > 0)) {
+				writeSample(track, trackIx, byteBuf);
+			}
 		}
-		return null;
 	}
-	
+
 	/**
-	 * オーディオフレームデータが準備できているかどうか確認して準備できていれば
-	 * BufferInfoを設定してByteBufferを返す
-	 * @param info
-	 * @return
-	 * @throws IOException
+	 * キャッシュからフレームデータを削除せずに指定した範囲を
+	 * mp4ファイルへ書き出すためのRunnable
 	 */
-	protected ByteBuffer processAudioFrame(
-		@NonNull final MediaCodec.BufferInfo info) throws IOException {
-
-		if (mAudioCache.size() > 0) {
-			oldestAudio = mAudioCache.getOldest();
-			info.size = oldestAudio != null ? oldestAudio.available(0) : 0;
-			if (info.size > 0) {
-				info.presentationTimeUs = oldestAudio.getKey();
-				audioBuf = oldestAudio.getBytes(0, audioBuf);
-				info.flags = oldestAudio.getInt(1);
-				oldestAudio.close();
-				mAudioCache.remove(info.presentationTimeUs);
-				if (info.presentationTimeUs == prevAudioPtsUs) {
-					Log.w(TAG, "duplicated frame data");
-					info.size = 0;
+	private class ClipExportTask extends CursorTask {
+		/**
+		 * 終了時刻のフレームデータがまだキャッシュへ書き込まれていない時に待つ最大時間[マイクロ秒]
+		 */
+		private static final long MAX_WAIT_US = 1000000L;	// 1秒
+
+		private final long toPtsUs;
+
+		public ClipExportTask(@NonNull final TimeShiftTrackCache.Cursor cursor,
+			@NonNull final IMuxer muxer,
+			final int videoTrackIx, final int audioTrackIx,
+			final long toPtsUs) {
+
+			super("ClipExportTask", cursor, muxer, videoTrackIx, audioTrackIx);
+			this.toPtsUs = toPtsUs;
+		}
+
+		@Override
+		protected boolean isRunning() {
+			return true;
+		}
+
+		@Override
+		protected boolean waitFrame() throws InterruptedException {
+			// 終了時刻までのフレームデータがまだ無い時は少し待つ
+			synchronized (mSync) {
+				if ((mCache == null) || mCache.isClosed() || !isTimeShift()
+					|| (System.nanoTime() / 1000L > toPtsUs + MAX_WAIT_US)) {
+					return false;
 				}
-				prevAudioPtsUs = info.presentationTimeUs;
 			}
-			return ByteBuffer.wrap(audioBuf, 0, info.size);
+			// キャッシュへ書き込まれると起こされる
+			cursor.await(TIMEOUT_MS);
+			return true;
+		}
+
+		@Override
+		protected boolean isWritable(final long ptsUs) {
+			return ptsUs <= toPtsUs;
+		}
+	}
+
+	/**
+	 * IMuxerを終了して破棄する, 出力ファイルのパスを取得できればMediaScannerへ登録する
+	 * @param muxer
+	 */
+	private void releaseMuxer(@NonNull final IMuxer muxer) {
+		try {
+			muxer.stop();
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+		}
+		final String outputPath;
+		if (muxer instanceof MediaMuxerWrapper) {
+			outputPath = ((MediaMuxerWrapper) muxer).getOutputPath();
 		} else {
-			info.size = 0;
+			outputPath = null;
+		}
+		try {
+			muxer.release();
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+		}
+		if (!TextUtils.isEmpty(outputPath)) {
+			try {
+				final File out = new File(outputPath);
+				if (out.exists() && out.canRead()) {
+					if (DEBUG) Log.v(TAG, "releaseMuxer:scanFile " + outputPath);
+					scanFile(outputPath);
+				}
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
 		}
-		return null;
 	}
-	
+
 	/**
 	 * エンコード済みのフレームデータをキャッシュへ書き出す
+	 * 非同期書き込み用のTimeShiftWriterがあればキューへ追加するだけで
+	 * 実際のキャッシュへの書き込みはTimeShiftWriterのスレッド上で行う
+	 * 録画中にキャッシュ内のフレームデータを全て書き出した後は
+	 * キャッシュへの書き込みに加えて直接muxerへも書き込む
 	 * @param reaper
 	 * @param byteBuf
 	 * @param bufferInfo
@@ -685,24 +1779,48 @@ public class TimeShiftRecService extends AbstractRecorderService {
 		@NonNull final MediaCodec.BufferInfo bufferInfo, final long ptsUs)
 			throws IOException {
 	
-		final TimeShiftDiskCache cache;
-		synchronized (mSync) {
-			switch (reaper.reaperType()) {
-			case MediaReaper.REAPER_VIDEO:
-				cache = mVideoCache;
-				break;
-			case MediaReaper.REAPER_AUDIO:
-				cache = mAudioCache;
-				break;
-			default:
-				cache = null;
+		// サービスのロックは録画の開始・終了等の状態変更用なのでここではロックしない
+		final TimeShiftTrackCache cache = mCache;
+		final TimeShiftWriter writer = mWriter;
+		final int track;
+		switch (reaper.reaperType()) {
+		case MediaReaper.REAPER_VIDEO:
+			track = TimeShiftTrackCache.TRACK_VIDEO;
+			break;
+		case MediaReaper.REAPER_AUDIO:
+			track = TimeShiftTrackCache.TRACK_AUDIO;
+			break;
+		default:
+			return;
+		}
+		final TimeShiftCacheSizer sizer = mCacheSizer;
+		if ((sizer != null) && (cache != null)) {
+			// 実際にエンコードされたデータ量に合わせてキャッシュサイズを見直す
+			final long size = sizer.update(bufferInfo.size, ptsUs);
+			if (size > 0) {
+				if (DEBUG) Log.v(TAG, "onWriteSampleData:resize cache," + size);
+				cache.setMaxSize(size);
+			}
+		}
+		synchronized (mPassthroughSync) {
+			if (mPassthroughTask != null) {
+				// 録画中でキャッシュ内のフレームデータを全て書き出した後は直接muxerへ書き込む
+				mPassthroughTask.writeDirect(track, byteBuf, bufferInfo, ptsUs);
 			}
+			mCacheWrites++;
 		}
-		if ((cache != null) && !cache.isClosed()) {
-			final TimeShiftDiskCache.Editor editor = cache.edit(ptsUs);
-			editor.set(0, byteBuf, bufferInfo.offset, bufferInfo.size);
-			editor.set(1, bufferInfo.flags);
-			editor.commit();
+		try {
+			// TimeShiftWriterのキューが一杯の時はブロックするのでmPassthroughSyncはロックしない
+			if ((cache != null) && (writer != null)) {
+				writer.write(cache, track, byteBuf, bufferInfo, ptsUs);
+			} else if ((cache != null) && !cache.isClosed()) {
+				cache.write(track, byteBuf, bufferInfo.offset, bufferInfo.size,
+					bufferInfo.flags, ptsUs);
+			}
+		} finally {
+			synchronized (mPassthroughSync) {
+				mCacheWrites--;
+			}
 		}
 	}
 
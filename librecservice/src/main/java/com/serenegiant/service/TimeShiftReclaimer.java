@@ -0,0 +1,215 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * キャッシュから削除したエントリーのファイルを共有I/Oスケジューラーの保守処理としてまとめて削除するためのヘルパークラス
+ * キャッシュ側はエントリーをメモリー上で削除済みにしてファイルをキューへ追加するだけなので
+ * フレームデータの書き込み中にファイルの削除待ちが発生しない。
+ * 削除タスクは1秒あたりの削除ファイル数(MAX_FILES_PER_SEC)で削除速度を制限し、
+ * 削除できる分が無い時はスレッドプールのスレッドを占有しないように時間をおいて再実行する。
+ * 削除待ちのファイルが多すぎる時は削除速度を制限せずに削除して追いつく
+ */
+final class TimeShiftReclaimer {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = TimeShiftReclaimer.class.getSimpleName();
+
+	/**
+	 * 1回にまとめて削除する最大ファイル数
+	 */
+	private static final int BATCH_SIZE = 32;
+	/**
+	 * 1秒あたりに削除する最大ファイル数
+	 * 30fpsの映像と音声を1フレーム1ファイルで削除しても十分に余裕がある値にする
+	 */
+	private static final int MAX_FILES_PER_SEC = 1000;
+	/**
+	 * 削除待ちのファイル数の上限, 超えた時はキューへ追加したスレッド上で古いものから削除する
+	 */
+	private static final int MAX_PENDING = 8192;
+	/**
+	 * 削除待ちのファイル数がこれを超えた時は削除速度を制限しない
+	 */
+	private static final int BOOST_PENDING = MAX_PENDING / 4;
+
+	@NonNull
+	private final String mName;
+	private final Object mSync = new Object();
+	/**
+	 * 削除待ちのファイル, 削除タスクが削除中のファイルも削除し終わるまで保持する
+	 */
+	private final LinkedHashSet<File> mPending = new LinkedHashSet<>();
+	private final TimeShiftIOScheduler mScheduler = TimeShiftIOScheduler.getInstance();
+	/**
+	 * 削除タスクを実行待ちキューへ追加済みかどうか
+	 */
+	private boolean mReclaimQueued;
+	/**
+	 * 削除速度を制限するためのトークン, 1ファイル削除する毎に1減らし
+	 * MAX_FILES_PER_SECの割合で最大BATCH_SIZEまで増やす
+	 */
+	private double mTokens = BATCH_SIZE;
+	private long mLastRefillMs;
+	private long mReclaimedFiles;
+
+	/**
+	 * コンストラクタ
+	 * @param name 削除中のスレッドの名前
+	 */
+	TimeShiftReclaimer(@NonNull final String name) {
+		mName = name;
+	}
+
+	/**
+	 * ファイルを削除待ちキューへ追加する
+	 * @param file
+	 */
+	void enqueue(@NonNull final File file) {
+		File overflow = null;
+		boolean start = false;
+		synchronized (mSync) {
+			if (!mPending.add(file)) {
+				return;
+			}
+			if (mPending.size() > MAX_PENDING) {
+				// 削除が追いつかない時は古いものから呼び出し元スレッドで削除する
+				final Iterator<File> i = mPending.iterator();
+				overflow = i.next();
+				i.remove();
+			}
+			if (!mReclaimQueued) {
+				mReclaimQueued = start = true;
+			}
+		}
+		if (start) {
+			mScheduler.execute(TimeShiftIOScheduler.PRIORITY_MAINTENANCE, mName, mReclaimTask);
+		}
+		if (overflow != null) {
+			Log.w(TAG, "enqueue:too many pending files, delete " + overflow);
+			deleteFile(overflow);
+		}
+	}
+
+	/**
+	 * 指定したファイルが削除待ちかどうか
+	 * @param file
+	 * @return
+	 */
+	boolean isPending(@NonNull final File file) {
+		synchronized (mSync) {
+			return mPending.contains(file);
+		}
+	}
+
+	/**
+	 * 削除待ちのファイル数を取得
+	 * @return
+	 */
+	int pendingCount() {
+		synchronized (mSync) {
+			return mPending.size();
+		}
+	}
+
+	/**
+	 * 削除待ちのファイルを呼び出し元スレッド上で全て削除する
+	 * キャッシュを閉じる時に呼ぶ
+	 */
+	void drain() {
+		final List<File> files;
+		synchronized (mSync) {
+			files = new ArrayList<>(mPending);
+		}
+		for (final File file: files) {
+			deleteFile(file);
+		}
+		synchronized (mSync) {
+			mPending.removeAll(files);
+			mReclaimedFiles += files.size();
+		}
+		if (DEBUG) Log.v(TAG, "drain:" + mName + ",files=" + files.size());
+	}
+
+	private static void deleteFile(@NonNull final File file) {
+		if (file.exists() && !file.delete()) {
+			Log.w(TAG, "failed to delete " + file);
+		}
+	}
+
+	/**
+	 * 削除タスクの実行部
+	 * トークンの分だけ(最大BATCH_SIZE)削除して、他の保守処理も実行できるように実行待ちキューへ追加し直す
+	 * トークンが無い時は次の1ファイル分が貯まるまでの時間をおいて実行待ちキューへ追加する
+	 * 削除待ちのファイルが無くなると終了し、次にキューへ追加された時に再び実行待ちキューへ追加する
+	 */
+	private final Runnable mReclaimTask = new Runnable() {
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "ReclaimTask#run:" + mName);
+			final List<File> batch = new ArrayList<>(BATCH_SIZE);
+			synchronized (mSync) {
+				if (mPending.isEmpty()) {
+					mReclaimQueued = false;
+					if (DEBUG) Log.v(TAG, "ReclaimTask#run:finished," + mName + ",reclaimed=" + mReclaimedFiles);
+					return;
+				}
+				final long now = SystemClock.elapsedRealtime();
+				if (mLastRefillMs > 0) {
+					mTokens = Math.min(BATCH_SIZE,
+						mTokens + (now - mLastRefillMs) * MAX_FILES_PER_SEC / 1000.0);
+				}
+				mLastRefillMs = now;
+				final boolean boost = mPending.size() > BOOST_PENDING;
+				final int n = boost ? BATCH_SIZE : (int)mTokens;
+				if (n <= 0) {
+					// 次の1ファイル分のトークンが貯まるまでスレッドを占有せずに待つ
+					final long delayMs = (long)Math.ceil((1.0 - mTokens) * 1000.0 / MAX_FILES_PER_SEC);
+					mScheduler.executeDelayed(TimeShiftIOScheduler.PRIORITY_MAINTENANCE,
+						mName, this, Math.max(delayMs, 1));
+					return;
+				}
+				for (final File file: mPending) {
+					if (batch.size() >= n) {
+						break;
+					}
+					batch.add(file);
+				}
+				if (!boost) {
+					mTokens -= batch.size();
+				}
+			}
+			for (final File file: batch) {
+				deleteFile(file);
+			}
+			synchronized (mSync) {
+				mPending.removeAll(batch);
+				mReclaimedFiles += batch.size();
+			}
+			mScheduler.execute(TimeShiftIOScheduler.PRIORITY_MAINTENANCE, mName, this);
+		}
+	};
+}
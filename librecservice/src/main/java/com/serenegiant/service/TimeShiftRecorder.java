@@ -18,6 +18,8 @@ package com.serenegiant.service;
 import android.content.Context;
 import android.os.IBinder;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.documentfile.provider.DocumentFile;
 
 import android.util.Log;
 
@@ -70,6 +72,73 @@ public class TimeShiftRecorder extends AbstractServiceRecorder
 		}
 	}
 
+	/**
+	 * 指定した時間だけ遡って録画開始
+	 * @param output 出力ファイル
+	 * @param lookBackMs 録画開始時に遡る時間[ミリ秒], 負ならキャッシュしている全てのフレームデータから録画する
+	 * @throws IllegalStateException
+	 * @throws IOException
+	 */
+	@Override
+	public void start(@Nullable final DocumentFile output, final long lookBackMs)
+		throws IllegalStateException, IOException {
+
+		if (DEBUG) Log.v(TAG, "start:output=" + output + ",lookBackMs=" + lookBackMs);
+		checkReleased();
+		final AbstractRecorderService service = getService();
+		if (service instanceof TimeShiftRecService) {
+			((TimeShiftRecService) service).start(output, lookBackMs);
+		} else {
+			throw new IllegalStateException("start:service is not ready");
+		}
+	}
+
+	/**
+	 * キャッシュしているフレームデータのうち指定した範囲をmp4ファイルへ書き出す
+	 * タイムシフトバッファリングや録画は継続する
+	 * @param output 出力ファイル
+	 * @param fromPtsUs 開始時刻[マイクロ秒], System.nanoTime() / 1000と同じ時刻系
+	 * @param toPtsUs 終了時刻[マイクロ秒], System.nanoTime() / 1000と同じ時刻系
+	 * @throws IllegalStateException
+	 * @throws IOException
+	 */
+	@Override
+	public void exportClip(@NonNull final DocumentFile output,
+		final long fromPtsUs, final long toPtsUs)
+			throws IllegalStateException, IOException {
+
+		if (DEBUG) Log.v(TAG, "exportClip:output=" + output);
+		checkReleased();
+		final AbstractRecorderService service = getService();
+		if (service instanceof TimeShiftRecService) {
+			((TimeShiftRecService) service).exportClip(output, fromPtsUs, toPtsUs);
+		} else {
+			throw new IllegalStateException("exportClip:service is not ready");
+		}
+	}
+
+	/**
+	 * 直近の指定した時間分のフレームデータをmp4ファイルへ書き出す
+	 * タイムシフトバッファリングや録画は継続する
+	 * @param output 出力ファイル
+	 * @param durationMs 書き出す時間[ミリ秒]
+	 * @throws IllegalStateException
+	 * @throws IOException
+	 */
+	@Override
+	public void exportLast(@NonNull final DocumentFile output, final long durationMs)
+		throws IllegalStateException, IOException {
+
+		if (DEBUG) Log.v(TAG, "exportLast:output=" + output + ",durationMs=" + durationMs);
+		checkReleased();
+		final AbstractRecorderService service = getService();
+		if (service instanceof TimeShiftRecService) {
+			((TimeShiftRecService) service).exportLast(output, durationMs);
+		} else {
+			throw new IllegalStateException("exportLast:service is not ready");
+		}
+	}
+
 	/**
 	 * タイムシフトバッファリング中かどうかを取得
 	 * @return
@@ -98,6 +167,24 @@ public class TimeShiftRecorder extends AbstractServiceRecorder
 		}
 	}
 
+	/**
+	 * メモリー上に保持するキャッシュサイズを指定
+	 * @param memoryCacheSize タイムシフトに使用するメモリー上のキャッシュサイズ[バイト],
+	 * 							0ならメモリー上には保持しない
+	 * @throws IllegalStateException #prepare以降に呼び出されるとIllegalStateExceptionを投げる
+	 * @throws IllegalArgumentException 負の値をセットするとIllegalArgumentExceptionを投げる
+	 */
+	@Override
+	public void setMemoryCacheSize(final int memoryCacheSize)
+		throws IllegalStateException, IllegalArgumentException {
+
+		if (DEBUG) Log.v(TAG, "setMemoryCacheSize:");
+		final AbstractRecorderService service = getService();
+		if (service instanceof TimeShiftRecService) {
+			((TimeShiftRecService) service).setMemoryCacheSize(memoryCacheSize);
+		}
+	}
+
 	/**
 	 * キャッシュ場所を指定, パーミッションが有ってアプリから書き込めること
 	 * @param cacheDir
@@ -0,0 +1,715 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.media.MediaCodec;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * 固定サイズのファイルをFileChannel#mapでメモリーマップして
+ * リングバッファとして使うITimeShiftCache実装
+ * フレームデータはマップしたバッファへ直接書き込み、容量が足りなければ
+ * 最も古いフレームデータをその場で上書きする。
+ * インデックス(pts, offset, length, flags)はメモリー上にのみ保持する。
+ * #getで取得したSnapshotはマップしたバッファのスライスを返すので
+ * コピーせずに読み込むことができる。Snapshotを閉じるまではその領域は上書きされない。
+ * 最大タイムシフト時間が短い(数秒〜数十秒)時に使うことを想定している
+ */
+final class TimeShiftRingCache implements ITimeShiftCache {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = TimeShiftRingCache.class.getSimpleName();
+
+	private static final String RING_FILE = "ring";
+	/**
+	 * 読み込み中の領域が解放されるのを待機する最大時間[ミリ秒]
+	 */
+	private static final long PIN_WAIT_MS = 100;
+	private static final int INITIAL_INDEX_CAPACITY = 256;
+
+	private final File directory;
+	private final File ringFile;
+	/**
+	 * 最大保持時間[マイクロ秒], キーと同じ時間軸(getInputPTSUs)で比較する
+	 */
+	private final long maxDurationUs;
+	/**
+	 * 最も新しいエントリーのキー, 最大保持時間の判定に使う
+	 */
+	private long newestKey;
+	private final int capacity;
+	private RandomAccessFile raf;
+	private MappedByteBuffer mRing;
+	/**
+	 * 読み込み中(Snapshotを閉じていない)の領域
+	 */
+	private final ArrayList<Snapshot> mPinned = new ArrayList<>();
+	private Editor mCurrentEditor;
+	/**
+	 * 次に書き込む位置
+	 */
+	private int mWritePos;
+// インデックス, 古い順に並んだリング
+	private long[] mKeys = new long[INITIAL_INDEX_CAPACITY];
+	private int[] mOffsets = new int[INITIAL_INDEX_CAPACITY];
+	private int[] mLengths = new int[INITIAL_INDEX_CAPACITY];
+	private int[] mFlags = new int[INITIAL_INDEX_CAPACITY];
+	private int mHead;
+	private int mCount;
+	private long size = 0;
+	/**
+	 * 古いエントリーをキーフレーム単位で削除するかどうか
+	 */
+	private boolean keyFrameAligned;
+	/**
+	 * 低水位マーク, これ以降のエントリーは最大サイズ/最大時間を超えても削除しない
+	 */
+	private long lowWaterMark;
+
+	/**
+	 * Opens the cache in {@code directory}.
+	 * @param directory   a writable directory
+	 * @param maxSize     リングバッファのサイズ[バイト], Integer.MAX_VALUE以下
+	 * @param maxDuration the maximum time as mills seconds that this cache will hold
+	 * @throws IOException
+	 */
+	public static TimeShiftRingCache open(final File directory,
+		final long maxSize, final long maxDuration) throws IOException {
+
+		if ((maxSize <= 0) || (maxSize > Integer.MAX_VALUE)) {
+			throw new IllegalArgumentException("maxSize should be in 1..Integer.MAX_VALUE");
+		}
+		if (maxDuration <= 0) {
+			throw new IllegalArgumentException("maxDuration <= 0");
+		}
+		return new TimeShiftRingCache(directory, (int)maxSize, maxDuration);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param directory
+	 * @param capacity
+	 * @param maxDurationMs
+	 * @throws IOException
+	 */
+	private TimeShiftRingCache(final File directory,
+		final int capacity, final long maxDurationMs) throws IOException {
+
+		if (!directory.isDirectory()) {
+			throw new IOException("specific path is not a directory");
+		}
+		final File dir = new File(directory, UUID.randomUUID().toString());
+		if (!dir.exists()) {
+			if (!dir.mkdirs()) {
+				throw new IOException("failed to create dir/parent dirs");
+			}
+		}
+		this.directory = dir;
+		this.ringFile = new File(dir, RING_FILE);
+		this.capacity = capacity;
+		this.maxDurationUs = maxDurationMs * 1000L;
+		raf = new RandomAccessFile(ringFile, "rw");
+		try {
+			raf.setLength(capacity);
+			mRing = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} catch (final IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public File getDirectory() {
+		return directory;
+	}
+
+	@Override
+	public long maxSize() {
+		return capacity;
+	}
+
+	/**
+	 * リングバッファの容量は生成時に確保したファイルのサイズで固定なので変更できない
+	 * @param maxSize
+	 */
+	@Override
+	public void setMaxSize(final long maxSize) {
+		if (DEBUG) Log.v(TAG, "setMaxSize:ring capacity is fixed," + capacity);
+	}
+
+	@Override
+	public synchronized long size() {
+		return size;
+	}
+
+	@Override
+	public synchronized long newestKey() {
+		return mCount > 0 ? mKeys[physical(mCount - 1)] : 0;
+	}
+
+	@Override
+	public synchronized long oldestKey() {
+		return mCount > 0 ? mKeys[mHead] : 0;
+	}
+
+	@Override
+	public synchronized long nextKey(final long key) {
+		int lo = 0;
+		int hi = mCount - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (mKeys[physical(mid)] <= key) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		// 途中で削除されたエントリー(長さ0)は読み飛ばす
+		for (int i = lo; i < mCount; i++) {
+			final int ix = physical(i);
+			if (mLengths[ix] > 0) {
+				return mKeys[ix];
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public synchronized Snapshot get(final long key) throws IOException {
+		checkNotClosed();
+		final int ix = indexOf(key);
+		if (ix < 0) {
+			return null;
+		}
+		final Snapshot snapshot = new Snapshot(key,
+			mOffsets[ix], mLengths[ix], mFlags[ix]);
+		mPinned.add(snapshot);
+		return snapshot;
+	}
+
+	@Override
+	public synchronized Snapshot getOldest() throws IOException {
+		return get(oldestKey());
+	}
+
+	/**
+	 * Returns an editor for the entry named {@code key}, or null if another
+	 * edit is in progress or {@code key} is not newer than the newest entry.
+	 */
+	@Override
+	public synchronized Editor edit(final long key) throws IOException {
+		checkNotClosed();
+		if ((mCurrentEditor != null)
+			|| ((mCount > 0) && (key <= mKeys[physical(mCount - 1)]))) {
+			// 同時に書き込めるのは1つだけ, キーは単調増加でないといけない
+			return null;
+		}
+		mCurrentEditor = new Editor(key);
+		return mCurrentEditor;
+	}
+
+	@Override
+	public synchronized boolean remove(final long key) throws IOException {
+		checkNotClosed();
+		final int ix = indexOf(key);
+		if (ix < 0) {
+			return false;
+		}
+		if (ix == mHead) {
+			removeOldest();
+		} else {
+			// 途中のエントリーは長さ0にしてインデックス上だけで削除する
+			size -= mLengths[ix];
+			mLengths[ix] = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized int removeBefore(final long key) throws IOException {
+		checkNotClosed();
+		int result = 0;
+		while ((mCount > 0) && (mKeys[mHead] < key)) {
+			removeOldest();
+			result++;
+		}
+		if (result > 0) {
+			result += trimToKeyFrame();
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized void setKeyFrameAligned(final boolean aligned) {
+		keyFrameAligned = aligned;
+	}
+
+	@Override
+	public synchronized void setLowWaterMark(final long key) {
+		lowWaterMark = key;
+	}
+
+	@Override
+	public synchronized boolean isClosed() {
+		return mRing == null;
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		checkNotClosed();
+		trimEntries();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (mRing == null) {
+			return; // already closed
+		}
+		mRing = null;
+		mPinned.clear();
+		mHead = mCount = 0;
+		size = 0;
+		notifyAll();
+		raf.close();
+	}
+
+	@Override
+	public void delete() throws IOException {
+		close();
+		if (ringFile.exists() && !ringFile.delete()) {
+			throw new IOException("failed to delete " + ringFile);
+		}
+		// TimeShiftRecServiceが書き出したフォーマット等のファイルも削除しないとディレクトリを削除できない
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (final File file: files) {
+				if (file.isFile() && !file.delete()) {
+					Log.w(TAG, "failed to delete " + file);
+				}
+			}
+		}
+		if (!directory.delete()) {
+			throw new IOException("failed to delete directory:" + directory);
+		}
+	}
+
+	private void checkNotClosed() {
+		if (mRing == null) {
+			throw new IllegalStateException("cache is closed");
+		}
+	}
+
+	/**
+	 * 論理インデックス(0が最も古い)をインデックス配列上の位置へ変換
+	 * @param i
+	 * @return
+	 */
+	private int physical(final int i) {
+		final int ix = mHead + i;
+		return ix < mKeys.length ? ix : ix - mKeys.length;
+	}
+
+	/**
+	 * キーを二分探索してインデックス配列上の位置を返す
+	 * @param key
+	 * @return 見つからないか削除済みなら-1
+	 */
+	private int indexOf(final long key) {
+		int lo = 0;
+		int hi = mCount - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			final int ix = physical(mid);
+			final long k = mKeys[ix];
+			if (k < key) {
+				lo = mid + 1;
+			} else if (k > key) {
+				hi = mid - 1;
+			} else {
+				return mLengths[ix] > 0 ? ix : -1;
+			}
+		}
+		return -1;
+	}
+
+	private void removeOldest() {
+		size -= mLengths[mHead];
+		mLengths[mHead] = 0;
+		mHead = physical(1);
+		mCount--;
+		// 途中で削除されたエントリーが先頭になった時はそれも取り除く
+		while ((mCount > 0) && (mLengths[mHead] == 0)) {
+			mHead = physical(1);
+			mCount--;
+		}
+		if (mCount == 0) {
+			mHead = 0;
+		}
+	}
+
+	/**
+	 * インデックスの末尾へ追加する, 容量が足りなければ倍に拡張する
+	 */
+	private void addIndex(final long key,
+		final int offset, final int length, final int flags) {
+
+		if (mCount == mKeys.length) {
+			final int n = mKeys.length * 2;
+			final long[] keys = new long[n];
+			final int[] offsets = new int[n];
+			final int[] lengths = new int[n];
+			final int[] newFlags = new int[n];
+			for (int i = 0; i < mCount; i++) {
+				final int ix = physical(i);
+				keys[i] = mKeys[ix];
+				offsets[i] = mOffsets[ix];
+				lengths[i] = mLengths[ix];
+				newFlags[i] = mFlags[ix];
+			}
+			mKeys = keys;
+			mOffsets = offsets;
+			mLengths = lengths;
+			mFlags = newFlags;
+			mHead = 0;
+		}
+		final int ix = physical(mCount);
+		mKeys[ix] = key;
+		mOffsets[ix] = offset;
+		mLengths[ix] = length;
+		mFlags[ix] = flags;
+		mCount++;
+		size += length;
+	}
+
+	/**
+	 * 指定したサイズを書き込む領域を確保する
+	 * 必要であれば最も古いエントリーから順に削除する
+	 * 読み込み中の領域と重なる時はSnapshotが閉じられるまで待機する
+	 * @param length
+	 * @return 書き込み開始位置, 確保できなければ-1
+	 * @throws IOException
+	 */
+	private int reserve(final int length) throws IOException {
+		if (length > capacity) {
+			throw new IOException("frame is too large for the ring:" + length);
+		}
+		if (mWritePos + length > capacity) {
+			// 末尾に収まらないので先頭へ戻る, 前周回のエントリーは全て破棄する
+			while ((mCount > 0) && (mOffsets[mHead] >= mWritePos)) {
+				if (!evictOldest()) {
+					// 読み込み中のカーソルが必要とするエントリーは上書きできない
+					return -1;
+				}
+			}
+			mWritePos = 0;
+		}
+		final int start = mWritePos;
+		final int end = start + length;
+		while ((mCount > 0)
+			&& (mOffsets[mHead] < end) && (mOffsets[mHead] >= start)) {
+			if (!evictOldest()) {
+				return -1;
+			}
+		}
+		final long timeout = SystemClock.elapsedRealtime() + PIN_WAIT_MS;
+		while (isPinned(start, end)) {
+			final long remain = timeout - SystemClock.elapsedRealtime();
+			if (remain <= 0) {
+				return -1;
+			}
+			try {
+				wait(remain);
+			} catch (final InterruptedException e) {
+				return -1;
+			}
+			checkNotClosed();
+		}
+		return start;
+	}
+
+	private boolean isPinned(final int start, final int end) {
+		for (final Snapshot snapshot: mPinned) {
+			if ((snapshot.offset < end) && (start < snapshot.offset + snapshot.length)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private synchronized void unpin(@NonNull final Snapshot snapshot) {
+		if (mPinned.remove(snapshot)) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * 最大保持時間を超えた古いエントリーを削除する
+	 * キーはフレームのpts[マイクロ秒]なので最も新しいエントリーのキーを基準にして
+	 * 先頭のエントリーだけを確認する
+	 */
+	private void trimEntries() {
+		final long limit = newestKey - maxDurationUs;
+		while ((mCount > 0) && (mKeys[mHead] < limit)) {
+			if (!evictOldest()) {
+				break;
+			}
+		}
+		if (DEBUG) Log.v(TAG, "trimEntries:finished, size=" + size);
+	}
+
+	/**
+	 * 最も古いエントリーを削除する
+	 * キーフレーム単位で削除する時は次のキーフレームの手前まで削除する
+	 * @return 低水位マーク以降で削除できなければfalse
+	 */
+	private boolean evictOldest() {
+		if ((mCount <= 0) || isRetained(mKeys[mHead])) {
+			return false;
+		}
+		removeOldest();
+		trimToKeyFrame();
+		return true;
+	}
+
+	/**
+	 * 低水位マーク以降のエントリーかどうか
+	 * @param key
+	 * @return trueなら最大サイズ/最大時間を超えても削除しない
+	 */
+	private boolean isRetained(final long key) {
+		return (lowWaterMark > 0) && (key >= lowWaterMark);
+	}
+
+	/**
+	 * キーフレーム単位で削除する時は先頭がキーフレームになるまで削除する
+	 * @return 削除したエントリー数
+	 */
+	private int trimToKeyFrame() {
+		int result = 0;
+		if (keyFrameAligned) {
+			while ((mCount > 0)
+				&& ((mFlags[mHead] & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0)
+				&& !isRetained(mKeys[mHead])) {
+
+				removeOldest();
+				result++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * フレームデータをリングバッファへ書き込む
+	 * @param editor
+	 * @param src position〜limitが書き込まれる
+	 * @throws IOException
+	 */
+	private synchronized void write(@NonNull final Editor editor,
+		@NonNull final ByteBuffer src) throws IOException {
+
+		checkNotClosed();
+		if (mCurrentEditor != editor) {
+			throw new IllegalStateException();
+		}
+		final int length = src.remaining();
+		final int start = reserve(length);
+		if (start >= 0) {
+			final ByteBuffer dst = mRing.duplicate();
+			dst.position(start);
+			dst.put(src);
+			mWritePos = start + length;
+			editor.offset = start;
+			editor.length = length;
+		} else {
+			if (DEBUG) Log.v(TAG, "write:ring is pinned by reader, drop frame");
+			editor.offset = -1;
+		}
+	}
+
+	/**
+	 * 書き込んだフレームデータをインデックスへ追加して読み込み側へ公開する
+	 * @param editor
+	 * @throws FrameDroppedException #writeで領域を確保できずにフレームデータを破棄していた時
+	 */
+	private synchronized void publish(@NonNull final Editor editor)
+		throws FrameDroppedException {
+
+		checkNotClosed();
+		if (mCurrentEditor != editor) {
+			throw new IllegalStateException();
+		}
+		mCurrentEditor = null;
+		if (editor.offset < 0) {
+			throw new FrameDroppedException("ring is pinned by reader, key=" + editor.key);
+		}
+		addIndex(editor.key, editor.offset, editor.length, editor.flags);
+		if (editor.key > newestKey) {
+			newestKey = editor.key;
+		}
+		trimEntries();
+	}
+
+	private synchronized void discard(@NonNull final Editor editor) {
+		if (mCurrentEditor == editor) {
+			mCurrentEditor = null;
+		}
+	}
+
+	/**
+	 * A snapshot of the entry.
+	 * 閉じるまでの間はこのエントリーの領域は上書きされない
+	 */
+	public final class Snapshot implements ITimeShiftCache.Snapshot {
+		private final long key;
+		private final int offset;
+		private final int length;
+		private final int flags;
+		private boolean closed;
+
+		private Snapshot(final long key,
+			final int offset, final int length, final int flags) {
+
+			this.key = key;
+			this.offset = offset;
+			this.length = length;
+			this.flags = flags;
+		}
+
+		@Override
+		public long getKey() {
+			return key;
+		}
+
+		@Override
+		public int available(final int index) throws IOException {
+			return index == 0 ? length : 4;
+		}
+
+		@Override
+		public byte[] getBytes(final int index, final byte[] dst) throws IOException {
+			final ByteBuffer buf = getByteBuffer(index, null);
+			final byte[] result = (dst != null) && (dst.length >= buf.remaining())
+				? dst : new byte[buf.remaining()];
+			buf.get(result, 0, buf.remaining());
+			return result;
+		}
+
+		@Override
+		public int getInt(final int index) throws IOException {
+			if (index == 1) {
+				return flags;
+			}
+			throw new IOException("unexpected index " + index);
+		}
+
+		/**
+		 * マップしたリングバッファのスライス(読み込み専用)を返す, コピーはしない
+		 * @param index
+		 * @param dst 使わない
+		 * @return
+		 * @throws IOException
+		 */
+		@NonNull
+		@Override
+		public ByteBuffer getByteBuffer(final int index,
+			@Nullable final ByteBuffer dst) throws IOException {
+
+			if (index == 0) {
+				synchronized (TimeShiftRingCache.this) {
+					if (closed || (mRing == null)) {
+						throw new IOException("snapshot is already closed");
+					}
+					final ByteBuffer result = mRing.asReadOnlyBuffer();
+					result.position(offset);
+					result.limit(offset + length);
+					return result.slice();
+				}
+			} else {
+				final ByteBuffer result = ByteBuffer.allocate(4);
+				result.putInt(flags).flip();
+				return result;
+			}
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				unpin(this);
+			}
+		}
+	}
+
+	/**
+	 * Edits the values for an entry.
+	 * フレームデータは#setで直接リングバッファへ書き込む
+	 */
+	public final class Editor implements ITimeShiftCache.Editor {
+		private final long key;
+		private int offset = -1;
+		private int length;
+		private int flags;
+
+		private Editor(final long key) {
+			this.key = key;
+		}
+
+		@Override
+		public void set(final int index,
+			final ByteBuffer buffer, final int offset, final int size)
+				throws IOException {
+
+			if (index != 0) {
+				throw new IllegalArgumentException("unexpected index " + index);
+			}
+			final ByteBuffer src = buffer.duplicate();
+			src.clear();
+			src.position(offset);
+			src.limit(offset + size);
+			write(this, src);
+		}
+
+		@Override
+		public void set(final int index, final int value) throws IOException {
+			if (index != 1) {
+				throw new IllegalArgumentException("unexpected index " + index);
+			}
+			flags = value;
+		}
+
+		@Override
+		public void commit() throws IOException {
+			publish(this);
+		}
+
+		@Override
+		public void abort() throws IOException {
+			discard(this);
+		}
+	}
+}
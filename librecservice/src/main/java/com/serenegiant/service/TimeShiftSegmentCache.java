@@ -0,0 +1,767 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * 追記専用のセグメントファイルへエンコード済みフレームを書き込むITimeShiftCache実装
+ * TimeShiftDiskCacheはフレーム毎に2つのファイルを生成/リネーム/削除するが
+ * こちらはあらかじめサイズを確保したセグメントファイルへ
+ * [pts(8バイト), flags(4バイト), size(4バイト), payload]の
+ * レコードとして追記するだけなのでフレーム毎のファイル操作が発生しない。
+ * 削除はセグメント単位で行い、セグメント内の全てのレコードが削除されたときに
+ * セグメントファイルを低優先度の削除スレッド上で削除する。
+ * ジャーナルは持たないのでプロセスをまたいだ再利用はできない
+ */
+final class TimeShiftSegmentCache implements ITimeShiftCache {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = TimeShiftSegmentCache.class.getSimpleName();
+
+	/**
+	 * レコードヘッダーのサイズ, pts(long) + flags(int) + size(int)
+	 */
+	static final int RECORD_HEADER_SIZE = 16;
+	/**
+	 * セグメントサイズの最小値
+	 */
+	static final int MIN_SEGMENT_SIZE = 256 * 1024;
+	/**
+	 * セグメントサイズの最大値
+	 */
+	static final int MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+	private static final String SEGMENT_FILE_EXT = ".seg";
+
+	private final File directory;
+	/**
+	 * 最大サイズ[バイト], #setMaxSizeで変更できる
+	 */
+	private volatile long maxSize;
+	/**
+	 * 最大保持時間[マイクロ秒], キーと同じ時間軸(getInputPTSUs)で比較する
+	 */
+	private final long maxDurationUs;
+	/**
+	 * 最も新しいレコードのキー, 最大保持時間の判定に使う
+	 */
+	private long newestKey;
+	private final int segmentSize;
+	/**
+	 * 古い順のセグメント, 最後が書き込み中のセグメント
+	 */
+	private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+	/**
+	 * 有効なレコードが無くなったが読み込み中のスナップショットがあるセグメント
+	 * 全てのスナップショットを閉じた時に閉じて削除する
+	 */
+	private final List<Segment> mReleasedSegments = new ArrayList<>();
+	/**
+	 * キー順のレコード, キーで次のレコードを探せるようにTreeMapで保持する
+	 */
+	private final TreeMap<Long, Record> mRecords = new TreeMap<>();
+	/**
+	 * レコードヘッダー書き込み用のワーク
+	 */
+	private final ByteBuffer mHeader = ByteBuffer.allocateDirect(RECORD_HEADER_SIZE);
+	/**
+	 * 書き込み中のEditor
+	 */
+	private Editor mCurrentEditor;
+	private int nextSegmentId;
+	private long size = 0;
+	private boolean closed;
+	/**
+	 * 古いレコードをキーフレーム単位で削除するかどうか
+	 */
+	private boolean keyFrameAligned;
+	/**
+	 * 低水位マーク, これ以降のエントリーは最大サイズ/最大時間を超えても削除しない
+	 */
+	private long lowWaterMark;
+	/**
+	 * 有効なレコードが無くなったセグメントファイルを保守処理として削除する
+	 */
+	private final TimeShiftReclaimer mReclaimer = new TimeShiftReclaimer(TAG);
+
+	/**
+	 * Opens the cache in {@code directory}.
+	 * セグメントサイズは最大キャッシュサイズの1/8(256KB〜8MB)
+	 * @param directory   a writable directory
+	 * @param maxSize     the maximum number of bytes this cache should use to store
+	 * @param maxDuration the maximum time as mills seconds that this cache will hold
+	 * @throws IOException
+	 */
+	public static TimeShiftSegmentCache open(final File directory,
+		final long maxSize, final long maxDuration) throws IOException {
+
+		final long segmentSize = Math.min(MAX_SEGMENT_SIZE,
+			Math.max(MIN_SEGMENT_SIZE, maxSize / 8));
+		return open(directory, maxSize, maxDuration, (int)segmentSize);
+	}
+
+	/**
+	 * Opens the cache in {@code directory}.
+	 * @param directory   a writable directory
+	 * @param maxSize     the maximum number of bytes this cache should use to store
+	 * @param maxDuration the maximum time as mills seconds that this cache will hold
+	 * @param segmentSize セグメントファイルのサイズ[バイト]
+	 * @throws IOException
+	 */
+	public static TimeShiftSegmentCache open(final File directory,
+		final long maxSize, final long maxDuration,
+		final int segmentSize) throws IOException {
+
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		if (maxDuration <= 0) {
+			throw new IllegalArgumentException("maxDuration <= 0");
+		}
+		if (segmentSize <= RECORD_HEADER_SIZE) {
+			throw new IllegalArgumentException("segmentSize is too small");
+		}
+		return new TimeShiftSegmentCache(directory, maxSize, maxDuration, segmentSize);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param directory
+	 * @param maxSize
+	 * @param maxDurationMs
+	 * @param segmentSize
+	 * @throws IOException
+	 */
+	private TimeShiftSegmentCache(final File directory,
+		final long maxSize, final long maxDurationMs,
+		final int segmentSize) throws IOException {
+
+		if (!directory.isDirectory()) {
+			throw new IOException("specific path is not a directory");
+		}
+		final File dir = new File(directory, UUID.randomUUID().toString());
+		if (!dir.exists()) {
+			if (!dir.mkdirs()) {
+				throw new IOException("failed to create dir/parent dirs");
+			}
+		}
+		this.directory = dir;
+		this.maxSize = maxSize;
+		this.maxDurationUs = maxDurationMs * 1000L;
+		this.segmentSize = segmentSize;
+	}
+
+	@Override
+	public File getDirectory() {
+		return directory;
+	}
+
+	@Override
+	public long maxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public synchronized void setMaxSize(final long maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		this.maxSize = maxSize;
+		if (!closed) {
+			trimRecords();
+		}
+	}
+
+	/**
+	 * 保持しているフレームデータの合計サイズ[バイト]を取得
+	 * (削除待ちのセグメント内のレコードは含まない)
+	 * @return
+	 */
+	@Override
+	public synchronized long size() {
+		return size;
+	}
+
+	@Override
+	public synchronized long newestKey() {
+		return mRecords.size() > 0 ? mRecords.lastKey() : 0;
+	}
+
+	@Override
+	public synchronized long oldestKey() {
+		return mRecords.size() > 0 ? mRecords.firstKey() : 0;
+	}
+
+	@Override
+	public synchronized long nextKey(final long key) {
+		final Long result = mRecords.higherKey(key);
+		return result != null ? result : 0;
+	}
+
+	@Override
+	public synchronized Snapshot get(final long key) throws IOException {
+		checkNotClosed();
+		final Record record = mRecords.get(key);
+		if (record == null) {
+			return null;
+		}
+		// スナップショットを閉じるまではセグメントを閉じない
+		record.segment.readers++;
+		return new Snapshot(record);
+	}
+
+	@Override
+	public synchronized Snapshot getOldest() throws IOException {
+		return get(oldestKey());
+	}
+
+	@Override
+	public synchronized Editor edit(final long key) throws IOException {
+		checkNotClosed();
+		if ((mCurrentEditor != null) || mRecords.containsKey(key)) {
+			// 同時に書き込めるのは1つだけ
+			// 追記のみなので既存エントリーの更新はできない
+			return null;
+		}
+		mCurrentEditor = new Editor(key);
+		return mCurrentEditor;
+	}
+
+	@Override
+	public synchronized boolean remove(final long key) throws IOException {
+		checkNotClosed();
+		final Record record = mRecords.remove(key);
+		if (record == null) {
+			return false;
+		}
+		size -= record.size;
+		record.segment.liveCount--;
+		releaseSegments();
+		return true;
+	}
+
+	@Override
+	public synchronized int removeBefore(final long key) throws IOException {
+		checkNotClosed();
+		int result = 0;
+		for (final Iterator<Record> i = mRecords.values().iterator(); i.hasNext(); ) {
+			final Record record = i.next();
+			if (record.key >= key) {
+				break;
+			}
+			i.remove();
+			size -= record.size;
+			record.segment.liveCount--;
+			result++;
+		}
+		if (result > 0) {
+			result += trimToKeyFrame();
+			releaseSegments();
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized void setKeyFrameAligned(final boolean aligned) {
+		keyFrameAligned = aligned;
+	}
+
+	@Override
+	public synchronized void setLowWaterMark(final long key) {
+		lowWaterMark = key;
+	}
+
+	@Override
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		checkNotClosed();
+		trimRecords();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return; // already closed
+		}
+		closed = true;
+		mRecords.clear();
+		for (final Segment segment: mSegments) {
+			segment.close();
+		}
+		for (final Segment segment: mReleasedSegments) {
+			segment.close();
+			mReclaimer.enqueue(segment.file);
+		}
+		mReleasedSegments.clear();
+		// 削除待ちのセグメントファイルはここで削除する
+		mReclaimer.drain();
+	}
+
+	@Override
+	public void delete() throws IOException {
+		close();
+		synchronized (this) {
+			for (final Segment segment: mSegments) {
+				segment.delete();
+			}
+			mSegments.clear();
+		}
+		// TimeShiftRecServiceが書き出したフォーマット等のファイルも削除しないとディレクトリを削除できない
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (final File file: files) {
+				if (file.isFile() && !file.delete()) {
+					Log.w(TAG, "failed to delete " + file);
+				}
+			}
+		}
+		if (!directory.delete()) {
+			throw new IOException("failed to delete directory:" + directory);
+		}
+	}
+
+	private void checkNotClosed() {
+		if (closed) {
+			throw new IllegalStateException("cache is closed");
+		}
+	}
+
+	/**
+	 * レコードを書き込み中のセグメントへ追記する
+	 * payloadはレコードヘッダーの後ろへ直接書き込み、
+	 * レコードヘッダーは#publishで書き込む
+	 * 書き込み中のセグメントへ収まらなければ新しいセグメントを生成する
+	 * @param editor
+	 * @param payload position〜limitが書き込まれる
+	 * @throws IOException
+	 */
+	private synchronized void append(@NonNull final Editor editor,
+		@NonNull final ByteBuffer payload) throws IOException {
+
+		checkNotClosed();
+		if (mCurrentEditor != editor) {
+			throw new IllegalStateException();
+		}
+		final int payloadSize = payload.remaining();
+		final int recordSize = RECORD_HEADER_SIZE + payloadSize;
+		Segment segment = mSegments.peekLast();
+		if ((segment == null) || (segment.writePosition + recordSize > segment.capacity)) {
+			segment = new Segment(nextSegmentId++, Math.max(segmentSize, recordSize));
+			mSegments.addLast(segment);
+		}
+		long position = segment.writePosition + RECORD_HEADER_SIZE;
+		while (payload.hasRemaining()) {
+			position += segment.channel.write(payload, position);
+		}
+		editor.segment = segment;
+		editor.size = payloadSize;
+	}
+
+	/**
+	 * レコードヘッダーを書き込んで読み込めるようにする
+	 * @param editor
+	 * @throws IOException
+	 */
+	private synchronized void publish(@NonNull final Editor editor) throws IOException {
+		checkNotClosed();
+		if (mCurrentEditor != editor) {
+			throw new IllegalStateException();
+		}
+		mCurrentEditor = null;
+		final Segment segment = editor.segment;
+		if (segment == null) {
+			throw new IllegalStateException("edit didn't set payload");
+		}
+		mHeader.clear();
+		mHeader.putLong(editor.key).putInt(editor.flags).putInt(editor.size);
+		mHeader.flip();
+		final long start = segment.writePosition;
+		long position = start;
+		while (mHeader.hasRemaining()) {
+			position += segment.channel.write(mHeader, position);
+		}
+		segment.writePosition = start + RECORD_HEADER_SIZE + editor.size;
+		segment.liveCount++;
+		mRecords.put(editor.key, new Record(editor.key, segment,
+			start + RECORD_HEADER_SIZE, editor.size, editor.flags));
+		size += editor.size;
+		if (editor.key > newestKey) {
+			newestKey = editor.key;
+		}
+		trimRecords();
+	}
+
+	/**
+	 * 編集を破棄する, 書き込み済みのpayloadは次のレコードで上書きされる
+	 * @param editor
+	 */
+	private synchronized void discard(@NonNull final Editor editor) {
+		if (mCurrentEditor == editor) {
+			mCurrentEditor = null;
+		}
+	}
+
+	/**
+	 * 最大サイズまたは最大時間を超えていれば古いセグメントから順に
+	 * セグメント単位で削除する
+	 */
+	private void trimRecords() {
+		// キーはフレームのpts[マイクロ秒]なので最も新しいレコードのキーを基準にする
+		final long limit = newestKey - maxDurationUs;
+		for (long key = oldestKey();
+			(size > maxSize) || ((key > 0) && (key < limit));
+			key = oldestKey()) {
+
+			if (isRetained(key)) {
+				// 読み込み中のカーソルが必要とするレコードは削除しない
+				break;
+			}
+			final Segment oldest = mSegments.peekFirst();
+			if ((oldest == null) || (oldest == mSegments.peekLast())) {
+				// 書き込み中のセグメントしかないときはレコード単位で削除する
+				final Record record = mRecords.remove(key);
+				if (record == null) {
+					break;
+				}
+				size -= record.size;
+				record.segment.liveCount--;
+			} else {
+				// 最も古いセグメントに含まれるレコードを全て削除する
+				// 低水位マーク以降のレコードが含まれる時はその手前まで削除する
+				boolean retained = false;
+				for (final Iterator<Record> i = mRecords.values().iterator(); i.hasNext(); ) {
+					final Record record = i.next();
+					if (record.segment != oldest) {
+						break;
+					}
+					if (isRetained(record.key)) {
+						retained = true;
+						break;
+					}
+					size -= record.size;
+					oldest.liveCount--;
+					i.remove();
+				}
+				if (!retained) {
+					oldest.liveCount = 0;
+				}
+			}
+			trimToKeyFrame();
+			releaseSegments();
+		}
+		if (DEBUG) Log.v(TAG, "trimRecords:finished, size=" + size);
+	}
+
+	/**
+	 * キーフレーム単位で削除する時は先頭がキーフレームになるまでレコードを削除する
+	 * @return 削除したレコード数
+	 */
+	private int trimToKeyFrame() {
+		int result = 0;
+		if (keyFrameAligned) {
+			for (final Iterator<Record> i = mRecords.values().iterator(); i.hasNext(); ) {
+				final Record record = i.next();
+				if (((record.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0)
+					|| isRetained(record.key)) {
+					break;
+				}
+				i.remove();
+				size -= record.size;
+				record.segment.liveCount--;
+				result++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 低水位マーク以降のエントリーかどうか
+	 * @param key
+	 * @return trueなら最大サイズ/最大時間を超えても削除しない
+	 */
+	private boolean isRetained(final long key) {
+		return (lowWaterMark > 0) && (key >= lowWaterMark);
+	}
+
+	/**
+	 * 有効なレコードを含まない古いセグメントを削除する
+	 * 書き込み中のセグメントは削除しない
+	 * 読み込み中のスナップショットが無ければセグメントはすぐに閉じるが、
+	 * ファイルの削除は削除スレッド上で行う
+	 * 読み込み中のスナップショットがあれば全て閉じるまで閉じない
+	 */
+	private void releaseSegments() {
+		for (Segment segment = mSegments.peekFirst();
+			(segment != null) && (segment.liveCount <= 0)
+				&& (segment != mSegments.peekLast());
+			segment = mSegments.peekFirst()) {
+
+			mSegments.removeFirst();
+			if (segment.readers > 0) {
+				mReleasedSegments.add(segment);
+			} else {
+				segment.close();
+				mReclaimer.enqueue(segment.file);
+			}
+		}
+	}
+
+	/**
+	 * スナップショットを閉じた時にセグメントの読み込み中の数を減らす
+	 * 削除済みのセグメントで読み込み中のスナップショットが無くなれば閉じて削除する
+	 * @param segment
+	 */
+	private synchronized void releaseReader(@NonNull final Segment segment) {
+		if (segment.readers > 0) {
+			segment.readers--;
+		}
+		if ((segment.readers == 0) && mReleasedSegments.remove(segment)) {
+			segment.close();
+			mReclaimer.enqueue(segment.file);
+		}
+	}
+
+	/**
+	 * レコードの内容を読み込む
+	 * @param record
+	 * @param dst
+	 * @throws IOException
+	 */
+	private static void read(@NonNull final Record record,
+		@NonNull final ByteBuffer dst) throws IOException {
+
+		long position = record.position;
+		final long end = position + record.size;
+		final int limit = dst.limit();
+		dst.limit(dst.position() + record.size);
+		try {
+			while (position < end) {
+				final int bytes = record.segment.channel.read(dst, position);
+				if (bytes < 0) {
+					throw new IOException("unexpected end of segment");
+				}
+				position += bytes;
+			}
+		} finally {
+			dst.limit(limit);
+		}
+	}
+
+	/**
+	 * 追記専用のセグメントファイル
+	 */
+	private final class Segment {
+		private final File file;
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private final long capacity;
+		private long writePosition;
+		/**
+		 * セグメント内の有効なレコード数
+		 */
+		private int liveCount;
+		/**
+		 * セグメントを読み込み中のスナップショット数
+		 */
+		private int readers;
+
+		private Segment(final int id, final long capacity) throws IOException {
+			this.file = new File(directory, id + SEGMENT_FILE_EXT);
+			this.capacity = capacity;
+			raf = new RandomAccessFile(file, "rw");
+			// あらかじめファイルサイズを確保しておく
+			raf.setLength(capacity);
+			channel = raf.getChannel();
+		}
+
+		private void close() {
+			try {
+				raf.close();
+			} catch (final IOException e) {
+				if (DEBUG) Log.w(TAG, e);
+			}
+		}
+
+		private void delete() throws IOException {
+			close();
+			if (file.exists() && !file.delete()) {
+				throw new IOException("failed to delete " + file);
+			}
+		}
+	}
+
+	/**
+	 * セグメント内のレコードの位置情報
+	 */
+	private static final class Record {
+		private final long key;
+		private final Segment segment;
+		/**
+		 * セグメント内のpayloadの開始位置
+		 */
+		private final long position;
+		private final int size;
+		private final int flags;
+
+		private Record(final long key, @NonNull final Segment segment,
+			final long position, final int size, final int flags) {
+
+			this.key = key;
+			this.segment = segment;
+			this.position = position;
+			this.size = size;
+			this.flags = flags;
+		}
+	}
+
+	/**
+	 * A snapshot of the record.
+	 */
+	public final class Snapshot implements ITimeShiftCache.Snapshot {
+		private final Record record;
+		private boolean released;
+
+		private Snapshot(@NonNull final Record record) {
+			this.record = record;
+		}
+
+		@Override
+		public long getKey() {
+			return record.key;
+		}
+
+		@Override
+		public int available(final int index) throws IOException {
+			return index == 0 ? record.size : 4;
+		}
+
+		@Override
+		public byte[] getBytes(final int index, final byte[] dst) throws IOException {
+			if (index == 0) {
+				final byte[] result = (dst != null) && (dst.length >= record.size)
+					? dst : new byte[record.size];
+				read(record, ByteBuffer.wrap(result, 0, record.size));
+				return result;
+			} else {
+				final byte[] result = (dst != null) && (dst.length >= 4)
+					? dst : new byte[4];
+				ByteBuffer.wrap(result).putInt(record.flags);
+				return result;
+			}
+		}
+
+		@Override
+		public int getInt(final int index) throws IOException {
+			if (index == 1) {
+				return record.flags;
+			}
+			throw new IOException("unexpected index " + index);
+		}
+
+		@NonNull
+		@Override
+		public ByteBuffer getByteBuffer(final int index,
+			@Nullable final ByteBuffer dst) throws IOException {
+
+			final int size = available(index);
+			final ByteBuffer result = (dst != null) && (dst.capacity() >= size)
+				? dst : ByteBuffer.allocateDirect(size);
+			result.clear();
+			if (index == 0) {
+				read(record, result);
+			} else {
+				result.putInt(record.flags);
+			}
+			result.flip();
+			return result;
+		}
+
+		@Override
+		public void close() {
+			if (!released) {
+				released = true;
+				releaseReader(record.segment);
+			}
+		}
+	}
+
+	/**
+	 * Edits the values for a record.
+	 * payloadは#setで直接セグメントへ書き込み、#commitでレコードヘッダーを書き込む
+	 */
+	public final class Editor implements ITimeShiftCache.Editor {
+		private final long key;
+		private Segment segment;
+		private int size;
+		private int flags;
+
+		private Editor(final long key) {
+			this.key = key;
+		}
+
+		@Override
+		public void set(final int index,
+			final ByteBuffer buffer, final int offset, final int size)
+				throws IOException {
+
+			if (index != 0) {
+				throw new IllegalArgumentException("unexpected index " + index);
+			}
+			final ByteBuffer src = buffer.duplicate();
+			src.clear();
+			src.position(offset);
+			src.limit(offset + size);
+			append(this, src);
+		}
+
+		@Override
+		public void set(final int index, final int value) throws IOException {
+			if (index != 1) {
+				throw new IllegalArgumentException("unexpected index " + index);
+			}
+			flags = value;
+		}
+
+		@Override
+		public void commit() throws IOException {
+			publish(this);
+		}
+
+		@Override
+		public void abort() throws IOException {
+			discard(this);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaFormat;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * タイムシフト録画のキャッシュをサービスの再起動後も引き続き使うためのヘルパークラス
+ * キャッシュディレクトリ名に使うセッションIDをSharedPreferencesへ保存して
+ * プロセスが終了しても同じディレクトリを開き直せるようにする。
+ * またキャッシュしているフレームデータのMediaFormatをキャッシュディレクトリへ保存して
+ * 再起動後のエンコーダーのMediaFormatと一致するかどうかを確認できるようにする
+ */
+final class TimeShiftSession {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = TimeShiftSession.class.getSimpleName();
+
+	private static final String PREF_NAME = "TimeShiftSession";
+	private static final String PREF_KEY_SESSION_ID = "session_id";
+	/**
+	 * MediaFormatを保存するファイル名
+	 */
+	private static final String FORMAT_FILE = "format";
+	/**
+	 * 比較に使うMediaFormatのキー
+	 */
+	private static final String[] INT_KEYS = {
+		MediaFormat.KEY_WIDTH,
+		MediaFormat.KEY_HEIGHT,
+		MediaFormat.KEY_SAMPLE_RATE,
+		MediaFormat.KEY_CHANNEL_COUNT,
+	};
+	private static final String[] CSD_KEYS = {
+		"csd-0", "csd-1", "csd-2",
+	};
+
+	private TimeShiftSession() {
+		// インスタンス化をエラーとするためにデフォルトコンストラクタをprivateに
+	}
+
+	/**
+	 * セッションIDを取得する
+	 * @param context
+	 * @param requested 指定されていればその値をセッションIDとして保存して返す
+	 * @return
+	 */
+	@NonNull
+	static String obtainSessionId(@NonNull final Context context,
+		@Nullable final String requested) {
+
+		final SharedPreferences pref
+			= context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		String result = requested;
+		if (TextUtils.isEmpty(result)) {
+			result = pref.getString(PREF_KEY_SESSION_ID, null);
+		}
+		if (TextUtils.isEmpty(result)) {
+			result = UUID.randomUUID().toString();
+		}
+		if (!result.equals(pref.getString(PREF_KEY_SESSION_ID, null))) {
+			pref.edit().putString(PREF_KEY_SESSION_ID, result).apply();
+		}
+		if (DEBUG) Log.v(TAG, "obtainSessionId:" + result);
+		return result;
+	}
+
+	/**
+	 * 保存しているセッションIDを破棄する
+	 * 次回#obtainSessionIdを呼ぶと新しいセッションIDを生成する
+	 * @param context
+	 */
+	static void clearSessionId(@NonNull final Context context) {
+		if (DEBUG) Log.v(TAG, "clearSessionId:");
+		context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE)
+			.edit().remove(PREF_KEY_SESSION_ID).apply();
+	}
+
+	/**
+	 * 指定したディレクトリ内のセッションディレクトリのうち
+	 * 指定したセッションID以外のものを削除する
+	 * @param dir
+	 * @param sessionId nullなら全てのセッションディレクトリを削除する
+	 */
+	static void deleteOtherSessions(@NonNull final File dir, @Nullable final String sessionId) {
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			for (final File file: files) {
+				if (file.isDirectory() && !file.getName().equals(sessionId)) {
+					if (DEBUG) Log.v(TAG, "deleteOtherSessions:" + file);
+					deleteRecursive(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * キャッシュディレクトリへ保存しているMediaFormatと一致するかどうかを確認して
+	 * 指定したMediaFormatを保存する
+	 * @param dir キャッシュディレクトリ
+	 * @param name トラック名, トラック毎に別のファイルへ保存する
+	 * @param format
+	 * @return 保存しているMediaFormatと一致すればtrue, 保存していなかったか一致しなければfalse
+	 */
+	static boolean updateFormat(@NonNull final File dir,
+		@NonNull final String name, @NonNull final MediaFormat format) {
+
+		final File file = new File(dir, FORMAT_FILE + "-" + name);
+		final byte[] current = toBytes(format);
+		boolean result = false;
+		if (file.exists()) {
+			try {
+				result = Arrays.equals(current, readFully(file));
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+			}
+		}
+		if (!result) {
+			try {
+				final OutputStream out = new FileOutputStream(file);
+				try {
+					out.write(current);
+				} finally {
+					out.close();
+				}
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+			}
+		}
+		if (DEBUG) Log.v(TAG, "updateFormat:same=" + result + "," + format);
+		return result;
+	}
+
+	/**
+	 * MediaFormatのうちフレームデータの互換性に関係する値をバイト配列へ変換する
+	 * @param format
+	 * @return
+	 */
+	@NonNull
+	private static byte[] toBytes(@NonNull final MediaFormat format) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			final String mime = format.getString(MediaFormat.KEY_MIME);
+			out.writeUTF(mime != null ? mime : "");
+			for (final String key: INT_KEYS) {
+				out.writeInt(format.containsKey(key) ? format.getInteger(key) : -1);
+			}
+			for (final String key: CSD_KEYS) {
+				final ByteBuffer csd = format.containsKey(key) ? format.getByteBuffer(key) : null;
+				if (csd != null) {
+					final ByteBuffer buf = csd.duplicate();
+					buf.rewind();
+					final byte[] data = new byte[buf.remaining()];
+					buf.get(data);
+					out.writeInt(data.length);
+					out.write(data);
+				} else {
+					out.writeInt(-1);
+				}
+			}
+			out.flush();
+		} catch (final IOException e) {
+			// ByteArrayOutputStreamへの書き込みなのでここには来ない
+			Log.w(TAG, e);
+		}
+		return bytes.toByteArray();
+	}
+
+	@NonNull
+	private static byte[] readFully(@NonNull final File file) throws IOException {
+		final byte[] result = new byte[(int)file.length()];
+		final InputStream in = new FileInputStream(file);
+		try {
+			int total = 0;
+			while (total < result.length) {
+				final int bytes = in.read(result, total, result.length - total);
+				if (bytes < 0) {
+					break;
+				}
+				total += bytes;
+			}
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+
+	private static void deleteRecursive(@NonNull final File path) {
+		if (path.isDirectory()) {
+			final File[] files = path.listFiles();
+			if (files != null) {
+				for (final File file: files) {
+					deleteRecursive(file);
+				}
+			}
+		}
+		if (!path.delete()) {
+			Log.w(TAG, "failed to delete " + path);
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 直近のフレームデータをダイレクトByteBufferのプールに保持して
+ * メモリー上の保持時間または保持サイズを超えた古いフレームデータだけを
+ * 下位のITimeShiftCache(ストレージ)へ書き出すITimeShiftCache実装
+ * 下位のキャッシュへ書き出したフレームデータは常にメモリー上の
+ * フレームデータよりも古いので、読み込み側からはpts順の1つのキャッシュとして見える
+ */
+final class TimeShiftTieredCache implements ITimeShiftCache {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = TimeShiftTieredCache.class.getSimpleName();
+
+	@NonNull
+	private final ITimeShiftCache mStorage;
+	private final long maxMemorySize;
+	private final long maxMemoryDurationUs;
+	/**
+	 * メモリー上のフレームデータを保持するダイレクトByteBufferのプール
+	 */
+	@NonNull
+	private final TimeShiftMemoryStore mStore;
+	private long newestKey;
+	private boolean closed;
+	/**
+	 * 古いエントリーをキーフレーム単位で削除するかどうか
+	 */
+	private boolean keyFrameAligned;
+	/**
+	 * 低水位マーク, これ以降のエントリーは最大サイズ/最大時間を超えても削除しない
+	 */
+	private long lowWaterMark;
+
+	/**
+	 * コンストラクタ
+	 * @param storage メモリー上に保持できなくなったフレームデータの書き出し先
+	 * @param maxMemorySize メモリー上に保持する最大サイズ[バイト]
+	 * @param maxMemoryDurationMs メモリー上に保持する最大時間[ミリ秒]
+	 */
+	public TimeShiftTieredCache(@NonNull final ITimeShiftCache storage,
+		final long maxMemorySize, final long maxMemoryDurationMs) {
+
+		if (maxMemorySize <= 0) {
+			throw new IllegalArgumentException("maxMemorySize <= 0");
+		}
+		if (maxMemoryDurationMs <= 0) {
+			throw new IllegalArgumentException("maxMemoryDurationMs <= 0");
+		}
+		mStorage = storage;
+		this.maxMemorySize = maxMemorySize;
+		this.maxMemoryDurationUs = maxMemoryDurationMs * 1000L;
+		mStore = new TimeShiftMemoryStore(this, maxMemorySize, true,
+			new TimeShiftMemoryStore.Callback() {
+				@Override
+				public void onCommit(@NonNull final TimeShiftMemoryStore.Entry entry)
+					throws IOException {
+
+					publish(entry);
+				}
+			});
+	}
+
+	@Override
+	public File getDirectory() {
+		return mStorage.getDirectory();
+	}
+
+	@Override
+	public long maxSize() {
+		return mStorage.maxSize();
+	}
+
+	@Override
+	public void setMaxSize(final long maxSize) {
+		mStorage.setMaxSize(maxSize);
+	}
+
+	/**
+	 * メモリー上とストレージ上のフレームデータの合計サイズを返す
+	 * @return
+	 */
+	@Override
+	public synchronized long size() {
+		return mStore.size() + mStorage.size();
+	}
+
+	/**
+	 * メモリー上に保持しているフレームデータのサイズを返す
+	 * @return
+	 */
+	public synchronized long memorySize() {
+		return mStore.size();
+	}
+
+	@Override
+	public synchronized long newestKey() {
+		// メモリー上のエントリーは常にストレージ上のエントリーより新しい
+		return !mStore.isEmpty() ? mStore.lastKey() : mStorage.newestKey();
+	}
+
+	@Override
+	public synchronized long oldestKey() {
+		final long key = mStorage.oldestKey();
+		if (key != 0) {
+			return key;
+		}
+		return mStore.firstKey();
+	}
+
+	@Override
+	public synchronized long nextKey(final long key) {
+		// ストレージ上のエントリーは常にメモリー上のエントリーより古い
+		final long result = mStorage.nextKey(key);
+		if (result != 0) {
+			return result;
+		}
+		return mStore.nextKey(key);
+	}
+
+	@Override
+	public synchronized Snapshot get(final long key) throws IOException {
+		checkNotClosed();
+		final Snapshot snapshot = mStore.get(key);
+		return snapshot != null ? snapshot : mStorage.get(key);
+	}
+
+	@Override
+	public synchronized Snapshot getOldest() throws IOException {
+		return get(oldestKey());
+	}
+
+	@Override
+	public synchronized Editor edit(final long key) throws IOException {
+		checkNotClosed();
+		if (mStore.contains(key)) {
+			return null;
+		}
+		return mStore.edit(key);
+	}
+
+	@Override
+	public synchronized boolean remove(final long key) throws IOException {
+		checkNotClosed();
+		return mStore.remove(key) || mStorage.remove(key);
+	}
+
+	@Override
+	public synchronized int removeBefore(final long key) throws IOException {
+		checkNotClosed();
+		int result = mStorage.removeBefore(key);
+		result += mStore.removeBefore(key);
+		if (result > 0) {
+			result += trimToKeyFrame();
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized void setKeyFrameAligned(final boolean aligned) {
+		keyFrameAligned = aligned;
+		mStorage.setKeyFrameAligned(aligned);
+	}
+
+	@Override
+	public synchronized void setLowWaterMark(final long key) {
+		lowWaterMark = key;
+		mStorage.setLowWaterMark(key);
+	}
+
+	@Override
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		checkNotClosed();
+		mStorage.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return; // already closed
+		}
+		closed = true;
+		mStore.close();
+		mStorage.close();
+	}
+
+	@Override
+	public void delete() throws IOException {
+		close();
+		mStorage.delete();
+	}
+
+	private void checkNotClosed() {
+		if (closed) {
+			throw new IllegalStateException("cache is closed");
+		}
+	}
+
+	private synchronized void publish(@NonNull final TimeShiftMemoryStore.Entry entry)
+		throws IOException {
+
+		checkNotClosed();
+		mStore.put(entry);
+		if (entry.key > newestKey) {
+			newestKey = entry.key;
+		}
+		spill();
+	}
+
+	/**
+	 * メモリー上の保持サイズまたは保持時間を超えた古いフレームデータを
+	 * ストレージへ書き出す
+	 * @throws IOException
+	 */
+	private void spill() throws IOException {
+		final long limit = newestKey - maxMemoryDurationUs;
+		int spilled = 0;
+		for ( ; ; ) {
+			final TimeShiftMemoryStore.Entry entry = mStore.peekFirst();
+			if ((entry == null)
+				|| ((mStore.capacity() <= maxMemorySize) && (entry.key >= limit))) {
+				break;
+			}
+			mStore.pollFirst();
+			try {
+				final Editor editor = mStorage.edit(entry.key);
+				if (editor != null) {
+					editor.set(0, entry.buffer, 0, entry.size);
+					editor.set(1, entry.flags);
+					try {
+						editor.commit();
+					} catch (final FrameDroppedException e) {
+						Log.w(TAG, "spill:storage dropped frame " + entry.key);
+					}
+				} else {
+					Log.w(TAG, "spill:failed to edit storage, drop frame " + entry.key);
+				}
+			} finally {
+				mStore.release(entry);
+			}
+			spilled++;
+		}
+		if (spilled > 0) {
+			trimToKeyFrame();
+		}
+		if (DEBUG) Log.v(TAG, "spill:finished, memorySize=" + mStore.size()
+			+ ",storage=" + mStorage.size());
+	}
+
+	/**
+	 * キーフレーム単位で削除する時にストレージ上のエントリーが全て削除されていれば
+	 * メモリー上の先頭がキーフレームになるまで削除する
+	 * (ストレージ上のキーフレーム単位での削除はストレージ側で行う)
+	 * @return 削除したエントリー数
+	 */
+	private int trimToKeyFrame() {
+		if (keyFrameAligned && (mStorage.oldestKey() == 0)) {
+			return mStore.trimToKeyFrame(lowWaterMark);
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,821 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 映像と音声等の複数のトラックのフレームデータを1つのITimeShiftCacheへ
+ * 書き込み順に混在させて保持するためのクラス
+ * トラックIDは値のインデックス1(BufferInfo#flags)の上位ビットへ埋め込むので
+ * ジャーナル・最大サイズ・古いエントリーの削除は全トラックで共有する。
+ * キャッシュのキーは全トラック共通で単調増加でないといけないので、
+ * 他のトラックのフレームより前のptsのフレームはキーをずらして書き込み、
+ * キーと実際のptsとの差を値のインデックス1の上位ビットへ埋め込む。
+ * 読み込み時は各トラックのptsを書き込み時のまま取得できる。
+ * 同期トラック(通常は映像)を指定すると同期トラックのキーフレームだけを
+ * キーフレームとして扱うので、古いエントリーを削除した後の先頭は常に
+ * 同期トラックのキーフレームになり映像と音声の開始位置が揃う。
+ * また同期トラックのキーフレームのキーだけを疎なインデックスとして保持して
+ * 指定した時刻を含むGOPの先頭をO(log n)で探せるようにする。
+ * フレームデータを削除せずに読み込むためのカーソルを複数同時に開くことができる。
+ * 開いているカーソルのうち最も遅れている読み込み位置をITimeShiftCacheの
+ * 低水位マークとして設定するので、カーソルがまだ読み込んでいないフレームデータは
+ * 最大サイズ/最大時間を超えても削除されない
+ */
+final class TimeShiftTrackCache implements Closeable {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = TimeShiftTrackCache.class.getSimpleName();
+
+	/**
+	 * 映像トラックのトラックID
+	 */
+	static final int TRACK_VIDEO = 0;
+	/**
+	 * 音声トラックのトラックID
+	 */
+	static final int TRACK_AUDIO = 1;
+	/**
+	 * トラックIDの最大値
+	 */
+	static final int MAX_TRACK_ID = 0x07;
+	/**
+	 * キーと実際のptsとの差の最大値[マイクロ秒](約1秒)
+	 * 他のトラックよりこれ以上遅れたptsのフレームは書き込めない
+	 */
+	static final long MAX_PTS_OFFSET_US = 0x000fffff;
+
+	/**
+	 * BufferInfo#flagsとして保持するビット
+	 */
+	private static final int FLAGS_MASK = 0x000000ff;
+	/**
+	 * 同期トラック以外のキーフレームを示すフラグ
+	 * BUFFER_FLAG_KEY_FRAMEの代わりに保持する
+	 */
+	private static final int FLAG_TRACK_KEY_FRAME = 0x00000100;
+	/**
+	 * トラックIDを埋め込むビット位置
+	 */
+	private static final int TRACK_SHIFT = 9;
+	/**
+	 * キーと実際のptsとの差を埋め込むビット位置
+	 */
+	private static final int PTS_OFFSET_SHIFT = 12;
+	/**
+	 * キーフレームインデックスの初期容量
+	 */
+	private static final int INITIAL_KEY_FRAME_CAPACITY = 64;
+	/**
+	 * 遅れているカーソルがあってもキャッシュの最大サイズのこの倍数までしか保持しない
+	 * 超えた時は遅れているカーソルの読み込み位置を保持しなくなる
+	 */
+	private static final int HARD_LIMIT_FACTOR = 2;
+
+	/**
+	 * カーソルの状態を通知するためのコールバックインターフェース
+	 */
+	public interface Callback {
+		/**
+		 * カーソルが保持期間より遅れた時の処理
+		 * @param cursor
+		 * @param released trueならキャッシュの上限を超えたのでカーソルの読み込み位置を保持しなくなった
+		 */
+		public void onLagging(@NonNull final Cursor cursor, final boolean released);
+	}
+
+	/**
+	 * TimeShiftTrackCacheから読み込んだフレームデータ
+	 */
+	static final class Snapshot implements Closeable {
+		@NonNull
+		private final ITimeShiftCache.Snapshot mSnapshot;
+		private final int mTrack;
+		private final int mFlags;
+		private final long mPtsUs;
+
+		private Snapshot(@NonNull final ITimeShiftCache.Snapshot snapshot) throws IOException {
+			mSnapshot = snapshot;
+			final int value = snapshot.getInt(1);
+			mTrack = trackOf(value);
+			mFlags = flagsOf(value);
+			mPtsUs = snapshot.getKey() - ptsOffsetOf(value);
+		}
+
+		/**
+		 * キャッシュ上のキーを取得
+		 * 全トラック共通で書き込み順に単調増加する。
+		 * 他のトラックより前のptsのフレームはptsより大きな値になるので
+		 * muxerへ渡すptsには#getPtsUsを使うこと
+		 * @return
+		 */
+		long getKey() {
+			return mSnapshot.getKey();
+		}
+
+		/**
+		 * 書き込み時のpresentationTimeUsを取得
+		 * @return
+		 */
+		long getPtsUs() {
+			return mPtsUs;
+		}
+
+		/**
+		 * トラックIDを取得
+		 * @return
+		 */
+		int getTrack() {
+			return mTrack;
+		}
+
+		/**
+		 * 書き込み時のBufferInfo#flagsを取得
+		 * @return
+		 */
+		int getFlags() {
+			return mFlags;
+		}
+
+		/**
+		 * フレームデータのサイズ[バイト]を取得
+		 * @return
+		 * @throws IOException
+		 */
+		int available() throws IOException {
+			return mSnapshot.available(0);
+		}
+
+		/**
+		 * フレームデータをByteBufferとして取得
+		 * @param dst
+		 * @return
+		 * @throws IOException
+		 * @see ITimeShiftCache.Snapshot#getByteBuffer
+		 */
+		@NonNull
+		ByteBuffer getByteBuffer(@Nullable final ByteBuffer dst) throws IOException {
+			return mSnapshot.getByteBuffer(0, dst);
+		}
+
+		@Override
+		public void close() {
+			mSnapshot.close();
+		}
+	}
+
+	/**
+	 * フレームデータを削除せずにpts順に読み込むためのカーソル
+	 * #nextで読み込んだフレームデータより新しいフレームデータは
+	 * カーソルを閉じるまで最大サイズ/最大時間を超えても削除されない
+	 */
+	final class Cursor implements Closeable {
+		@NonNull
+		private final String mName;
+		/**
+		 * 最後に読み込んだフレームデータのキー, 次はこれより新しいフレームデータを読み込む
+		 * 読み込み側のスレッドだけが更新する
+		 */
+		private volatile long mPosition;
+		/**
+		 * 保持期間より遅れているかどうか
+		 */
+		private boolean mLagging;
+		/**
+		 * 読み込み位置を低水位マークとして保持しているかどうか
+		 */
+		private boolean mRetained = true;
+		private volatile boolean mClosed;
+
+		private Cursor(@NonNull final String name, final long position) {
+			mName = name;
+			mPosition = position;
+		}
+
+		/**
+		 * カーソルの名前を取得
+		 * @return
+		 */
+		@NonNull
+		String getName() {
+			return mName;
+		}
+
+		/**
+		 * 最後に読み込んだフレームデータのキーを取得
+		 * @return まだ読み込んでいなければ開始位置の直前のキー
+		 */
+		long position() {
+			return mPosition;
+		}
+
+		/**
+		 * 保持期間より遅れているかどうかを取得
+		 * @return
+		 */
+		boolean isLagging() {
+			synchronized (TimeShiftTrackCache.this) {
+				return mLagging;
+			}
+		}
+
+		/**
+		 * まだ読み込んでいないフレームデータがあるかどうか
+		 * 書き込み側が公開した最後のキーと比較するだけなのでロックしない
+		 * 前回のセッションから引き継いだフレームデータはキャッシュへ問い合わせる
+		 * @return
+		 */
+		boolean hasNext() {
+			if (mClosed) {
+				return false;
+			}
+			final long position = mPosition;
+			return (position < mLastKey) || (mCache.nextKey(position) != 0);
+		}
+
+		/**
+		 * まだ読み込んでいないフレームデータが書き込まれるまで待機する
+		 * キャッシュへ書き込まれた時またはキャッシュを閉じた時に起こされる
+		 * @param timeoutMs 最大待機時間[ミリ秒]
+		 * @return まだ読み込んでいないフレームデータがあればtrue
+		 * @throws InterruptedException
+		 */
+		boolean await(final long timeoutMs) throws InterruptedException {
+			synchronized (TimeShiftTrackCache.this) {
+				if (!hasNext() && !mClosed && !isClosed()) {
+					TimeShiftTrackCache.this.wait(timeoutMs);
+				}
+				return hasNext();
+			}
+		}
+
+		/**
+		 * 次のフレームデータを取得して読み込み位置を進める
+		 * @return まだ書き込まれていなければnull
+		 * @throws IOException
+		 */
+		@Nullable
+		Snapshot next() throws IOException {
+			if (mClosed) {
+				throw new IllegalStateException("cursor is already closed");
+			}
+			// 読み込み位置より後ろは低水位マークで保持されているので
+			// フレームデータの読み込み中は書き込み側と排他制御しない
+			final Snapshot result = getNext(mPosition);
+			if (result != null) {
+				synchronized (TimeShiftTrackCache.this) {
+					mPosition = result.getKey();
+					updateLowWaterMark();
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * 指定した時刻を含むGOPの先頭へ読み込み位置を移動する
+		 * 指定した時刻がキャッシュ内の最も古いキーフレームより前なら
+		 * 最も古いキーフレームへ移動する
+		 * @param ptsUs
+		 * @return 移動後に次に読み込むフレームデータのキー, キーフレームが無ければ移動せずに0を返す
+		 */
+		long seekTo(final long ptsUs) {
+			synchronized (TimeShiftTrackCache.this) {
+				long key = floorKeyframe(ptsUs);
+				if ((key == 0) && (mKeyFrameCount > 0)) {
+					key = mKeyFrames[mKeyFrameHead];
+				}
+				if (key > 0) {
+					mPosition = key - 1;
+					updateLowWaterMark();
+				}
+				if (DEBUG) Log.v(TAG, "Cursor#seekTo:" + mName + ",ptsUs=" + ptsUs + ",key=" + key);
+				return key;
+			}
+		}
+
+		@Override
+		public void close() {
+			synchronized (TimeShiftTrackCache.this) {
+				if (!mClosed) {
+					mClosed = true;
+					mCursors.remove(this);
+					updateLowWaterMark();
+				}
+			}
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "Cursor{" + mName + ",position=" + mPosition + ",lagging=" + mLagging + "}";
+		}
+	}
+
+	@NonNull
+	private final ITimeShiftCache mCache;
+	private final long maxDurationUs;
+	@Nullable
+	private final Callback mCallback;
+	/**
+	 * 開いているカーソル
+	 */
+	@NonNull
+	private final List<Cursor> mCursors = new ArrayList<>();
+	/**
+	 * 書き込み同士の排他制御用, 読み込み側はロックしない
+	 */
+	@NonNull
+	private final Object mWriteSync = new Object();
+	/**
+	 * 同期トラックのトラックID, 負なら同期トラック無し
+	 * #setSyncTrackはthisをロックして書き込み, #writeはmWriteSyncをロックして読み込むのでvolatile
+	 */
+	private volatile int mSyncTrack = -1;
+	/**
+	 * 最後に書き込んだキー
+	 * キャッシュへのコミットが完了してから更新するので読み込み側はロックせずに
+	 * これより前のフレームデータは読み込めることを確認できる
+	 */
+	private volatile long mLastKey;
+	/**
+	 * トラック毎に最後に書き込んだpts, mWriteSyncをロックしてアクセスする
+	 */
+	private final long[] mLastPtsUs = new long[MAX_TRACK_ID + 1];
+	/**
+	 * キーフレームのキーを古い順に保持するリングバッファ
+	 * キャッシュから削除されたキーは#pruneKeyFramesで取り除く
+	 */
+	private long[] mKeyFrames = new long[INITIAL_KEY_FRAME_CAPACITY];
+	private int mKeyFrameHead;
+	private int mKeyFrameCount;
+
+	/**
+	 * コンストラクタ
+	 * @param cache 全トラックのフレームデータを保持するITimeShiftCache
+	 * @param maxDurationMs 保持期間[ミリ秒], カーソルがこれより遅れるとCallback#onLaggingを呼ぶ
+	 * @param callback
+	 */
+	TimeShiftTrackCache(@NonNull final ITimeShiftCache cache,
+		final long maxDurationMs, @Nullable final Callback callback) {
+
+		mCache = cache;
+		maxDurationUs = maxDurationMs * 1000L;
+		mCallback = callback;
+	}
+
+	/**
+	 * 同期トラックを設定する
+	 * 同期トラックを設定すると古いエントリーを同期トラックのキーフレーム単位で削除する
+	 * 同期トラックを設定する前に書き込んだ同期トラック以外のキーフレームは
+	 * 同期トラックのキーフレームとして扱うので書き込み前に設定すること
+	 * @param track 負なら同期トラック無し
+	 */
+	synchronized void setSyncTrack(final int track) {
+		if (track > MAX_TRACK_ID) {
+			throw new IllegalArgumentException("invalid track id:" + track);
+		}
+		mSyncTrack = track;
+		mCache.setKeyFrameAligned(track >= 0);
+	}
+
+	/**
+	 * フレームデータを書き込む
+	 * 同時に書き込めるエントリーが1つだけの実装もあるので
+	 * 複数のスレッドから書き込むときは書き込み同士だけmWriteSyncで排他制御する。
+	 * キャッシュへの書き込み中はこのインスタンスをロックしないので
+	 * カーソルからの読み込みをブロックしない。
+	 * キーは全トラック共通で単調増加でないといけないので、直前に書き込んだキー以下の
+	 * ptsUsを指定したときは直前のキー+1をキーとして書き込み、実際のptsとの差を一緒に保持する。
+	 * 同じトラックのptsが直前に書き込んだpts以下の時はそのトラックのptsだけを1マイクロ秒後へずらす
+	 * @param track トラックID
+	 * @param buffer
+	 * @param offset
+	 * @param size
+	 * @param flags BufferInfo#flags
+	 * @param ptsUs
+	 * @return 書き込めればtrue, 他のトラックよりMAX_PTS_OFFSET_US以上遅れたptsの時も書き込まずにfalse
+	 * @throws IOException
+	 */
+	boolean write(final int track,
+		@NonNull final ByteBuffer buffer, final int offset, final int size,
+		final int flags, final long ptsUs) throws IOException {
+
+		if ((track < 0) || (track > MAX_TRACK_ID)) {
+			throw new IllegalArgumentException("invalid track id:" + track);
+		}
+		synchronized (mWriteSync) {
+			// フラグの変換とキーフレームインデックスへの追加で同じ同期トラックを使う
+			final int syncTrack = mSyncTrack;
+			final long lastPtsUs = mLastPtsUs[track];
+			final long pts = ptsUs > lastPtsUs ? ptsUs : lastPtsUs + 1;
+			final long key = pts > mLastKey ? pts : mLastKey + 1;
+			if (key - pts > MAX_PTS_OFFSET_US) {
+				Log.w(TAG, "write:pts is too far behind other tracks, track=" + track
+					+ ",ptsUs=" + ptsUs + ",lastKey=" + mLastKey);
+				return false;
+			}
+			final ITimeShiftCache.Editor editor = mCache.edit(key);
+			if (editor == null) {
+				Log.w(TAG, "write:failed to edit cache, track=" + track + ",ptsUs=" + ptsUs);
+				return false;
+			}
+			try {
+				editor.set(0, buffer, offset, size);
+				editor.set(1, encodeFlags(track, flags, syncTrack, key - pts));
+				editor.commit();
+			} catch (final ITimeShiftCache.FrameDroppedException e) {
+				// 保持できなかったフレームはキーフレームインデックスへ追加せず公開もしない
+				editor.abort();
+				Log.w(TAG, "write:frame dropped, track=" + track + ",ptsUs=" + ptsUs + "," + e.getMessage());
+				return false;
+			} catch (final IOException e) {
+				editor.abort();
+				throw e;
+			}
+			mLastPtsUs[track] = pts;
+			publish(key, track, flags, syncTrack);
+		}
+		return true;
+	}
+
+	/**
+	 * キャッシュへコミットしたキーを読み込み側へ公開する
+	 * @param key
+	 * @param track
+	 * @param flags
+	 * @param syncTrack 書き込み時の同期トラックのトラックID
+	 */
+	private synchronized void publish(final long key,
+		final int track, final int flags, final int syncTrack) {
+
+		if (((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0)
+			&& ((syncTrack < 0) || (track == syncTrack))) {
+
+			addKeyFrame(key);
+		}
+		mLastKey = key;
+		if (!mCursors.isEmpty()) {
+			checkLagging();
+			// Cursor#awaitで待機しているスレッドを起こす
+			notifyAll();
+		}
+	}
+
+	/**
+	 * カーソルを開く
+	 * @param name カーソルの名前, 遅れている時の通知等で使う
+	 * @return 最も古いフレームデータから読み込むカーソル
+	 */
+	@NonNull
+	synchronized Cursor openCursor(@NonNull final String name) {
+		final Cursor cursor = new Cursor(name, 0);
+		mCursors.add(cursor);
+		updateLowWaterMark();
+		return cursor;
+	}
+
+	/**
+	 * 指定した時刻以前で最も新しいキーフレームのキーを取得する
+	 * キーフレームインデックスを二分探索するのでO(log n)
+	 * 前回のセッションから引き継いだフレームデータはインデックスに含まれない
+	 * @param ptsUs
+	 * @return 該当するキーフレームが無ければ0
+	 */
+	synchronized long floorKeyframe(final long ptsUs) {
+		pruneKeyFrames();
+		int lo = 0;
+		int hi = mKeyFrameCount - 1;
+		long result = 0;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			final long key = mKeyFrames[physicalKeyFrame(mid)];
+			if (key <= ptsUs) {
+				result = key;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 最も古いフレームデータを取得
+	 * キーは全トラック共通なのでトラックを跨いでpts順に読み込むことができる
+	 * @return フレームデータが無ければnull
+	 * @throws IOException
+	 */
+	@Nullable
+	Snapshot getOldest() throws IOException {
+		final ITimeShiftCache.Snapshot snapshot = mCache.getOldest();
+		return snapshot != null ? new Snapshot(snapshot) : null;
+	}
+
+	/**
+	 * 指定したキーのフレームデータを取得
+	 * @param key
+	 * @return フレームデータが無ければnull
+	 * @throws IOException
+	 */
+	@Nullable
+	Snapshot get(final long key) throws IOException {
+		final ITimeShiftCache.Snapshot snapshot = mCache.get(key);
+		return snapshot != null ? new Snapshot(snapshot) : null;
+	}
+
+	/**
+	 * 指定したキーより新しいフレームデータのうち最も古いフレームデータを取得
+	 * フレームデータを削除せずにトラックを跨いでpts順に読み込むときに使う
+	 * @param key
+	 * @return フレームデータが無ければnull
+	 * @throws IOException
+	 */
+	@Nullable
+	Snapshot getNext(final long key) throws IOException {
+		long k = key;
+		for ( ; ; ) {
+			k = mCache.nextKey(k);
+			if (k == 0) {
+				return null;
+			}
+			final ITimeShiftCache.Snapshot snapshot = mCache.get(k);
+			if (snapshot != null) {
+				return new Snapshot(snapshot);
+			}
+			// nextKeyとgetの間に削除された時は次のフレームデータを探す
+		}
+	}
+
+	/**
+	 * 指定したキーのフレームデータを削除する
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	boolean remove(final long key) throws IOException {
+		return mCache.remove(key);
+	}
+
+	/**
+	 * 指定したキーより古いフレームデータを全トラック分削除する
+	 * @param key
+	 * @return 削除したエントリー数
+	 * @throws IOException
+	 * @see ITimeShiftCache#removeBefore
+	 */
+	int removeBefore(final long key) throws IOException {
+		return mCache.removeBefore(key);
+	}
+
+	/**
+	 * 最も古いエントリーのキーを取得
+	 * @return エントリーが無ければ0
+	 */
+	long oldestKey() {
+		return mCache.oldestKey();
+	}
+
+	/**
+	 * 全トラックで使用しているサイズ[バイト]を取得
+	 * @return
+	 */
+	long size() {
+		return mCache.size();
+	}
+
+	/**
+	 * 全トラックで使用する最大サイズ[バイト]を取得
+	 * @return
+	 */
+	long maxSize() {
+		return mCache.maxSize();
+	}
+
+	/**
+	 * 全トラックで使用する最大サイズ[バイト]を変更する
+	 * @param maxSize
+	 * @see ITimeShiftCache#setMaxSize
+	 */
+	void setMaxSize(final long maxSize) {
+		mCache.setMaxSize(maxSize);
+	}
+
+	File getDirectory() {
+		return mCache.getDirectory();
+	}
+
+	boolean isClosed() {
+		return mCache.isClosed();
+	}
+
+	void flush() throws IOException {
+		mCache.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		mCache.close();
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * 閉じてストレージ上のキャッシュを削除する
+	 * @throws IOException
+	 */
+	void delete() throws IOException {
+		if (DEBUG) Log.v(TAG, "delete:");
+		mCache.delete();
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * 開いているカーソルの数を取得
+	 * @return
+	 */
+	synchronized int cursorCount() {
+		return mCursors.size();
+	}
+
+	/**
+	 * 開いているカーソルのうち最も遅れている読み込み位置の次のキーを
+	 * 低水位マークとしてキャッシュへ設定する, 同期して呼ぶこと
+	 */
+	private void updateLowWaterMark() {
+		long mark = 0;
+		for (final Cursor cursor: mCursors) {
+			if (cursor.mRetained && ((mark == 0) || (cursor.mPosition + 1 < mark))) {
+				mark = cursor.mPosition + 1;
+			}
+		}
+		mCache.setLowWaterMark(mark);
+	}
+
+	/**
+	 * 保持期間より遅れているカーソルを確認して通知する, 同期して呼ぶこと
+	 * キャッシュが最大サイズのHARD_LIMIT_FACTOR倍を超えた時は
+	 * 遅れているカーソルの読み込み位置を保持しなくなる
+	 */
+	private void checkLagging() {
+		final long limit = mLastKey - maxDurationUs;
+		final boolean overflow = mCache.size() > mCache.maxSize() * HARD_LIMIT_FACTOR;
+		boolean changed = false;
+		for (final Cursor cursor: mCursors) {
+			final boolean lagging = cursor.mPosition + 1 < limit;
+			if (lagging != cursor.mLagging) {
+				cursor.mLagging = lagging;
+				if (lagging) {
+					if (mCallback != null) {
+						mCallback.onLagging(cursor, false);
+					} else {
+						Log.w(TAG, "checkLagging:cursor is lagging behind the retention window," + cursor);
+					}
+				} else if (!cursor.mRetained) {
+					// 追いついたので再び読み込み位置を保持する
+					cursor.mRetained = true;
+					changed = true;
+				}
+			}
+			if (lagging && overflow && cursor.mRetained) {
+				cursor.mRetained = false;
+				changed = true;
+				if (mCallback != null) {
+					mCallback.onLagging(cursor, true);
+				} else {
+					Log.w(TAG, "checkLagging:cache overflow, release " + cursor);
+				}
+			}
+		}
+		if (changed) {
+			updateLowWaterMark();
+		}
+	}
+
+	/**
+	 * キーフレームインデックスの末尾へキーを追加する, 同期して呼ぶこと
+	 * @param key
+	 */
+	private void addKeyFrame(final long key) {
+		if (mKeyFrameCount == mKeyFrames.length) {
+			pruneKeyFrames();
+		}
+		if (mKeyFrameCount == mKeyFrames.length) {
+			final long[] keyFrames = new long[mKeyFrames.length * 2];
+			for (int i = 0; i < mKeyFrameCount; i++) {
+				keyFrames[i] = mKeyFrames[physicalKeyFrame(i)];
+			}
+			mKeyFrames = keyFrames;
+			mKeyFrameHead = 0;
+		}
+		mKeyFrames[physicalKeyFrame(mKeyFrameCount)] = key;
+		mKeyFrameCount++;
+	}
+
+	/**
+	 * キャッシュから削除済みのキーフレームをインデックスの先頭から取り除く, 同期して呼ぶこと
+	 * キャッシュは古い順にしか削除しないので最も古いエントリーのキーと比較するだけでよい
+	 */
+	private void pruneKeyFrames() {
+		final long oldest = mCache.oldestKey();
+		while ((mKeyFrameCount > 0)
+			&& ((oldest == 0) || (mKeyFrames[mKeyFrameHead] < oldest))) {
+
+			mKeyFrameHead = physicalKeyFrame(1);
+			mKeyFrameCount--;
+		}
+		if (mKeyFrameCount == 0) {
+			mKeyFrameHead = 0;
+		}
+	}
+
+	/**
+	 * キーフレームインデックスの論理インデックス(0が最も古い)を配列上の位置へ変換
+	 * @param i
+	 * @return
+	 */
+	private int physicalKeyFrame(final int i) {
+		final int ix = mKeyFrameHead + i;
+		return ix < mKeyFrames.length ? ix : ix - mKeyFrames.length;
+	}
+
+	/**
+	 * トラックIDとBufferInfo#flagsとキーと実際のptsとの差を1つのint値にする
+	 * 同期トラック以外のキーフレームはBUFFER_FLAG_KEY_FRAMEの代わりに
+	 * FLAG_TRACK_KEY_FRAMEを立ててキャッシュからはキーフレームに見えないようにする
+	 * @param track
+	 * @param flags
+	 * @param syncTrack 同期トラックのトラックID, 負なら同期トラック無し
+	 * @param ptsOffsetUs キーと実際のptsとの差, 0〜MAX_PTS_OFFSET_US
+	 * @return
+	 */
+	private static int encodeFlags(final int track, final int flags,
+		final int syncTrack, final long ptsOffsetUs) {
+
+		int result = (flags & FLAGS_MASK) | (track << TRACK_SHIFT)
+			| ((int)ptsOffsetUs << PTS_OFFSET_SHIFT);
+		if ((syncTrack >= 0) && (track != syncTrack)
+			&& ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0)) {
+
+			result = (result & ~MediaCodec.BUFFER_FLAG_KEY_FRAME) | FLAG_TRACK_KEY_FRAME;
+		}
+		return result;
+	}
+
+	/**
+	 * キャッシュへ書き込んだint値からトラックIDを取り出す
+	 * @param value
+	 * @return
+	 */
+	private static int trackOf(final int value) {
+		return (value >>> TRACK_SHIFT) & MAX_TRACK_ID;
+	}
+
+	/**
+	 * キャッシュへ書き込んだint値から書き込み時のBufferInfo#flagsを取り出す
+	 * @param value
+	 * @return
+	 */
+	private static int flagsOf(final int value) {
+		int result = value & FLAGS_MASK;
+		if ((value & FLAG_TRACK_KEY_FRAME) != 0) {
+			result |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+		}
+		return result;
+	}
+
+	/**
+	 * キャッシュへ書き込んだint値からキーと実際のptsとの差を取り出す
+	 * @param value
+	 * @return
+	 */
+	private static long ptsOffsetOf(final int value) {
+		return (value >>> PTS_OFFSET_SHIFT) & MAX_PTS_OFFSET_US;
+	}
+}
@@ -0,0 +1,401 @@
+package com.serenegiant.service;
+/*
+ * Copyright (c) 2016-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * エンコード済みのフレームデータを専用スレッドで非同期にTimeShiftTrackCacheへ書き込むためのクラス
+ * MediaReaperのスレッドではプールしたバッファへコピーしてキューへ追加するだけなので
+ * ストレージへの書き込みが一時的に遅くなってもエンコーダーからの取り出しを待たせない。
+ * キューが一杯になったときの動作はOVERFLOW_XXXで指定する
+ */
+final class TimeShiftWriter {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = TimeShiftWriter.class.getSimpleName();
+
+	/**
+	 * キューが一杯の時は空きができるまで待つ
+	 */
+	static final int OVERFLOW_BLOCK = 0;
+	/**
+	 * キューが一杯の時はキュー内の最も古いキーフレーム以外のフレームを破棄する
+	 * キーフレーム以外のフレームが無ければ追加しようとしたフレームを破棄する
+	 */
+	static final int OVERFLOW_DROP_OLDEST_NON_KEY_FRAME = 1;
+	/**
+	 * キューが一杯の時はIOExceptionを投げる
+	 */
+	static final int OVERFLOW_FAIL = 2;
+
+	/**
+	 * プールするバッファの確保単位
+	 */
+	private static final int BUFFER_UNIT = 4096;
+	/**
+	 * #releaseで書き込みスレッドの終了を待つ最大時間[ミリ秒]
+	 */
+	private static final long RELEASE_TIMEOUT_MS = 2000;
+
+	/**
+	 * 書き込みスレッドでのエラーを通知するためのコールバックインターフェース
+	 */
+	public interface Callback {
+		public void onError(@NonNull final Throwable t);
+	}
+
+	/**
+	 * キューに入れるフレームデータ
+	 */
+	private static final class Frame {
+		private TimeShiftTrackCache cache;
+		private int track;
+		private ByteBuffer buffer;
+		private int size;
+		private int flags;
+		private long ptsUs;
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@Nullable
+	private final Callback mCallback;
+	private final int mMaxQueueSize;
+	private final int mOverflowPolicy;
+	@NonNull
+	private final ArrayDeque<Frame> mQueue = new ArrayDeque<>();
+	@NonNull
+	private final ArrayDeque<Frame> mPool = new ArrayDeque<>();
+	@NonNull
+	private final Thread mWriterThread;
+	private volatile boolean mIsRunning = true;
+	/**
+	 * 書き込みスレッドが処理中のフレーム
+	 */
+	private Frame mWriting;
+	private int mMaxQueueDepth;
+	private long mQueuedFrames;
+	private long mWrittenFrames;
+	private long mDroppedFrames;
+	private long mErrorFrames;
+
+	/**
+	 * コンストラクタ
+	 * @param maxQueueSize キューに保持する最大フレーム数
+	 * @param overflowPolicy OVERFLOW_BLOCK, OVERFLOW_DROP_OLDEST_NON_KEY_FRAME, OVERFLOW_FAIL
+	 * @param callback
+	 */
+	TimeShiftWriter(final int maxQueueSize, final int overflowPolicy,
+		@Nullable final Callback callback) {
+
+		if (maxQueueSize <= 0) {
+			throw new IllegalArgumentException("maxQueueSize should be greater than zero");
+		}
+		switch (overflowPolicy) {
+		case OVERFLOW_BLOCK:
+		case OVERFLOW_DROP_OLDEST_NON_KEY_FRAME:
+		case OVERFLOW_FAIL:
+			break;
+		default:
+			throw new IllegalArgumentException("unknown overflow policy:" + overflowPolicy);
+		}
+		mMaxQueueSize = maxQueueSize;
+		mOverflowPolicy = overflowPolicy;
+		mCallback = callback;
+		mWriterThread = TimeShiftIOScheduler.getInstance().startThread(
+			TimeShiftIOScheduler.PRIORITY_LIVE_WRITE, TAG, mWriterTask);
+	}
+
+	/**
+	 * 書き込みスレッドを終了する
+	 * キューに残っているフレームは書き込まずに破棄する
+	 * キャッシュへ書き込み中のフレームがあれば書き込みが終わるまで(最大RELEASE_TIMEOUT_MS)待つので
+	 * キャッシュを閉じる前に呼ぶこと
+	 */
+	void release() {
+		if (DEBUG) Log.v(TAG, "release:");
+		synchronized (mSync) {
+			mIsRunning = false;
+			mQueue.clear();
+			mPool.clear();
+			mSync.notifyAll();
+		}
+		if (Thread.currentThread() != mWriterThread) {
+			try {
+				mWriterThread.join(RELEASE_TIMEOUT_MS);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (mWriterThread.isAlive()) {
+				Log.w(TAG, "release:writer thread is still running");
+			}
+		}
+	}
+
+	/**
+	 * フレームデータをキューへ追加する
+	 * @param cache 書き込み先
+	 * @param track トラックID
+	 * @param buffer
+	 * @param info
+	 * @param ptsUs キャッシュのキー
+	 * @return キューへ追加したときはtrue, 追加しようとしたフレームを破棄したときはfalse
+	 * @throws IOException OVERFLOW_FAILでキューが一杯の時または終了している時
+	 */
+	boolean write(@NonNull final TimeShiftTrackCache cache, final int track,
+		@NonNull final ByteBuffer buffer,
+		@NonNull final MediaCodec.BufferInfo info, final long ptsUs)
+			throws IOException {
+
+		synchronized (mSync) {
+			if (!mIsRunning) {
+				throw new IOException("already released");
+			}
+			if (mQueue.size() >= mMaxQueueSize) {
+				switch (mOverflowPolicy) {
+				case OVERFLOW_DROP_OLDEST_NON_KEY_FRAME:
+					if (!dropOldestNonKeyFrame()) {
+						mDroppedFrames++;
+						return false;
+					}
+					break;
+				case OVERFLOW_FAIL:
+					mDroppedFrames++;
+					throw new IOException("writer queue overflow, ptsUs=" + ptsUs);
+				case OVERFLOW_BLOCK:
+				default:
+					while (mIsRunning && (mQueue.size() >= mMaxQueueSize)) {
+						try {
+							mSync.wait();
+						} catch (final InterruptedException e) {
+							throw new IOException("interrupted");
+						}
+					}
+					if (!mIsRunning) {
+						throw new IOException("already released");
+					}
+					break;
+				}
+			}
+			final Frame frame = obtain(info.size);
+			frame.cache = cache;
+			frame.track = track;
+			frame.size = info.size;
+			frame.flags = info.flags;
+			frame.ptsUs = ptsUs;
+			buffer.clear();
+			buffer.position(info.offset);
+			buffer.limit(info.offset + info.size);
+			frame.buffer.clear();
+			frame.buffer.put(buffer);
+			frame.buffer.flip();
+			mQueue.addLast(frame);
+			mQueuedFrames++;
+			if (mQueue.size() > mMaxQueueDepth) {
+				mMaxQueueDepth = mQueue.size();
+			}
+			mSync.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * 現在のキューの深さ(フレーム数)を取得
+	 * @return
+	 */
+	int queueDepth() {
+		synchronized (mSync) {
+			return mQueue.size();
+		}
+	}
+
+	/**
+	 * キューが空でキャッシュへ書き込み中のフレームも無いかどうか
+	 * @return
+	 */
+	boolean isIdle() {
+		synchronized (mSync) {
+			return mQueue.isEmpty() && (mWriting == null);
+		}
+	}
+
+	/**
+	 * これまでの最大のキューの深さ(フレーム数)を取得
+	 * @return
+	 */
+	int maxQueueDepth() {
+		synchronized (mSync) {
+			return mMaxQueueDepth;
+		}
+	}
+
+	/**
+	 * キューへ追加したフレーム数を取得
+	 * @return
+	 */
+	long queuedFrames() {
+		synchronized (mSync) {
+			return mQueuedFrames;
+		}
+	}
+
+	/**
+	 * キャッシュへ書き込んだフレーム数を取得
+	 * @return
+	 */
+	long writtenFrames() {
+		synchronized (mSync) {
+			return mWrittenFrames;
+		}
+	}
+
+	/**
+	 * キューが一杯だったために破棄したフレーム数を取得
+	 * @return
+	 */
+	long droppedFrames() {
+		synchronized (mSync) {
+			return mDroppedFrames;
+		}
+	}
+
+	/**
+	 * キャッシュへの書き込みに失敗したフレーム数を取得
+	 * @return
+	 */
+	long errorFrames() {
+		synchronized (mSync) {
+			return mErrorFrames;
+		}
+	}
+
+	/**
+	 * キュー内の最も古いキーフレーム以外のフレームを破棄する, mSyncをロックして呼ぶこと
+	 * @return 破棄できればtrue
+	 */
+	private boolean dropOldestNonKeyFrame() {
+		for (final Iterator<Frame> i = mQueue.iterator(); i.hasNext(); ) {
+			final Frame frame = i.next();
+			if ((frame.flags & (MediaCodec.BUFFER_FLAG_KEY_FRAME
+				| MediaCodec.BUFFER_FLAG_CODEC_CONFIG)) == 0) {
+
+				i.remove();
+				recycle(frame);
+				mDroppedFrames++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * プールからフレームを取得する, mSyncをロックして呼ぶこと
+	 * @param size
+	 * @return
+	 */
+	@NonNull
+	private Frame obtain(final int size) {
+		Frame frame = mPool.pollFirst();
+		if (frame == null) {
+			frame = new Frame();
+		}
+		if ((frame.buffer == null) || (frame.buffer.capacity() < size)) {
+			final int capacity = ((size + BUFFER_UNIT - 1) / BUFFER_UNIT) * BUFFER_UNIT;
+			frame.buffer = ByteBuffer.allocateDirect(Math.max(capacity, BUFFER_UNIT));
+		}
+		return frame;
+	}
+
+	/**
+	 * フレームをプールへ戻す, mSyncをロックして呼ぶこと
+	 * @param frame
+	 */
+	private void recycle(@NonNull final Frame frame) {
+		frame.cache = null;
+		if (mIsRunning && (mPool.size() < mMaxQueueSize)) {
+			mPool.addLast(frame);
+		}
+	}
+
+	/**
+	 * キューからフレームを取り出してキャッシュへ書き込むスレッドの実行部
+	 */
+	private final Runnable mWriterTask = new Runnable() {
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "WriterTask#run:");
+			for ( ; ; ) {
+				final Frame frame;
+				synchronized (mSync) {
+					if (mWriting != null) {
+						recycle(mWriting);
+						mWriting = null;
+						mSync.notifyAll();
+					}
+					while (mIsRunning && mQueue.isEmpty()) {
+						try {
+							mSync.wait();
+						} catch (final InterruptedException e) {
+							mIsRunning = false;
+						}
+					}
+					if (!mIsRunning) {
+						break;
+					}
+					frame = mWriting = mQueue.pollFirst();
+					// 空きができたのでブロックしている#writeを起こす
+					mSync.notifyAll();
+				}
+				try {
+					final TimeShiftTrackCache cache = frame.cache;
+					if ((cache != null) && !cache.isClosed()) {
+						if (cache.write(frame.track, frame.buffer, 0, frame.size,
+							frame.flags, frame.ptsUs)) {
+
+							synchronized (mSync) {
+								mWrittenFrames++;
+							}
+						} else {
+							synchronized (mSync) {
+								mErrorFrames++;
+							}
+						}
+					}
+				} catch (final Exception e) {
+					synchronized (mSync) {
+						mErrorFrames++;
+					}
+					if (mIsRunning && (mCallback != null)) {
+						mCallback.onError(e);
+					} else {
+						Log.w(TAG, e);
+					}
+				}
+			}
+			if (DEBUG) Log.v(TAG, String.format("WriterTask#run:finished, queued=%d,written=%d,dropped=%d,err=%d,maxDepth=%d",
+				mQueuedFrames, mWrittenFrames, mDroppedFrames, mErrorFrames, mMaxQueueDepth));
+		}
+	};
+}